@@ -0,0 +1,64 @@
+package hudson.plugins.ec2;
+
+import hudson.remoting.Launcher;
+import hudson.remoting.Which;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * In-memory copy of the agent jar of this controller and its checksum, so it
+ * can be pushed to instances without reading it from disk every time.
+ */
+public final class AgentJarCache {
+	private static AgentJarCache instance;
+
+	private final byte[] jar;
+	private final String sha256;
+
+	AgentJarCache(byte[] jar) {
+		this.jar = jar;
+		this.sha256 = sha256Of(jar);
+	}
+
+	public static synchronized AgentJarCache get() throws IOException {
+		if (instance == null) {
+			File jarFile = Which.jarFile(Launcher.class);
+			instance = new AgentJarCache(Files.readAllBytes(jarFile.toPath()));
+		}
+		return instance;
+	}
+
+	public byte[] getJar() {
+		return jar;
+	}
+
+	/**
+	 * Lowercase hex SHA-256 of the jar, as printed by sha256sum.
+	 */
+	public String getSha256() {
+		return sha256;
+	}
+
+	public boolean matches(String sha256sumOutput) {
+		if (sha256sumOutput == null)
+			return false;
+		String trimmed = sha256sumOutput.trim();
+		int end = trimmed.indexOf(' ');
+		String checksum = end < 0 ? trimmed : trimmed.substring(0, end);
+		return sha256.equalsIgnoreCase(checksum);
+	}
+
+	private static String sha256Of(byte[] data) {
+		try {
+			return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
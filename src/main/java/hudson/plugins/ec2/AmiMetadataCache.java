@@ -0,0 +1,92 @@
+package hudson.plugins.ec2;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.Image;
+
+/**
+ * Keeps the AMI metadata needed at provisioning time, so launching instances
+ * doesn't require describing the image over and over again.
+ *
+ * Entries are keyed by region and AMI id and expire after a TTL.
+ */
+public class AmiMetadataCache {
+	private static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	private static final AmiMetadataCache instance = new AmiMetadataCache(DEFAULT_TTL_MILLIS);
+
+	private final ConcurrentMap<String, CachedImage> images = new ConcurrentHashMap<String, CachedImage>();
+	private final long ttlMillis;
+
+	AmiMetadataCache(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	public static AmiMetadataCache get() {
+		return instance;
+	}
+
+	public List<BlockDeviceMapping> getBlockDeviceMappings(AmazonEC2 ec2, String region, String ami) {
+		return getImage(ec2, region, ami).getBlockDeviceMappings();
+	}
+
+	public Image getImage(AmazonEC2 ec2, String region, String ami) {
+		String key = key(region, ami);
+		CachedImage cached = images.get(key);
+		if (cached != null && !cached.isExpired())
+			return cached.image;
+
+		Image image = describeImage(ec2, ami);
+		images.put(key, new CachedImage(image, System.currentTimeMillis() + ttlMillis));
+		return image;
+	}
+
+	public void invalidate(String region, String ami) {
+		images.remove(key(region, ami));
+	}
+
+	public void invalidateRegion(String region) {
+		String prefix = key(region, "");
+		for (String key : images.keySet()) {
+			if (key.startsWith(prefix))
+				images.remove(key);
+		}
+	}
+
+	public void invalidateAll() {
+		images.clear();
+	}
+
+	private Image describeImage(AmazonEC2 ec2, String ami) {
+		DescribeImagesRequest request = new DescribeImagesRequest().withImageIds(ami);
+		for (Image image : ec2.describeImages(request).getImages()) {
+			if (ami.equals(image.getImageId()))
+				return image;
+		}
+		throw new AmazonClientException("Unable to get AMI device mapping for " + ami);
+	}
+
+	private static String key(String region, String ami) {
+		return region + "/" + ami;
+	}
+
+	private static class CachedImage {
+		final Image image;
+		final long expiresAt;
+
+		CachedImage(Image image, long expiresAt) {
+			this.image = image;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+	}
+}
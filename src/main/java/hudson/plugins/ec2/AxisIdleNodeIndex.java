@@ -0,0 +1,297 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The online axis slaves with an idle executor, per ec2 label.
+ *
+ * Kept up to date by computer and executor events, so allocation takes the
+ * slaves it needs off the index instead of scanning every node of the label.
+ * Entries are checked again when taken, and the whole index is rebuilt every
+ * minute in case an event was missed, and shortly after the node list changes.
+ */
+public class AxisIdleNodeIndex {
+	static final String AXIS_LABEL_SUFFIX = "$axis";
+	/* node list changes come in bursts when allocations register their slaves */
+	static final long REBUILD_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+	private static final AxisIdleNodeIndex instance = new AxisIdleNodeIndex();
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new NamingThreadFactory(new DaemonThreadFactory(), "EC2 Axis idle node index"));
+
+	private final Map<String, LinkedHashSet<String>> idleNodeNamesByLabel = new HashMap<String, LinkedHashSet<String>>();
+	private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+
+	@ExportedBean(defaultVisibility = 2)
+	public static final class LabelEntry {
+		private final String ec2Label;
+		private final List<String> idleNodes;
+
+		LabelEntry(String ec2Label, List<String> idleNodes) {
+			this.ec2Label = ec2Label;
+			this.idleNodes = idleNodes;
+		}
+
+		@Exported
+		public String getEc2Label() {
+			return ec2Label;
+		}
+
+		@Exported
+		public List<String> getIdleNodes() {
+			return idleNodes;
+		}
+	}
+
+	AxisIdleNodeIndex() {
+	}
+
+	public static AxisIdleNodeIndex get() {
+		return instance;
+	}
+
+	/**
+	 * Takes up to count idle slaves of the label off the index and leases them
+	 * to owner. Every entry looked at leaves the index: slaves that went away,
+	 * offline, busy or leased are dropped, and come back with the executor and
+	 * lease events that make them idle again.
+	 */
+	public List<EC2AbstractSlave> pollIdle(String ec2Label, int count, Run<?, ?> owner) {
+		List<EC2AbstractSlave> idle = new ArrayList<EC2AbstractSlave>();
+		NodeReservations reservations = NodeReservations.get();
+		synchronized (this) {
+			LinkedHashSet<String> nodeNames = idleNodeNamesByLabel.get(ec2Label);
+			if (nodeNames == null)
+				return idle;
+			Iterator<String> it = nodeNames.iterator();
+			while (it.hasNext() && idle.size() < count) {
+				String nodeName = it.next();
+				it.remove();
+				Computer computer = computerOf(nodeName);
+				Node node = computer == null ? null : computer.getNode();
+				if (!(node instanceof EC2AbstractSlave) || !isIdle(computer, null) || !reservations.tryReserve(nodeName, owner))
+					continue;
+				idle.add((EC2AbstractSlave) node);
+			}
+			if (nodeNames.isEmpty())
+				idleNodeNamesByLabel.remove(ec2Label);
+		}
+		return idle;
+	}
+
+	public synchronized List<LabelEntry> getEntries() {
+		List<LabelEntry> entries = new ArrayList<LabelEntry>();
+		for (Map.Entry<String, LinkedHashSet<String>> label : new TreeMap<String, LinkedHashSet<String>>(idleNodeNamesByLabel).entrySet())
+			entries.add(new LabelEntry(label.getKey(), new ArrayList<String>(label.getValue())));
+		return entries;
+	}
+
+	/**
+	 * Adds or removes the slave of the computer, counting the finishing
+	 * executor, if any, as already idle.
+	 */
+	void update(Computer computer, Executor finishing) {
+		if (computer == null)
+			return;
+		Node node = computer.getNode();
+		if (!(node instanceof EC2AbstractSlave))
+			return;
+		List<String> ec2Labels = ec2LabelsOf(node);
+		if (ec2Labels.isEmpty())
+			return;
+		boolean idle = isIdle(computer, finishing);
+		synchronized (this) {
+			for (String ec2Label : ec2Labels) {
+				if (idle)
+					nodeNamesOf(ec2Label).add(node.getNodeName());
+				else
+					remove(ec2Label, node.getNodeName());
+			}
+		}
+	}
+
+	/**
+	 * Puts the slave back in the index if it is idle, e.g. once its lease ends.
+	 */
+	void reindex(String nodeName) {
+		update(computerOf(nodeName), null);
+	}
+
+	Computer computerOf(String nodeName) {
+		return Jenkins.getInstance().getComputer(nodeName);
+	}
+
+	/**
+	 * Rebuilds the index once, a little later, however many times it is asked
+	 * to in the meantime.
+	 */
+	void rebuildSoon() {
+		if (!rebuildScheduled.compareAndSet(false, true))
+			return;
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				rebuildScheduled.set(false);
+				rebuild();
+			}
+		}, REBUILD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	void rebuild() {
+		Map<String, LinkedHashSet<String>> rebuilt = new HashMap<String, LinkedHashSet<String>>();
+		for (Node node : Jenkins.getInstance().getNodes()) {
+			if (!(node instanceof EC2AbstractSlave) || !isIdle(node.toComputer(), null))
+				continue;
+			for (String ec2Label : ec2LabelsOf(node)) {
+				LinkedHashSet<String> nodeNames = rebuilt.get(ec2Label);
+				if (nodeNames == null) {
+					nodeNames = new LinkedHashSet<String>();
+					rebuilt.put(ec2Label, nodeNames);
+				}
+				nodeNames.add(node.getNodeName());
+			}
+		}
+		synchronized (this) {
+			idleNodeNamesByLabel.clear();
+			idleNodeNamesByLabel.putAll(rebuilt);
+		}
+	}
+
+	private LinkedHashSet<String> nodeNamesOf(String ec2Label) {
+		LinkedHashSet<String> nodeNames = idleNodeNamesByLabel.get(ec2Label);
+		if (nodeNames == null) {
+			nodeNames = new LinkedHashSet<String>();
+			idleNodeNamesByLabel.put(ec2Label, nodeNames);
+		}
+		return nodeNames;
+	}
+
+	private void remove(String ec2Label, String nodeName) {
+		LinkedHashSet<String> nodeNames = idleNodeNamesByLabel.get(ec2Label);
+		if (nodeNames == null)
+			return;
+		nodeNames.remove(nodeName);
+		if (nodeNames.isEmpty())
+			idleNodeNamesByLabel.remove(ec2Label);
+	}
+
+	static List<String> ec2LabelsOf(Node node) {
+		List<String> ec2Labels = new ArrayList<String>();
+		for (LabelAtom atom : node.getAssignedLabels()) {
+			String name = atom.getName();
+			if (name.endsWith(AXIS_LABEL_SUFFIX))
+				ec2Labels.add(name.substring(0, name.length() - AXIS_LABEL_SUFFIX.length()));
+		}
+		return ec2Labels;
+	}
+
+	private static boolean isUsable(Computer c) {
+		return c != null && c.isOnline() && !c.isConnecting() && c.isAcceptingTasks();
+	}
+
+	static boolean isIdle(Computer c, Executor finishing) {
+		if (!isUsable(c))
+			return false;
+		for (Executor executor : c.getExecutors()) {
+			if (executor == finishing || executor.isIdle())
+				return true;
+		}
+		return false;
+	}
+
+	@Extension
+	public static class ComputerEvents extends ComputerListener {
+		@Override
+		public void onOnline(Computer c, TaskListener listener) {
+			get().update(c, null);
+		}
+
+		@Override
+		public void onOffline(Computer c, OfflineCause cause) {
+			get().update(c, null);
+		}
+
+		@Override
+		public void onTemporarilyOnline(Computer c) {
+			get().update(c, null);
+		}
+
+		@Override
+		public void onTemporarilyOffline(Computer c, OfflineCause cause) {
+			get().update(c, null);
+		}
+
+		@Override
+		public void onConfigurationChange() {
+			get().rebuildSoon();
+		}
+	}
+
+	@Extension
+	public static class ExecutorEvents implements ExecutorListener {
+		@Override
+		public void taskStarted(Executor executor, Queue.Task task) {
+			get().update(executor.getOwner(), null);
+		}
+
+		@Override
+		public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+			get().update(executor.getOwner(), executor);
+		}
+
+		@Override
+		public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+			get().update(executor.getOwner(), executor);
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the node list, in case an event was missed.
+	 */
+	@Extension
+	public static class Reconciler extends AsyncPeriodicWork {
+		public Reconciler() {
+			super("EC2 Axis idle node index");
+		}
+
+		@Override
+		public long getRecurrencePeriod() {
+			return TimeUnit.MINUTES.toMillis(1);
+		}
+
+		@Override
+		protected void execute(TaskListener listener) {
+			get().rebuild();
+		}
+	}
+}
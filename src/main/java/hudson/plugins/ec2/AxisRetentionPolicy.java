@@ -0,0 +1,371 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.OfflineCause;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+/**
+ * How long idle axis slaves are kept between builds, for the labels whose
+ * template keeps a minimum of warm nodes.
+ *
+ * A label keeps its minWarmNodes idle slaves, or as many as it was asked for
+ * over the last half hour if that is more. The slaves idle beyond that are
+ * terminated, longest idle first, a batch at a time. Also counts how many
+ * slaves each label got by reusing idle ones rather than provisioning.
+ *
+ * The on-demand slaves of those templates are created with idle termination
+ * 0, leaving them to this policy. The ones it no longer keeps warm, because
+ * they went offline or their template stopped keeping warm nodes, are
+ * terminated once idle past the idle termination time of their template.
+ */
+public final class AxisRetentionPolicy {
+	private static final Logger LOGGER = Logger.getLogger(AxisRetentionPolicy.class.getName());
+	static final long RATE_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(
+			Integer.getInteger(AxisRetentionPolicy.class.getName() + ".rateWindowMinutes", 30));
+	static final long IDLE_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(
+			Integer.getInteger(AxisRetentionPolicy.class.getName() + ".idleGraceMinutes", 5));
+	static final int TERMINATION_BATCH_SIZE = Integer.getInteger(AxisRetentionPolicy.class.getName() + ".terminationBatchSize", 20);
+	/* for slaves whose template is gone or has no positive idle termination time */
+	static final long UNMANAGED_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(
+			Integer.getInteger(AxisRetentionPolicy.class.getName() + ".unmanagedIdleMinutes", 30));
+	static final String RETAINED_IDLE_TERMINATION = "0";
+
+	private static final AxisRetentionPolicy instance = new AxisRetentionPolicy();
+
+	private final Map<String, LabelStats> statsByLabel = new HashMap<String, LabelStats>();
+
+	private static final class LabelStats {
+		long reused;
+		long provisioned;
+		final LinkedList<long[]> recentRequests = new LinkedList<long[]>();
+
+		int requestedSince(long since) {
+			Iterator<long[]> it = recentRequests.iterator();
+			int requested = 0;
+			while (it.hasNext()) {
+				long[] request = it.next();
+				if (request[0] < since)
+					it.remove();
+				else
+					requested += request[1];
+			}
+			return requested;
+		}
+	}
+
+	static final class IdleNode {
+		final String nodeName;
+		final long idleSince;
+
+		IdleNode(String nodeName, long idleSince) {
+			this.nodeName = nodeName;
+			this.idleSince = idleSince;
+		}
+	}
+
+	@ExportedBean(defaultVisibility = 2)
+	public static final class LabelEntry {
+		private final String ec2Label;
+		private final long reused;
+		private final long provisioned;
+		private final int recentlyRequested;
+
+		LabelEntry(String ec2Label, long reused, long provisioned, int recentlyRequested) {
+			this.ec2Label = ec2Label;
+			this.reused = reused;
+			this.provisioned = provisioned;
+			this.recentlyRequested = recentlyRequested;
+		}
+
+		@Exported
+		public String getEc2Label() {
+			return ec2Label;
+		}
+
+		@Exported
+		public long getReused() {
+			return reused;
+		}
+
+		@Exported
+		public long getProvisioned() {
+			return provisioned;
+		}
+
+		/**
+		 * The share of the slaves asked for that were idle ones reused.
+		 */
+		@Exported
+		public double getHitRate() {
+			long total = reused + provisioned;
+			return total == 0 ? 0 : (double) reused / total;
+		}
+
+		@Exported
+		public int getRecentlyRequested() {
+			return recentlyRequested;
+		}
+	}
+
+	AxisRetentionPolicy() {
+	}
+
+	public static AxisRetentionPolicy get() {
+		return instance;
+	}
+
+	public void recordAllocation(String ec2Label, int reused, int provisioned) {
+		recordAllocation(ec2Label, reused, provisioned, System.currentTimeMillis());
+	}
+
+	synchronized void recordAllocation(String ec2Label, int reused, int provisioned, long now) {
+		LabelStats stats = statsOf(ec2Label);
+		stats.reused += reused;
+		stats.provisioned += provisioned;
+		stats.recentRequests.add(new long[]{now, reused + provisioned});
+	}
+
+	synchronized int recentlyRequested(String ec2Label, long now) {
+		LabelStats stats = statsByLabel.get(ec2Label);
+		return stats == null ? 0 : stats.requestedSince(now - RATE_WINDOW_MILLIS);
+	}
+
+	public synchronized List<LabelEntry> getEntries() {
+		long now = System.currentTimeMillis();
+		List<LabelEntry> entries = new ArrayList<LabelEntry>();
+		for (Map.Entry<String, LabelStats> label : new TreeMap<String, LabelStats>(statsByLabel).entrySet()) {
+			LabelStats stats = label.getValue();
+			entries.add(new LabelEntry(label.getKey(), stats.reused, stats.provisioned, stats.requestedSince(now - RATE_WINDOW_MILLIS)));
+		}
+		return entries;
+	}
+
+	private LabelStats statsOf(String ec2Label) {
+		LabelStats stats = statsByLabel.get(ec2Label);
+		if (stats == null) {
+			stats = new LabelStats();
+			statsByLabel.put(ec2Label, stats);
+		}
+		return stats;
+	}
+
+	static int warmNodesToKeep(int minWarmNodes, int recentlyRequested) {
+		return Math.max(minWarmNodes, recentlyRequested);
+	}
+
+	/**
+	 * The idle slaves beyond the ones to keep, longest idle first, leaving out
+	 * the ones idle for less than the grace period and at most a batch of them.
+	 */
+	static List<String> selectForTermination(List<IdleNode> idleNodes, int keep, long now) {
+		List<IdleNode> oldestFirst = new ArrayList<IdleNode>(idleNodes);
+		Collections.sort(oldestFirst, new Comparator<IdleNode>() {
+			@Override
+			public int compare(IdleNode a, IdleNode b) {
+				return Long.compare(a.idleSince, b.idleSince);
+			}
+		});
+		int surplus = Math.min(oldestFirst.size() - keep, TERMINATION_BATCH_SIZE);
+		List<String> selected = new ArrayList<String>();
+		for (IdleNode idleNode : oldestFirst) {
+			if (selected.size() >= surplus || now - idleNode.idleSince < IDLE_GRACE_MILLIS)
+				break;
+			selected.add(idleNode.nodeName);
+		}
+		return selected;
+	}
+
+	/**
+	 * How long a slave no longer kept warm may stay idle, given the idle
+	 * termination time of its template, or null if it has none. Zero keeps it.
+	 */
+	static long unmanagedIdleMillis(String idleTerminationMinutes) {
+		if (idleTerminationMinutes == null)
+			return UNMANAGED_IDLE_MILLIS;
+		try {
+			int minutes = Integer.parseInt(idleTerminationMinutes.trim());
+			if (minutes == 0)
+				return 0;
+			return minutes > 0 ? TimeUnit.MINUTES.toMillis(minutes) : UNMANAGED_IDLE_MILLIS;
+		} catch (NumberFormatException e) {
+			return UNMANAGED_IDLE_MILLIS;
+		}
+	}
+
+	void retire() {
+		long now = System.currentTimeMillis();
+		for (AxisIdleNodeIndex.LabelEntry entry : AxisIdleNodeIndex.get().getEntries()) {
+			Ec2AxisSlaveTemplate template = LabelResolutionCache.get().resolve(entry.getEc2Label());
+			if (template == null || template.getMinWarmNodes() <= 0)
+				continue;
+			int keep = warmNodesToKeep(template.getMinWarmNodes(), recentlyRequested(entry.getEc2Label(), now));
+			List<String> victims = selectForTermination(idleNodesOf(entry.getIdleNodes()), keep, now);
+			if (!victims.isEmpty())
+				terminate("surplus idle slaves of " + entry.getEc2Label(), victims);
+		}
+		List<String> unmanaged = selectUnmanaged(now);
+		if (!unmanaged.isEmpty())
+			terminate("idle slaves no longer kept warm", unmanaged);
+	}
+
+	/**
+	 * The slaves left to this policy that it no longer keeps warm and that
+	 * have been idle for too long, at most a batch of them. Offline ones get
+	 * at least their launch timeout, as they may still be on their way up.
+	 */
+	private static List<String> selectUnmanaged(long now) {
+		List<String> selected = new ArrayList<String>();
+		for (Node node : Jenkins.getInstance().getNodes()) {
+			if (selected.size() >= TERMINATION_BATCH_SIZE)
+				break;
+			if (!(node instanceof EC2AbstractSlave) || !RETAINED_IDLE_TERMINATION.equals(((EC2AbstractSlave) node).idleTerminationMinutes))
+				continue;
+			List<String> ec2Labels = AxisIdleNodeIndex.ec2LabelsOf(node);
+			Computer computer = node.toComputer();
+			if (ec2Labels.isEmpty() || !isRetirable(computer) || computer.isTemporarilyOffline()
+					|| NodeReservations.get().isReserved(node.getNodeName()))
+				continue;
+			Ec2AxisSlaveTemplate template = LabelResolutionCache.get().resolve(ec2Labels.get(0));
+			if (computer.isOnline() && template != null && template.getMinWarmNodes() > 0)
+				continue;
+			long maxIdleMillis = unmanagedIdleMillis(template == null ? null : template.idleTerminationMinutes);
+			if (maxIdleMillis == 0)
+				continue;
+			if (computer.isOffline())
+				maxIdleMillis = Math.max(maxIdleMillis, EC2AxisCloud.getTimeout((EC2AbstractSlave) node));
+			if (now - computer.getIdleStartMilliseconds() >= maxIdleMillis)
+				selected.add(node.getNodeName());
+		}
+		return selected;
+	}
+
+	private static boolean isRetirable(Computer computer) {
+		return computer != null && !computer.isConnecting() && computer.isIdle();
+	}
+
+	private static List<IdleNode> idleNodesOf(List<String> nodeNames) {
+		Jenkins jenkins = Jenkins.getInstance();
+		List<IdleNode> idleNodes = new ArrayList<IdleNode>();
+		for (String nodeName : nodeNames) {
+			if (NodeReservations.get().isReserved(nodeName))
+				continue;
+			Node node = jenkins.getNode(nodeName);
+			Computer computer = node == null ? null : node.toComputer();
+			if (AxisIdleNodeIndex.isIdle(computer, null))
+				idleNodes.add(new IdleNode(nodeName, computer.getIdleStartMilliseconds()));
+		}
+		return idleNodes;
+	}
+
+	/**
+	 * Leases the victims so allocations can't pick them, takes them offline and
+	 * terminates their instances with a single request per cloud.
+	 */
+	private static void terminate(String reason, List<String> victims) {
+		Jenkins jenkins = Jenkins.getInstance();
+		NodeReservations reservations = NodeReservations.get();
+		Map<EC2Cloud, List<EC2AbstractSlave>> retiredByCloud = new HashMap<EC2Cloud, List<EC2AbstractSlave>>();
+		for (String nodeName : victims) {
+			Node node = jenkins.getNode(nodeName);
+			if (!(node instanceof EC2AbstractSlave) || !reservations.tryReserve(nodeName, null))
+				continue;
+			Computer computer = node.toComputer();
+			if (!isRetirable(computer)) {
+				reservations.release(nodeName);
+				continue;
+			}
+			EC2Cloud cloud = ((EC2AbstractSlave) node).getCloud();
+			if (cloud == null) {
+				reservations.release(nodeName);
+				continue;
+			}
+			computer.setTemporarilyOffline(true, new RetiredOffline());
+			List<EC2AbstractSlave> retired = retiredByCloud.get(cloud);
+			if (retired == null) {
+				retired = new ArrayList<EC2AbstractSlave>();
+				retiredByCloud.put(cloud, retired);
+			}
+			retired.add((EC2AbstractSlave) node);
+		}
+		for (Map.Entry<EC2Cloud, List<EC2AbstractSlave>> retired : retiredByCloud.entrySet())
+			terminate(retired.getKey(), reason, retired.getValue());
+	}
+
+	private static void terminate(EC2Cloud cloud, String reason, List<EC2AbstractSlave> retired) {
+		Jenkins jenkins = Jenkins.getInstance();
+		NodeReservations reservations = NodeReservations.get();
+		List<String> instanceIds = new ArrayList<String>();
+		for (EC2AbstractSlave slave : retired)
+			instanceIds.add(slave.getInstanceId());
+		LOGGER.log(Level.INFO, "Terminating {0} {1}: {2}",
+				new Object[]{retired.size(), reason, instanceIds});
+		try {
+			cloud.connect().terminateInstances(new TerminateInstancesRequest(instanceIds));
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Failed to terminate " + reason, e);
+			for (EC2AbstractSlave slave : retired) {
+				Computer computer = slave.toComputer();
+				if (computer != null)
+					computer.setTemporarilyOffline(false, null);
+				reservations.release(slave.getNodeName());
+			}
+			return;
+		}
+		for (EC2AbstractSlave slave : retired) {
+			try {
+				jenkins.removeNode(slave);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to remove retired slave " + slave.getNodeName(), e);
+			}
+			reservations.release(slave.getNodeName());
+		}
+	}
+
+	private static final class RetiredOffline extends OfflineCause {
+		@Override
+		public String toString() {
+			return "Idle beyond what is kept for its label, terminating";
+		}
+	}
+
+	@Extension
+	public static class Retirer extends AsyncPeriodicWork {
+		public Retirer() {
+			super("EC2 Axis idle slave retention");
+		}
+
+		@Override
+		public long getRecurrencePeriod() {
+			return TimeUnit.MINUTES.toMillis(1);
+		}
+
+		@Override
+		protected void execute(TaskListener listener) {
+			get().retire();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package hudson.plugins.ec2;
+
+import hudson.plugins.ec2.utils.ExecutorUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Splits a launch request across several targets (zones, subnets...) in parallel.
+ *
+ * Whatever a target could not launch because it ran out of capacity is moved to
+ * the targets that still have some, until the request is fulfilled or every
+ * target is exhausted. Hitting the instance limit of the account in the region
+ * ends the launch, as every other target shares that limit.
+ */
+public class CapacityFanOut<T> {
+	private static final List<String> CAPACITY_ERROR_CODES = Arrays.asList(
+			"InsufficientInstanceCapacity",
+			"InsufficientCapacity",
+			"InsufficientFreeAddressesInSubnet");
+	private static final List<String> REGION_LIMIT_ERROR_CODES = Arrays.asList(
+			"InstanceLimitExceeded");
+
+	public interface Target<T> {
+		/**
+		 * Launches up to count resources. Returning fewer than requested means the
+		 * target has no capacity left.
+		 */
+		List<T> launch(int count);
+	}
+
+	public static class Result<T> {
+		private final List<T> launched;
+		private final int shortfall;
+		private final Exception failure;
+
+		Result(List<T> launched, int shortfall, Exception failure) {
+			this.launched = launched;
+			this.shortfall = shortfall;
+			this.failure = failure;
+		}
+
+		public List<T> getLaunched() {
+			return launched;
+		}
+
+		public int getShortfall() {
+			return shortfall;
+		}
+
+		public Exception getFailure() {
+			return failure;
+		}
+	}
+
+	private final EC2Logger logger;
+
+	public CapacityFanOut(EC2Logger logger) {
+		this.logger = logger;
+	}
+
+	public Result<T> launch(List<? extends Target<T>> targets, int count) {
+		List<T> launched = new ArrayList<T>();
+		List<Target<T>> available = new ArrayList<Target<T>>(targets);
+		Exception failure = null;
+
+		while (launched.size() < count && !available.isEmpty() && failure == null) {
+			Map<Target<T>, Future<List<T>>> attempts = new LinkedHashMap<Target<T>, Future<List<T>>>();
+			Map<Target<T>, Integer> shares = split(count - launched.size(), available);
+			for (Map.Entry<Target<T>, Integer> share : shares.entrySet())
+				attempts.put(share.getKey(), submit(share.getKey(), share.getValue()));
+
+			for (Map.Entry<Target<T>, Future<List<T>>> attempt : attempts.entrySet()) {
+				Target<T> target = attempt.getKey();
+				int requested = shares.get(target);
+				try {
+					List<T> result = attempt.getValue().get();
+					launched.addAll(result);
+					if (result.size() < requested) {
+						logger.println(target + " launched " + result.size() + " of " + requested + ". Moving the remainder elsewhere.");
+						available.remove(target);
+					}
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (isRegionLimitError(cause)) {
+						logger.println(target + " hit the instance limit of the region (" + cause.getMessage() + "). Not trying the other targets.");
+						available.clear();
+						failure = (Exception) cause;
+						continue;
+					}
+					if (isCapacityError(cause)) {
+						logger.println(target + " is out of capacity (" + cause.getMessage() + "). Moving its share elsewhere.");
+						available.remove(target);
+						continue;
+					}
+					failure = cause instanceof Exception ? (Exception) cause : e;
+				} catch (InterruptedException e) {
+					failure = e;
+				}
+			}
+		}
+		return new Result<T>(launched, Math.max(0, count - launched.size()), failure);
+	}
+
+	public static boolean isCapacityError(Throwable ex) {
+		if (!(ex instanceof AmazonServiceException))
+			return false;
+		return CAPACITY_ERROR_CODES.contains(((AmazonServiceException) ex).getErrorCode());
+	}
+
+	public static boolean isRegionLimitError(Throwable ex) {
+		if (!(ex instanceof AmazonServiceException))
+			return false;
+		return REGION_LIMIT_ERROR_CODES.contains(((AmazonServiceException) ex).getErrorCode());
+	}
+
+	private Future<List<T>> submit(final Target<T> target, final int count) {
+		return ExecutorUtils.submit(new Callable<List<T>>() {
+			@Override
+			public List<T> call() {
+				return target.launch(count);
+			}
+		});
+	}
+
+	private Map<Target<T>, Integer> split(int count, List<Target<T>> targets) {
+		Map<Target<T>, Integer> shares = new LinkedHashMap<Target<T>, Integer>();
+		int targetsToUse = Math.min(count, targets.size());
+		for (int i = 0; i < targetsToUse; i++) {
+			int share = count / targetsToUse + (i < count % targetsToUse ? 1 : 0);
+			shares.put(targets.get(i), share);
+		}
+		return Collections.unmodifiableMap(shares);
+	}
+}
@@ -0,0 +1,107 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Provisions for an ec2 label served by several clouds or regions, in
+ * priority order.
+ *
+ * The first cloud is asked for everything. Whatever it could not provide,
+ * because it ran out of capacity, hit its instance limit or failed, is spread
+ * over the other clouds in parallel by a {@link CapacityFanOut}. When some
+ * slaves are still missing, the result carries the first failure met.
+ */
+public class CloudSpillover<T> {
+	private final EC2Logger logger;
+
+	public CloudSpillover(EC2Logger logger) {
+		this.logger = logger;
+	}
+
+	public CapacityFanOut.Result<T> launch(List<? extends CapacityFanOut.Target<T>> targetsByPriority, int count) {
+		if (targetsByPriority.isEmpty())
+			return new CapacityFanOut.Result<T>(Collections.<T>emptyList(), count, null);
+
+		List<T> launched = new ArrayList<T>();
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		CapacityFanOut.Target<T> primary = targetsByPriority.get(0);
+		try {
+			launched.addAll(primary.launch(count));
+		} catch (RuntimeException e) {
+			logger.println(primary + " failed to launch " + count + ": " + e.getMessage());
+			failure.set(e);
+		}
+		int shortfall = count - launched.size();
+		List<? extends CapacityFanOut.Target<T>> others = targetsByPriority.subList(1, targetsByPriority.size());
+		if (shortfall <= 0 || others.isEmpty())
+			return new CapacityFanOut.Result<T>(launched, Math.max(0, shortfall), shortfall > 0 ? failure.get() : null);
+
+		logger.println(primary + " launched " + launched.size() + " of " + count + ". Spilling " + shortfall + " over to " + others);
+		CapacityFanOut.Result<T> spilled = new CapacityFanOut<T>(logger).launch(ownLimits(others, failure), shortfall);
+		launched.addAll(spilled.getLaunched());
+		if (spilled.getShortfall() == 0)
+			return new CapacityFanOut.Result<T>(launched, 0, null);
+		failure.compareAndSet(null, spilled.getFailure());
+		return new CapacityFanOut.Result<T>(launched, spilled.getShortfall(), failure.get());
+	}
+
+	/**
+	 * Each cloud has an instance limit and credentials of its own, so one failing
+	 * is only out of capacity as far as the others are concerned. The first
+	 * failure is kept to explain a shortfall.
+	 */
+	private List<CapacityFanOut.Target<T>> ownLimits(List<? extends CapacityFanOut.Target<T>> targets,
+			final AtomicReference<Exception> failure) {
+		List<CapacityFanOut.Target<T>> limited = new ArrayList<CapacityFanOut.Target<T>>();
+		for (final CapacityFanOut.Target<T> target : targets) {
+			limited.add(new CapacityFanOut.Target<T>() {
+				@Override
+				public List<T> launch(int count) {
+					try {
+						return target.launch(count);
+					} catch (RuntimeException e) {
+						logger.println(target + " failed to launch " + count + ": " + e.getMessage());
+						failure.compareAndSet(null, e);
+						return Collections.emptyList();
+					}
+				}
+
+				@Override
+				public String toString() {
+					return target.toString();
+				}
+			});
+		}
+		return limited;
+	}
+
+	/**
+	 * Provisions slaves from the template of one cloud, taking whatever it can
+	 * get. Failures are thrown to the spillover, which moves the share of the
+	 * cloud to the next ones.
+	 */
+	static final class TemplateTarget implements CapacityFanOut.Target<EC2AbstractSlave> {
+		private final EC2AxisCloud cloud;
+		private final ProvisioningSpec spec;
+		private final EC2Logger logger;
+
+		TemplateTarget(ProvisioningSpec spec, EC2Logger logger) {
+			this.cloud = (EC2AxisCloud) spec.getTemplate().getParent();
+			this.spec = spec;
+			this.logger = logger;
+		}
+
+		@Override
+		public List<EC2AbstractSlave> launch(int count) {
+			return cloud.provisionFromTemplate(spec, logger, count, 0);
+		}
+
+		@Override
+		public String toString() {
+			return "cloud " + spec.getCloud().getDisplayName();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package hudson.plugins.ec2;
+
+import hudson.XmlFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * How many slaves each ec2 label is asked for, by hour of the week.
+ *
+ * Every hour the slaves requested during it are folded into the bucket of its
+ * hour of the week with exponential smoothing, so a label keeps 168 numbers
+ * however long it has been used. Stored in ec2-axis-demand.xml.
+ */
+public final class DemandHistory {
+	private static final Logger LOGGER = Logger.getLogger(DemandHistory.class.getName());
+	static final int HOURS_PER_WEEK = 7 * 24;
+	static final double SMOOTHING = 0.3;
+	/* the epoch fell on a Thursday, three days into a week starting on Monday */
+	private static final long EPOCH_HOUR_OF_WEEK = 3 * 24;
+
+	private static DemandHistory instance;
+
+	private final Map<String, LabelDemand> demandByLabel = new HashMap<String, LabelDemand>();
+	private transient XmlFile file;
+	private transient boolean dirty;
+
+	static final class LabelDemand {
+		final double[] smoothed = new double[HOURS_PER_WEEK];
+		long currentHour;
+		int currentDemand;
+
+		LabelDemand(long hour) {
+			this.currentHour = hour;
+		}
+
+		/**
+		 * Folds the demand of the hours before the given one, returning whether
+		 * there were any.
+		 */
+		boolean rollTo(long hour) {
+			if (hour <= currentHour)
+				return false;
+			fold(currentHour, currentDemand);
+			decaySkippedHours(currentHour + 1, hour - currentHour - 1);
+			currentHour = hour;
+			currentDemand = 0;
+			return true;
+		}
+
+		/**
+		 * Folds a demand of zero for every hour nobody asked for slaves, without
+		 * going through them one by one when Jenkins was down for weeks.
+		 */
+		private void decaySkippedHours(long firstSkipped, long skipped) {
+			long fullWeeks = skipped / HOURS_PER_WEEK;
+			long remainder = skipped % HOURS_PER_WEEK;
+			for (long i = 0; i < HOURS_PER_WEEK; i++) {
+				long occurrences = fullWeeks + (i < remainder ? 1 : 0);
+				if (occurrences > 0)
+					smoothed[hourOfWeek(firstSkipped + i)] *= Math.pow(1 - SMOOTHING, occurrences);
+			}
+		}
+
+		private void fold(long hour, int demand) {
+			int bucket = hourOfWeek(hour);
+			smoothed[bucket] = SMOOTHING * demand + (1 - SMOOTHING) * smoothed[bucket];
+		}
+	}
+
+	DemandHistory() {
+	}
+
+	public static synchronized DemandHistory get() {
+		if (instance == null)
+			instance = load(new XmlFile(new File(Jenkins.getInstance().getRootDir(), "ec2-axis-demand.xml")));
+		return instance;
+	}
+
+	static DemandHistory load(XmlFile file) {
+		DemandHistory history = null;
+		if (file.exists()) {
+			try {
+				history = (DemandHistory) file.read();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to read " + file + ", starting a new demand history", e);
+			}
+		}
+		if (history == null)
+			history = new DemandHistory();
+		history.file = file;
+		return history;
+	}
+
+	/**
+	 * The local hour of the week, Monday midnight being 0, of an hour counted
+	 * from the epoch in local time.
+	 */
+	static int hourOfWeek(long localHour) {
+		return (int) ((localHour + EPOCH_HOUR_OF_WEEK) % HOURS_PER_WEEK);
+	}
+
+	static long localHour(long millis) {
+		return TimeUnit.MILLISECONDS.toHours(millis + TimeZone.getDefault().getOffset(millis));
+	}
+
+	public void record(String ec2Label, int slaves) {
+		record(ec2Label, slaves, localHour(System.currentTimeMillis()));
+	}
+
+	synchronized void record(String ec2Label, int slaves, long hour) {
+		LabelDemand demand = demandByLabel.get(ec2Label);
+		if (demand == null) {
+			demand = new LabelDemand(hour);
+			demandByLabel.put(ec2Label, demand);
+		}
+		demand.rollTo(hour);
+		demand.currentDemand += slaves;
+		dirty = true;
+	}
+
+	/**
+	 * The expected number of slaves the label will be asked for during the given
+	 * hour, counted from the epoch in local time.
+	 */
+	synchronized double forecast(String ec2Label, long hour) {
+		LabelDemand demand = demandByLabel.get(ec2Label);
+		if (demand == null)
+			return 0;
+		if (demand.rollTo(Math.min(hour, localHour(System.currentTimeMillis()))))
+			dirty = true;
+		return demand.smoothed[hourOfWeek(hour)];
+	}
+
+	public synchronized List<String> getLabels() {
+		return new ArrayList<String>(demandByLabel.keySet());
+	}
+
+	synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	public synchronized void saveIfChanged() {
+		if (!dirty || file == null)
+			return;
+		try {
+			file.write(this);
+			dirty = false;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save demand history to " + file, e);
+		}
+	}
+}
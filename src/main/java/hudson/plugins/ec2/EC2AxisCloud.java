@@ -3,94 +3,184 @@ package hudson.plugins.ec2;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.model.Api;
-import hudson.model.Computer;
-import hudson.model.Executor;
 import hudson.model.Label;
-import hudson.model.Node;
+import hudson.model.Run;
 import hudson.model.labels.LabelAtom;
+import hudson.plugins.ec2.utils.ExecutorUtils;
 import hudson.slaves.Cloud;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
-import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.ec2axis.Ec2SafeNodeTaskWorker;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.KeyPair;
 
 
+@ExportedBean
 public class EC2AxisCloud extends AmazonEC2Cloud {
 	private static final String SLAVE_MATRIX_ENV_VAR_NAME = "MATRIX_EXEC_ID";
 	private static final String SLAVE_NUM_SEPARATOR = "__";
+	private static final String PENDING_LABEL_SEPARATOR = "-pending-";
 	private final EC2AxisPrivateKey ec2PrivateKey;
 
 	@DataBoundConstructor
 	public EC2AxisCloud(String accessId, String secretKey, String region, String privateKey, String instanceCapStr, List<SlaveTemplate> templates) {
 		super(accessId,secretKey,region, privateKey,instanceCapStr,replaceByEC2AxisSlaveTemplates(templates));
 		ec2PrivateKey = new EC2AxisPrivateKey(privateKey);
+		AmiMetadataCache.get().invalidateRegion(region);
+		LabelResolutionCache.get().invalidateAll();
 	}
 	
 	public Api getApi() {
         return new Api(this);
     }
+
+	/**
+	 * The cached spot prices of the region of this cloud.
+	 */
+	@Exported
+	public List<SpotPriceCache.Entry> getSpotPrices() {
+		return SpotPriceCache.get().getEntries(getRegion());
+	}
+
+	/**
+	 * The idle axis slaves of the labels this cloud serves.
+	 */
+	@Exported
+	public List<AxisIdleNodeIndex.LabelEntry> getIdleNodes() {
+		List<AxisIdleNodeIndex.LabelEntry> idleNodes = new ArrayList<AxisIdleNodeIndex.LabelEntry>();
+		for (AxisIdleNodeIndex.LabelEntry entry : AxisIdleNodeIndex.get().getEntries()) {
+			if (acceptsLabel(new LabelAtom(entry.getEc2Label())))
+				idleNodes.add(entry);
+		}
+		return idleNodes;
+	}
+
+	/**
+	 * How often the labels this cloud serves reused idle slaves.
+	 */
+	@Exported
+	public List<AxisRetentionPolicy.LabelEntry> getRetention() {
+		List<AxisRetentionPolicy.LabelEntry> retention = new ArrayList<AxisRetentionPolicy.LabelEntry>();
+		for (AxisRetentionPolicy.LabelEntry entry : AxisRetentionPolicy.get().getEntries()) {
+			if (acceptsLabel(new LabelAtom(entry.getEc2Label())))
+				retention.add(entry);
+		}
+		return retention;
+	}
+
+	/**
+	 * The tasks changing the node list, shared by all the axis clouds.
+	 */
+	@Exported
+	public Ec2SafeNodeTaskWorker.Stats getNodeTasks() {
+		return Ec2SafeNodeTaskWorker.getStats();
+	}
 		
 	public boolean acceptsLabel(Label label) {
 		return getTemplateGivenLabel(label) != null;
 	}
 	
+	/**
+	 * The shared template serving the label. Allocations don't change it, they
+	 * provision from a {@link ProvisioningSpec} taken from it.
+	 * 
+	 * Numbered labels such as linux__3 are not served: the slaves the base
+	 * plugin provisions for them get the template's labels, which would never
+	 * satisfy the waiting item, so Jenkins would keep provisioning up to the cap.
+	 */
 	@Override
 	public Ec2AxisSlaveTemplate getTemplate(Label label) {
-		String displayName = label.getDisplayName();
-		
-    	String labelPrefix = StringUtils.substringBefore(displayName,SLAVE_NUM_SEPARATOR);
-		LabelAtom prefixAtom = new LabelAtom(labelPrefix);
-    	Ec2AxisSlaveTemplate template = (Ec2AxisSlaveTemplate)super.getTemplate(prefixAtom);
-    	if (template == null)
-    		return null;
-    	template.setInstanceLabel(displayName);
-		return template;		
+		if (label != null && label.getDisplayName().contains(SLAVE_NUM_SEPARATOR))
+			return null;
+		return getTemplateGivenLabel(label);
 	}
 
+	/**
+	 * The first axis cloud, in configuration order, serving the label, or null.
+	 * Allocations provision from it before spilling over to the others.
+	 */
 	public static EC2AxisCloud getCloudToUse(String ec2label) {
-		Iterator<Cloud> iterator = Jenkins.getInstance().clouds.iterator();
-		EC2AxisCloud cloudToUse = null;
-		while(iterator.hasNext()) {
-			Cloud next = iterator.next();
-			if (next instanceof EC2AxisCloud) {
-				if (((EC2AxisCloud)next).acceptsLabel(new LabelAtom(ec2label)))
-					cloudToUse = (EC2AxisCloud) next;
-			}
-		}
-		return cloudToUse;
+		Ec2AxisSlaveTemplate template = LabelResolutionCache.get().resolve(ec2label);
+		if (template == null)
+			return null;
+		return (EC2AxisCloud) template.getParent();
 	}
 	
+	/**
+	 * Allocates numberOfSlaves slaves for the given label and returns the labels the
+	 * matrix cells should be bound to.
+	 * 
+	 * When minimumNumberOfSlaves is smaller than numberOfSlaves, allocation succeeds 
+	 * as long as that many slaves could be obtained; the cells of the missing ones 
+	 * get a pending label that is bound to slaves provisioned in the background.
+	 * 
+	 * Only the selection of idle slaves is serialized, per label. The slaves it 
+	 * picks are leased to the current build until their cells start on them, see 
+	 * {@link NodeReservations}.
+	 */
 	public List<String> allocateSlavesLabels(
 			final EC2Logger logger, 
 			String ec2Label, 
 			Integer numberOfSlaves, 
+			Integer minimumNumberOfSlaves, 
 			Integer instanceBootTimeoutLimit, 
 			boolean alwaysCreateNewNodes, 
 			boolean createMatrixEnvironmentVariable) 
 	{
 		List<EC2AbstractSlave> onlineAndAvailableSlaves = determineOnlineAndAvailableSlaves(
 				logger, ec2Label, numberOfSlaves, alwaysCreateNewNodes);
-		
+		try {
+			List<String> slaveLabels = allocateSlavesLabels(logger, ec2Label, onlineAndAvailableSlaves, numberOfSlaves, minimumNumberOfSlaves, createMatrixEnvironmentVariable);
+			AxisRetentionPolicy.get().recordAllocation(ec2Label, onlineAndAvailableSlaves.size(), slaveLabels.size() - onlineAndAvailableSlaves.size());
+			return slaveLabels;
+		} catch (RuntimeException e) {
+			for (EC2AbstractSlave slave : onlineAndAvailableSlaves) 
+				NodeReservations.get().release(slave.getNodeName());
+			throw e;
+		}
+	}
+
+	private List<String> allocateSlavesLabels(
+			final EC2Logger logger, 
+			String ec2Label, 
+			List<EC2AbstractSlave> onlineAndAvailableSlaves,
+			Integer numberOfSlaves, 
+			Integer minimumNumberOfSlaves, 
+			boolean createMatrixEnvironmentVariable) 
+	{
 		int countOfRemainingLabelsToCreate = numberOfSlaves - onlineAndAvailableSlaves.size();
 		LinkedList<EC2AbstractSlave> allSlaves = new LinkedList<EC2AbstractSlave>();
 		allSlaves.addAll(onlineAndAvailableSlaves);
+		List<String> pendingLabels = new ArrayList<String>();
 
 		if (countOfRemainingLabelsToCreate > 0) {
-			List<EC2AbstractSlave> newSlaves = createMissingSlaves( logger, ec2Label, countOfRemainingLabelsToCreate);
+			int minimumToCreate = countOfRemainingLabelsToCreate;
+			if (minimumNumberOfSlaves != null)
+				minimumToCreate = Math.max(0, Math.min(minimumNumberOfSlaves, numberOfSlaves) - onlineAndAvailableSlaves.size());
+			
+			List<EC2AbstractSlave> newSlaves = createMissingSlaves( logger, ec2Label, countOfRemainingLabelsToCreate, minimumToCreate);
 			allSlaves.addAll(newSlaves);
+			for (int i = newSlaves.size(); i < countOfRemainingLabelsToCreate; i++) 
+				pendingLabels.add(ec2Label + PENDING_LABEL_SEPARATOR + UUID.randomUUID().toString().substring(0, 8));
 		}
 		
 		createMatrixEnvironmentVariableForAllocatedSlaves( createMatrixEnvironmentVariable, allSlaves);
@@ -99,6 +189,13 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		for (EC2AbstractSlave slave : allSlaves) 
 			slaveLabels.add(slave.getNodeName());
 		
+		if (!pendingLabels.isEmpty()) {
+			logger.println(pendingLabels.size() + " slaves will be provisioned in the background for labels " + pendingLabels);
+			int firstMatrixId = createMatrixEnvironmentVariable ? allSlaves.size() + 1 : 0;
+			ExecutorUtils.submit(Executors.callable(new SlaveTopUp(this, logger, ec2Label, pendingLabels, firstMatrixId)));
+			slaveLabels.addAll(pendingLabels);
+		}
+		
 		return slaveLabels;
 	}
 
@@ -108,13 +205,49 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		if (createMatrixEnvironmentVariable) {
 			int matrixId = 1;
 			for (EC2AbstractSlave ec2AbstractSlave : allSlaves) {
-				EnvVars slaveEnvVars = getSlaveEnvVars(ec2AbstractSlave);
-				slaveEnvVars.put(SLAVE_MATRIX_ENV_VAR_NAME, matrixId+"");
+				setMatrixEnvironmentVariable(ec2AbstractSlave, matrixId);
 				matrixId++;
 			}
 		}
 	}
 
+	private void setMatrixEnvironmentVariable(EC2AbstractSlave slave, int matrixId) {
+		EnvVars slaveEnvVars = getSlaveEnvVars(slave);
+		slaveEnvVars.put(SLAVE_MATRIX_ENV_VAR_NAME, matrixId+"");
+	}
+
+	List<EC2AbstractSlave> provisionTopUpSlaves(EC2Logger logger, String ec2Label, int count) {
+		return provisionAcrossClouds(logger, ec2Label, count, 1);
+	}
+
+	/**
+	 * Provisions idle axis slaves for the label ahead of the allocations expected
+	 * to need them.
+	 */
+	List<EC2AbstractSlave> provisionPredictedSlaves(EC2Logger logger, String ec2Label, int count) throws IOException {
+		return allocateSlavesAndLaunchThem(ec2Label, logger, count, 1);
+	}
+
+	/**
+	 * Makes a slave provisioned after the allocation take the cell waiting on pendingLabel.
+	 */
+	void bindToPendingLabel(EC2AbstractSlave slave, String ec2Label, String pendingLabel, int matrixId) throws IOException {
+		if (matrixId > 0)
+			setMatrixEnvironmentVariable(slave, matrixId);
+		slave.setLabelString(getAxisLabel(ec2Label) + " " + pendingLabel);
+	}
+
+	/**
+	 * Makes replacement take the cell bound to the node name of replaced, 
+	 * along with its matrix id. The caller disposes of replaced.
+	 */
+	void bindToReplacedLabel(EC2AbstractSlave replacement, EC2AbstractSlave replaced) throws IOException {
+		EnvironmentVariablesNodeProperty replacedEnv = replaced.getNodeProperties().get(EnvironmentVariablesNodeProperty.class);
+		if (replacedEnv != null && replacedEnv.getEnvVars().containsKey(SLAVE_MATRIX_ENV_VAR_NAME))
+			getSlaveEnvVars(replacement).put(SLAVE_MATRIX_ENV_VAR_NAME, replacedEnv.getEnvVars().get(SLAVE_MATRIX_ENV_VAR_NAME));
+		replacement.setLabelString(replaced.getLabelString() + " " + replaced.getNodeName());
+	}
+
 	private List<EC2AbstractSlave> determineOnlineAndAvailableSlaves(
 			final EC2Logger logger, String ec2Label, Integer numberOfSlaves,
 			boolean alwaysCreateNewNodes) {
@@ -122,16 +255,27 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 			logger.println("Will create new nodes for each slave ");
 			return new ArrayList<EC2AbstractSlave>();
 		}
-		return findOnlineEligibleSlavesToAllocate(logger, ec2Label, numberOfSlaves);
+		ReentrantLock lock = LabelAllocationLocks.get().lockFor(ec2Label);
+		try {
+			lock.lockInterruptibly();
+		} catch (InterruptedException e) {
+			throw new Run.RunnerAbortedException();
+		}
+		try {
+			return findOnlineEligibleSlavesToAllocate(logger, ec2Label, numberOfSlaves);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	private List<EC2AbstractSlave> createMissingSlaves(
 			EC2Logger logger, 
 			String ec2Label, 
-			int remainingLabelsToCreate) 
+			int remainingLabelsToCreate,
+			int minimumLabelsToCreate) 
 	{
 		try {
-			return allocateSlavesAndLaunchThem(ec2Label, logger, remainingLabelsToCreate);
+			return allocateSlavesAndLaunchThem(ec2Label, logger, remainingLabelsToCreate, minimumLabelsToCreate);
 		} catch (Exception e) {
 			logger.printStackTrace(e);
 			throw new RuntimeException(e);
@@ -141,12 +285,11 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 	private List<EC2AbstractSlave> allocateSlavesAndLaunchThem(
 			String ec2Label,
 			final EC2Logger logger, 
-			int remainingLabelsToCreate) throws IOException 
+			int remainingLabelsToCreate,
+			int minimumLabelsToCreate) throws IOException 
 	{
 		logger.println("Will provision instances for label: " + ec2Label);
-		Ec2AxisSlaveTemplate slaveTemplate = getTemplate(new LabelAtom(ec2Label));
-		
-		List<EC2AbstractSlave> allocatedSlaves = slaveTemplate.provisionMultipleSlaves(logger, remainingLabelsToCreate);
+		List<EC2AbstractSlave> allocatedSlaves = provisionAcrossClouds(logger, ec2Label, remainingLabelsToCreate, minimumLabelsToCreate);
 		 
 		for (EC2AbstractSlave ec2Slave : allocatedSlaves) 
 			ec2Slave.setLabelString(getAxisLabel(ec2Label));
@@ -154,8 +297,56 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		return allocatedSlaves;
 	}
 
+	/**
+	 * Provisions from this cloud first, spilling the shortfall over to the other
+	 * clouds serving the label, see {@link CloudSpillover}.
+	 */
+	List<EC2AbstractSlave> provisionAcrossClouds(EC2Logger logger, String ec2Label, int count, int minimum) {
+		List<Ec2AxisSlaveTemplate> templates = getTemplatesByPriority(ec2Label);
+		if (templates.size() == 1)
+			return provisionFromTemplate(templates.get(0).newProvisioningSpec(ec2Label), logger, count, minimum);
+
+		List<CloudSpillover.TemplateTarget> targets = new ArrayList<CloudSpillover.TemplateTarget>();
+		for (Ec2AxisSlaveTemplate slaveTemplate : templates)
+			targets.add(new CloudSpillover.TemplateTarget(slaveTemplate.newProvisioningSpec(ec2Label), logger));
+		CapacityFanOut.Result<EC2AbstractSlave> result = new CloudSpillover<EC2AbstractSlave>(logger).launch(targets, count);
+		List<EC2AbstractSlave> launched = result.getLaunched();
+		if (launched.size() >= minimum)
+			return launched;
+
+		for (EC2AbstractSlave slave : launched)
+			slave.terminate();
+		throw new RuntimeException("Could only provision " + launched.size() + " of " + count + " slaves for label "
+				+ ec2Label + " across " + targets, result.getFailure());
+	}
+
+	/**
+	 * Provisions from the template of this cloud the spec was taken from.
+	 */
+	List<EC2AbstractSlave> provisionFromTemplate(ProvisioningSpec spec, EC2Logger logger, int count, int minimum) {
+		return spec.getTemplate().provisionMultipleSlaves(spec, logger, count, minimum);
+	}
+
+	/**
+	 * The template of this cloud for the label, followed by those of the other
+	 * clouds serving it in configuration order.
+	 */
+	private List<Ec2AxisSlaveTemplate> getTemplatesByPriority(String ec2Label) {
+		List<Ec2AxisSlaveTemplate> templates = new ArrayList<Ec2AxisSlaveTemplate>();
+		Ec2AxisSlaveTemplate own = getTemplate(new LabelAtom(ec2Label));
+		if (own != null)
+			templates.add(own);
+		for (Ec2AxisSlaveTemplate other : LabelResolutionCache.get().resolveAll(ec2Label)) {
+			if (other != own)
+				templates.add(other);
+		}
+		if (templates.isEmpty())
+			throw new RuntimeException("No cloud serves label " + ec2Label);
+		return templates;
+	}
+
 	private String getAxisLabel(String ec2Label) {
-		return ec2Label+"$axis";
+		return ec2Label + AxisIdleNodeIndex.AXIS_LABEL_SUFFIX;
 	}
 
 	private EnvVars getSlaveEnvVars(EC2AbstractSlave provisionedSlave) {
@@ -167,34 +358,16 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		return v.getEnvVars();
 	}
 	
-	private LinkedList<EC2AbstractSlave> findOnlineEligibleSlavesToAllocate(
+	private List<EC2AbstractSlave> findOnlineEligibleSlavesToAllocate(
 			EC2Logger logger,
 			String ec2Label, 
 			Integer numberOfSlaves) 
 	{
 		logger.println("Starting selection of labels with idle executors for job");
-		final LinkedList<EC2AbstractSlave> onlineAndAvailableLabels = new LinkedList<EC2AbstractSlave>();
-		logger.println("Will check " + ec2Label);
-		
-		Label label = Jenkins.getInstance().getLabel(getAxisLabel(ec2Label));
-		if (label == null) {
-			logger.println("Null label for " + ec2Label);
-			return onlineAndAvailableLabels;
-		}
-		
-		for (Node node : label.getNodes()) {
-			if(!isNodeAvailable(logger, node)) 
-				continue;
-			
-			EC2AbstractSlave ec2AbstractSlave = (EC2AbstractSlave) node;
-			onlineAndAvailableLabels.add(ec2AbstractSlave);
-			
-			if (onlineAndAvailableLabels.size() >= numberOfSlaves)
-				break;
-		}
+		List<EC2AbstractSlave> onlineAndAvailableSlaves = AxisIdleNodeIndex.get().pollIdle(ec2Label, numberOfSlaves, logger.getBuild());
 		
-		logger.println("Online labels found : " + onlineAndAvailableLabels.size());
-		return onlineAndAvailableLabels;
+		logger.println("Online labels found : " + onlineAndAvailableSlaves.size());
+		return onlineAndAvailableSlaves;
 	}
 
 	private static List<SlaveTemplate> replaceByEC2AxisSlaveTemplates(List<SlaveTemplate> templates) {
@@ -205,7 +378,7 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		return ec2axisTemplates;
 	}
 
-	private Ec2AxisSlaveTemplate getTemplateGivenLabel(Label label) {
+	Ec2AxisSlaveTemplate getTemplateGivenLabel(Label label) {
 		String displayName = label.getDisplayName();
 		
     	String labelPrefix = StringUtils.substringBefore(displayName,SLAVE_NUM_SEPARATOR);
@@ -214,29 +387,19 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		return template;
 	}
 	
-	private boolean isNodeAvailable(EC2Logger logger, Node node) {
-		String nodeName = node.getDisplayName();
-		logger.println("Checking node : " + nodeName);
-		Computer c = node.toComputer();
-		if (c == null || c.isOffline() || c.isConnecting())
-			return false;
-		if (isNodeOnlineAndAvailable(c) && hasAvailableExecutor(c))
-			return true;
-		
-		return false;
-	}
-
-	private boolean hasAvailableExecutor(Computer c) {
-		final List<Executor> executors = c.getExecutors();
-		for (Executor executor : executors) {
-			if (executor.isIdle()) 
-				return true;
+	private void configureAxisTemplates(Object templatesFormData) {
+		List<JSONObject> templatesJson = new ArrayList<JSONObject>();
+		if (templatesFormData instanceof JSONObject)
+			templatesJson.add((JSONObject) templatesFormData);
+		if (templatesFormData instanceof JSONArray) {
+			JSONArray templatesArray = (JSONArray) templatesFormData;
+			for (int i = 0; i < templatesArray.size(); i++) 
+				templatesJson.add(templatesArray.getJSONObject(i));
 		}
-		return false;
-	}
-
-	private boolean isNodeOnlineAndAvailable(Computer c) {
-		return c.isOnline() && c.isAcceptingTasks();
+		
+		List<SlaveTemplate> templates = getTemplates();
+		for (int i = 0; i < templates.size() && i < templatesJson.size(); i++) 
+			((Ec2AxisSlaveTemplate) templates.get(i)).configureAxisSettings(templatesJson.get(i));
 	}
 
 	@Extension
@@ -245,6 +408,13 @@ public class EC2AxisCloud extends AmazonEC2Cloud {
 		public String getDisplayName() {
 	        return "EC2 Axis Amazon Cloud";
 	    }
+
+	    @Override
+	    public Cloud newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+	    	EC2AxisCloud cloud = (EC2AxisCloud) super.newInstance(req, formData);
+	    	cloud.configureAxisTemplates(formData.get("templates"));
+	    	return cloud;
+	    }
 	}
 
 	public KeyPair getKeyPair(AmazonEC2 ec2) throws AmazonClientException, IOException {
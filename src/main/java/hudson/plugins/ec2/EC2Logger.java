@@ -1,5 +1,7 @@
 package hudson.plugins.ec2;
 
+import hudson.model.Run;
+
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -7,9 +9,27 @@ import java.util.Date;
 public class EC2Logger {
 
 	private PrintStream printStream;
+	private final Run<?, ?> build;
 
 	public EC2Logger(PrintStream printStream) {
+		this(printStream, null);
+	}
+
+	/**
+	 * A logger printing to the console of build, the slaves provisioned 
+	 * through it stop launching once that build is over.
+	 */
+	public EC2Logger(PrintStream printStream, Run<?, ?> build) {
 		this.printStream = printStream;
+		this.build = build;
+	}
+
+	/**
+	 * The build the slaves provisioned through this logger are for, null when 
+	 * they are provisioned in the background for no build in particular.
+	 */
+	public Run<?, ?> getBuild() {
+		return build;
 	}
 	
 	public void println(String string) {
@@ -1,6 +1,6 @@
 package hudson.plugins.ec2;
 
-import hudson.model.TaskListener;
+import hudson.model.Node;
 import hudson.model.Descriptor.FormException;
 import hudson.plugins.ec2.utils.ExecutorUtils;
 import hudson.slaves.NodeProperty;
@@ -9,33 +9,37 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.List;
 
+import net.sf.json.JSONObject;
+
+import org.apache.commons.lang.StringUtils;
+
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeSecurityGroupsRequest;
 import com.amazonaws.services.ec2.model.DescribeSecurityGroupsResult;
-import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryRequest;
-import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryResult;
 import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
 import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
 import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.KeyPair;
 import com.amazonaws.services.ec2.model.SecurityGroup;
 import com.amazonaws.services.ec2.model.SpotInstanceRequest;
-import com.amazonaws.services.ec2.model.SpotPrice;
 import com.amazonaws.services.ec2.model.Subnet;
 import com.amazonaws.services.ec2.model.Tag;
 
 
 public class Ec2AxisSlaveTemplate extends SlaveTemplate {
 
-	private transient String instanceLabel;
+	private int warmPoolSize;
+	private String additionalPlacements;
+	private String spotInstanceTypes;
+	private int spotFulfillmentTimeoutMinutes;
+	private int maxPredictiveSlaves;
+	private int minWarmNodes;
 
 	public Ec2AxisSlaveTemplate(SlaveTemplate toDecorate) {
 		super(
@@ -64,27 +68,189 @@ public class Ec2AxisSlaveTemplate extends SlaveTemplate {
 			 toDecorate.iamInstanceProfile,
 			 toDecorate.useEphemeralDevices,
 			 toDecorate.getLaunchTimeoutStr());
+		if (toDecorate instanceof Ec2AxisSlaveTemplate) 
+			copyAxisSettings((Ec2AxisSlaveTemplate) toDecorate);
+	}
+
+	private void copyAxisSettings(Ec2AxisSlaveTemplate other) {
+		this.warmPoolSize = other.warmPoolSize;
+		this.additionalPlacements = other.additionalPlacements;
+		this.spotInstanceTypes = other.spotInstanceTypes;
+		this.spotFulfillmentTimeoutMinutes = other.spotFulfillmentTimeoutMinutes;
+		this.maxPredictiveSlaves = other.maxPredictiveSlaves;
+		this.minWarmNodes = other.minWarmNodes;
+	}
+
+	/**
+	 * Reads the settings that only exist on axis templates, which the base 
+	 * {@link SlaveTemplate} form binding doesn't know about.
+	 */
+	void configureAxisSettings(JSONObject templateFormData) {
+		setWarmPoolSize(templateFormData.optInt("warmPoolSize", 0));
+		setAdditionalPlacements(templateFormData.optString("additionalPlacements", null));
+		setSpotInstanceTypes(templateFormData.optString("spotInstanceTypes", null));
+		setSpotFulfillmentTimeoutMinutes(templateFormData.optInt("spotFulfillmentTimeoutMinutes", 0));
+		setMaxPredictiveSlaves(templateFormData.optInt("maxPredictiveSlaves", 0));
+		setMinWarmNodes(templateFormData.optInt("minWarmNodes", 0));
+	}
+
+	public int getWarmPoolSize() {
+		return warmPoolSize;
+	}
+
+	public void setWarmPoolSize(int warmPoolSize) {
+		this.warmPoolSize = Math.max(0, warmPoolSize);
+	}
+
+	public String getAdditionalPlacements() {
+		return additionalPlacements;
+	}
+
+	public void setAdditionalPlacements(String additionalPlacements) {
+		this.additionalPlacements = StringUtils.trimToNull(additionalPlacements);
+	}
+
+	/**
+	 * The zone/subnet of the template followed by the additional placements 
+	 * instances can be spread over.
+	 */
+	public List<InstancePlacement> getPlacements() {
+		return InstancePlacement.parse(zone, subnetId, additionalPlacements);
+	}
+	
+	public String getSpotInstanceTypes() {
+		return spotInstanceTypes;
+	}
+
+	public void setSpotInstanceTypes(String spotInstanceTypes) {
+		WeightedInstanceType.parse(spotInstanceTypes);
+		this.spotInstanceTypes = StringUtils.trimToNull(spotInstanceTypes);
+	}
+
+	/**
+	 * The instance types spot requests are spread over. Empty when spot requests
+	 * only use the type of the template.
+	 */
+	public List<WeightedInstanceType> getWeightedSpotInstanceTypes() {
+		return WeightedInstanceType.parse(spotInstanceTypes);
+	}
+
+	/**
+	 * How long spot requests may stay open before the missing slaves are
+	 * provisioned on-demand instead. Zero waits for spot capacity indefinitely.
+	 */
+	public int getSpotFulfillmentTimeoutMinutes() {
+		return spotFulfillmentTimeoutMinutes;
+	}
+
+	public void setSpotFulfillmentTimeoutMinutes(int spotFulfillmentTimeoutMinutes) {
+		this.spotFulfillmentTimeoutMinutes = Math.max(0, spotFulfillmentTimeoutMinutes);
+	}
+
+	/**
+	 * The most slaves provisioned ahead of the demand expected for a label. Zero
+	 * only provisions when asked.
+	 */
+	public int getMaxPredictiveSlaves() {
+		return maxPredictiveSlaves;
+	}
+
+	public void setMaxPredictiveSlaves(int maxPredictiveSlaves) {
+		this.maxPredictiveSlaves = Math.max(0, maxPredictiveSlaves);
+	}
+
+	/**
+	 * The idle slaves each label of the template keeps between builds. Above zero,
+	 * {@link AxisRetentionPolicy} rather than the idle termination time decides
+	 * when its on-demand slaves go away.
+	 */
+	public int getMinWarmNodes() {
+		return minWarmNodes;
+	}
+
+	public void setMinWarmNodes(int minWarmNodes) {
+		this.minWarmNodes = Math.max(0, minWarmNodes);
+	}
+
+	/**
+	 * The instance type a slave provisioned by an axis template was launched with,
+	 * or null if unknown.
+	 */
+	public static String getInstanceTypeOf(Node node) {
+		InstanceTypeNodeProperty property = node.getNodeProperties().get(InstanceTypeNodeProperty.class);
+		return property == null ? null : property.getInstanceType();
+	}
+
+	private static void recordInstanceType(Node node, String instanceType) throws IOException {
+		if (instanceType != null)
+			node.getNodeProperties().add(new InstanceTypeNodeProperty(instanceType));
 	}
 	
+	/**
+	 * A snapshot of this template for one allocation, whose slaves get the given label.
+	 */
+	public ProvisioningSpec newProvisioningSpec(String instanceLabel) {
+		return new ProvisioningSpec(this, instanceLabel);
+	}
+
 	public List<EC2AbstractSlave> provisionMultipleSlaves(EC2Logger logger, int numberOfInstancesToCreate) {
+		return provisionMultipleSlaves(logger, numberOfInstancesToCreate, numberOfInstancesToCreate);
+	}
+
+	public List<EC2AbstractSlave> provisionMultipleSlaves(EC2Logger logger, int numberOfInstancesToCreate, int minimumNumberOfInstances) {
+		return provisionMultipleSlaves(newProvisioningSpec(getLabelString()), logger, numberOfInstancesToCreate, minimumNumberOfInstances);
+	}
+
+	/**
+	 * Provisions up to numberOfInstancesToCreate slaves. On-demand templates accept
+	 * a partial fulfillment of at least minimumNumberOfInstances; spot requests 
+	 * are always placed for the full count.
+	 */
+	public List<EC2AbstractSlave> provisionMultipleSlaves(ProvisioningSpec spec, EC2Logger logger, int numberOfInstancesToCreate, int minimumNumberOfInstances) {
 		try {
 			AmazonEC2 ec2 = AmazonEC2Insistent.wrap(getParent().connect(), logger);
 			KeyPair keyPair = getKeyPair(ec2);
 			List<String> ec2SecurityGroups = getEc2SecurityGroups(ec2);
 			
-			if (spotConfig != null) {
-				SpotInstanceProvider spotInstanceFactory = new SpotInstanceProvider(keyPair, ec2SecurityGroups, this, logger);
+			if (spec.isSpot()) {
+				SpotInstanceProvider spotInstanceFactory = new SpotInstanceProvider(keyPair, ec2SecurityGroups, spec, logger);
 				return spotInstanceFactory.provisionMultiple(numberOfInstancesToCreate);
 			}
 			
-			OnDemandInstanceProvider reservedInstanceProvider = new OnDemandInstanceProvider(keyPair, ec2SecurityGroups, this, logger);
-			return reservedInstanceProvider.provisionMultiple(numberOfInstancesToCreate);
+			OnDemandInstanceProvider reservedInstanceProvider = new OnDemandInstanceProvider(keyPair, ec2SecurityGroups, spec, logger);
+			return reservedInstanceProvider.provisionMultiple(numberOfInstancesToCreate, minimumNumberOfInstances);
 			
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Provisions on-demand slaves even if this is a spot template, to stand in
+	 * for spot requests that could not be fulfilled in time.
+	 */
+	public List<EC2AbstractSlave> provisionOnDemandSlaves(ProvisioningSpec spec, EC2Logger logger, int numberOfInstancesToCreate, int minimumNumberOfInstances) {
+		try {
+			AmazonEC2 ec2 = AmazonEC2Insistent.wrap(getParent().connect(), logger);
+			OnDemandInstanceProvider provider = new OnDemandInstanceProvider(getKeyPair(ec2), getEc2SecurityGroups(ec2), spec, logger);
+			return provider.provisionMultiple(numberOfInstancesToCreate, minimumNumberOfInstances);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	public void replenishWarmPool(EC2Logger logger) {
+		if (warmPoolSize <= 0 || spotConfig != null)
+			return;
+		try {
+			AmazonEC2 ec2 = AmazonEC2Insistent.wrap(getParent().connect(), logger);
+			OnDemandInstanceProvider provider = new OnDemandInstanceProvider(getKeyPair(ec2), getEc2SecurityGroups(ec2), newProvisioningSpec(getLabelString()), logger);
+			provider.replenishWarmPool(warmPoolSize);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
 
 	private KeyPair getKeyPair(AmazonEC2 ec2) throws IOException, AmazonClientException{
     	EC2AxisCloud ec2AxisCloud = (EC2AxisCloud)getParent();
@@ -156,71 +322,36 @@ public class Ec2AxisSlaveTemplate extends SlaveTemplate {
 		} }, 30);
 	}
     
-	public void setInstanceLabel(String displayName) {
-		this.instanceLabel = displayName;
-	}
-
-	@Override
-	public EC2AbstractSlave provision(TaskListener listener) throws AmazonClientException, IOException {
-		EC2AbstractSlave provisionedSlave = super.provision(listener);
-		if (instanceLabel != null)
-			provisionedSlave.setLabelString(instanceLabel);
-		return provisionedSlave;
-	}
-	
 	@Override
 	public EC2SpotSlave newSpotSlave(SpotInstanceRequest sir, String name) throws FormException, IOException {
 		EC2SpotSlave newSpotSlave = super.newSpotSlave(sir, name);
+		if (sir.getLaunchSpecification() != null)
+			recordInstanceType(newSpotSlave, sir.getLaunchSpecification().getInstanceType());
 		return newSpotSlave;
 	}
 
 	@Override
 	public EC2OndemandSlave newOndemandSlave(Instance inst) throws FormException, IOException {
+		return newOndemandSlave(inst, getLabelString());
+	}
+
+	public EC2OndemandSlave newOndemandSlave(Instance inst, String labelString) throws FormException, IOException {
 		EC2OndemandSlave ec2OndemandSlave = new EC2OndemandSlave(description.replace(" ", "") + "@" + inst.getInstanceId() , inst.getInstanceId() , 
-				description, remoteFS, getSshPort(), getNumExecutors(), instanceLabel, mode, 
+				description, remoteFS, getSshPort(), getNumExecutors(), labelString, mode, 
 				initScript, Collections.<NodeProperty<?>>emptyList(), remoteAdmin, rootCommandPrefix, jvmopts, 
-				stopOnTerminate, idleTerminationMinutes, inst.getPublicDnsName(), inst.getPrivateDnsName(),
+				stopOnTerminate, minWarmNodes > 0 ? AxisRetentionPolicy.RETAINED_IDLE_TERMINATION : idleTerminationMinutes, inst.getPublicDnsName(), inst.getPrivateDnsName(),
 				EC2Tag.fromAmazonTags(inst.getTags()), parent.name, usePrivateDnsName, launchTimeout);
+		recordInstanceType(ec2OndemandSlave, inst.getInstanceType());
 		return ec2OndemandSlave;
 	}
 	
 
+	/**
+	 * The last known spot price for the type and zone of this template, or null
+	 * if it hasn't been fetched yet. Never waits on EC2.
+	 */
 	public String getCurrentSpotPrice() {
-		String cp = "";
-
 		String region = ((AmazonEC2Cloud)getParent()).getRegion();
-		AmazonEC2 ec2 = EC2Cloud.connect(getParent().getAccessId(), getParent().getSecretKey(), AmazonEC2Cloud.getEc2EndpointUrl(region));
-
-		if(ec2==null) 
-			return null;
-		
-		try {
-			DescribeSpotPriceHistoryRequest request = new DescribeSpotPriceHistoryRequest();
-			InstanceType ec2Type = null;
-			for(InstanceType it : InstanceType.values()){
-				if (it.name().toString().equals(type.name())){
-					ec2Type = it;
-					break;
-				}
-			}
-			if(ec2Type == null){
-				return null;				}
-
-			Collection<String> instanceType = new ArrayList<String>();
-			instanceType.add(ec2Type.toString());
-			request.setInstanceTypes(instanceType);
-			request.setStartTime(new Date());
-
-			DescribeSpotPriceHistoryResult result = ec2.describeSpotPriceHistory(request);
-
-			if(!result.getSpotPriceHistory().isEmpty()){
-				SpotPrice currentPrice = result.getSpotPriceHistory().get(0);
-
-				cp = currentPrice.getSpotPrice();
-			}
-			return cp;
-		} catch (AmazonClientException e) {
-			return null;
-		}
+		return SpotPriceCache.get().getPrice(getParent(), region, type, zone);
 	}
 }
@@ -0,0 +1,68 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+/**
+ * Where instances of a template may be launched: an availability zone, a VPC subnet, or both.
+ */
+public final class InstancePlacement {
+	private final String zone;
+	private final String subnetId;
+
+	public InstancePlacement(String zone, String subnetId) {
+		this.zone = StringUtils.trimToNull(zone);
+		this.subnetId = StringUtils.trimToNull(subnetId);
+	}
+
+	/**
+	 * Builds the template's placements: the main zone/subnet followed by the
+	 * whitespace separated list of additional subnet ids or availability zones.
+	 */
+	public static List<InstancePlacement> parse(String zone, String subnetId, String additionalPlacements) {
+		List<InstancePlacement> placements = new ArrayList<InstancePlacement>();
+		placements.add(new InstancePlacement(zone, subnetId));
+		for (String placement : StringUtils.split(StringUtils.defaultString(additionalPlacements))) {
+			if (placement.startsWith("subnet-"))
+				placements.add(new InstancePlacement(null, placement));
+			else
+				placements.add(new InstancePlacement(placement, null));
+		}
+		return placements;
+	}
+
+	public String getZone() {
+		return zone;
+	}
+
+	public String getSubnetId() {
+		return subnetId;
+	}
+
+	public boolean hasSubnet() {
+		return subnetId != null;
+	}
+
+	public void applyTo(RunInstancesRequest request) {
+		if (zone != null)
+			request.setPlacement(new Placement(zone));
+		if (subnetId != null)
+			request.setSubnetId(subnetId);
+	}
+
+	@Override
+	public String toString() {
+		if (zone != null && subnetId != null)
+			return zone + "/" + subnetId;
+		if (zone != null)
+			return zone;
+		if (subnetId != null)
+			return subnetId;
+		return "default placement";
+	}
+}
@@ -0,0 +1,36 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+
+/**
+ * The instance type a slave of an axis template was launched with. Kept with
+ * the node so it survives restarts; not offered on the node configuration
+ * page, saving that page drops it.
+ */
+public class InstanceTypeNodeProperty extends NodeProperty<Node> {
+	private final String instanceType;
+
+	public InstanceTypeNodeProperty(String instanceType) {
+		this.instanceType = instanceType;
+	}
+
+	public String getInstanceType() {
+		return instanceType;
+	}
+
+	@Extension
+	public static class DescriptorImpl extends NodePropertyDescriptor {
+		@Override
+		public boolean isApplicable(Class<? extends Node> targetType) {
+			return false;
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "EC2 instance type";
+		}
+	}
+}
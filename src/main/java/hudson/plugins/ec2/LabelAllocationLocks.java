@@ -0,0 +1,34 @@
+package hudson.plugins.ec2;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks serializing the selection of idle slaves for an axis label.
+ *
+ * Labels are striped over a fixed number of locks: allocations for unrelated
+ * labels rarely wait on each other, and the locks don't pile up as labels come
+ * and go.
+ */
+public final class LabelAllocationLocks {
+	static final int STRIPES = Integer.getInteger(LabelAllocationLocks.class.getName() + ".stripes", 64);
+
+	private static final LabelAllocationLocks instance = new LabelAllocationLocks(STRIPES);
+
+	private final ReentrantLock[] locks;
+
+	LabelAllocationLocks(int stripes) {
+		locks = new ReentrantLock[Math.max(1, stripes)];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new ReentrantLock();
+	}
+
+	public static LabelAllocationLocks get() {
+		return instance;
+	}
+
+	public ReentrantLock lockFor(String ec2Label) {
+		int hash = ec2Label.hashCode();
+		hash ^= hash >>> 16;
+		return locks[(hash & Integer.MAX_VALUE) % locks.length];
+	}
+}
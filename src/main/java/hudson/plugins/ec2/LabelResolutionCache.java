@@ -0,0 +1,102 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.labels.LabelAtom;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.Cloud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jenkins.model.Jenkins;
+
+/**
+ * The axis templates, and through them the clouds, serving each ec2 label, in
+ * configuration order.
+ *
+ * Resolved by walking the clouds the first time a label is asked for, then
+ * served from memory until the cloud configuration changes. Labels no cloud
+ * serves are not remembered.
+ */
+public final class LabelResolutionCache {
+	private static final LabelResolutionCache instance = new LabelResolutionCache();
+
+	private final ConcurrentMap<String, List<Ec2AxisSlaveTemplate>> templatesByLabel = new ConcurrentHashMap<String, List<Ec2AxisSlaveTemplate>>();
+
+	LabelResolutionCache() {
+	}
+
+	public static LabelResolutionCache get() {
+		return instance;
+	}
+
+	/**
+	 * The template of the first axis cloud, in configuration order, serving the
+	 * label, or null if none does.
+	 */
+	public Ec2AxisSlaveTemplate resolve(String ec2Label) {
+		List<Ec2AxisSlaveTemplate> templates = resolveAll(ec2Label);
+		return templates.isEmpty() ? null : templates.get(0);
+	}
+
+	/**
+	 * The templates of every axis cloud serving the label, in configuration
+	 * order, which is the order allocations spill over from one to the next.
+	 */
+	public List<Ec2AxisSlaveTemplate> resolveAll(String ec2Label) {
+		List<Ec2AxisSlaveTemplate> templates = templatesByLabel.get(ec2Label);
+		if (templates != null)
+			return templates;
+		templates = findTemplates(ec2Label, Jenkins.getInstance().clouds);
+		if (!templates.isEmpty())
+			templatesByLabel.put(ec2Label, templates);
+		return templates;
+	}
+
+	public static Ec2AxisSlaveTemplate findTemplate(String ec2Label, Iterable<Cloud> clouds) {
+		LabelAtom label = new LabelAtom(ec2Label);
+		for (Cloud cloud : clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			Ec2AxisSlaveTemplate template = ((EC2AxisCloud) cloud).getTemplateGivenLabel(label);
+			if (template != null)
+				return template;
+		}
+		return null;
+	}
+
+	public static List<Ec2AxisSlaveTemplate> findTemplates(String ec2Label, Iterable<Cloud> clouds) {
+		LabelAtom label = new LabelAtom(ec2Label);
+		List<Ec2AxisSlaveTemplate> templates = new ArrayList<Ec2AxisSlaveTemplate>();
+		for (Cloud cloud : clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			Ec2AxisSlaveTemplate template = ((EC2AxisCloud) cloud).getTemplateGivenLabel(label);
+			if (template != null)
+				templates.add(template);
+		}
+		return Collections.unmodifiableList(templates);
+	}
+
+	public void invalidateAll() {
+		templatesByLabel.clear();
+	}
+
+	/**
+	 * Forgets every resolution when the global configuration, clouds included,
+	 * is saved.
+	 */
+	@Extension
+	public static class Invalidator extends SaveableListener {
+		@Override
+		public void onChange(Saveable o, XmlFile file) {
+			if (o instanceof Jenkins)
+				get().invalidateAll();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Executor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leases holding idle slaves picked by an allocation for the cells of the
+ * build that picked them.
+ *
+ * While a slave is leased, the queue only hands it the cell bound to its name.
+ * The lease ends when that cell starts, when the build that took it completes,
+ * or when it expires.
+ */
+public final class NodeReservations {
+	static final long LEASE_MILLIS = TimeUnit.MINUTES.toMillis(
+			Integer.getInteger(NodeReservations.class.getName() + ".leaseMinutes", 60));
+
+	private static final NodeReservations instance = new NodeReservations(LEASE_MILLIS);
+
+	private final ConcurrentMap<String, Lease> leasesByNodeName = new ConcurrentHashMap<String, Lease>();
+	private final long leaseMillis;
+
+	static final class Lease {
+		final String nodeName;
+		final String projectFullName;
+		final String buildId;
+		final long expiresAt;
+
+		Lease(String nodeName, String projectFullName, String buildId, long expiresAt) {
+			this.nodeName = nodeName;
+			this.projectFullName = projectFullName;
+			this.buildId = buildId;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+
+		/**
+		 * Whether the item is the cell the slave is held for: a configuration of
+		 * the owning project, bound to the slave by name.
+		 */
+		boolean admits(Queue.Item item) {
+			Label assignedLabel = item.getAssignedLabel();
+			if (assignedLabel == null || !assignedLabel.getName().equals(nodeName))
+				return false;
+			if (projectFullName == null)
+				return true;
+			return item.task instanceof MatrixConfiguration
+				&& ((MatrixConfiguration) item.task).getParent().getFullName().equals(projectFullName);
+		}
+	}
+
+	NodeReservations(long leaseMillis) {
+		this.leaseMillis = leaseMillis;
+	}
+
+	public static NodeReservations get() {
+		return instance;
+	}
+
+	/**
+	 * Leases the slave to the given build, or to whoever binds a cell to it if
+	 * owner is null. Fails if the slave is already leased.
+	 */
+	public boolean tryReserve(String nodeName, Run<?, ?> owner) {
+		Lease lease = new Lease(nodeName,
+				owner == null ? null : owner.getParent().getFullName(),
+				owner == null ? null : owner.getExternalizableId(),
+				System.currentTimeMillis() + leaseMillis);
+		Lease current = leasesByNodeName.putIfAbsent(nodeName, lease);
+		if (current == null)
+			return true;
+		if (!current.isExpired(System.currentTimeMillis()))
+			return false;
+		return leasesByNodeName.replace(nodeName, current, lease);
+	}
+
+	public boolean isReserved(String nodeName) {
+		return getLease(nodeName) != null;
+	}
+
+	public void release(String nodeName) {
+		leasesByNodeName.remove(nodeName);
+	}
+
+	public int getReservedCount() {
+		return leasesByNodeName.size();
+	}
+
+	Lease getLease(String nodeName) {
+		Lease lease = leasesByNodeName.get(nodeName);
+		if (lease == null || !lease.isExpired(System.currentTimeMillis()))
+			return lease;
+		leasesByNodeName.remove(nodeName, lease);
+		return null;
+	}
+
+	/**
+	 * Ends the leases taken by the build, returning the names of their slaves.
+	 */
+	List<String> releaseAllOf(String buildId) {
+		List<String> released = new ArrayList<String>();
+		Iterator<Lease> it = leasesByNodeName.values().iterator();
+		while (it.hasNext()) {
+			Lease lease = it.next();
+			if (buildId.equals(lease.buildId)) {
+				it.remove();
+				released.add(lease.nodeName);
+			}
+		}
+		return released;
+	}
+
+	private static final class HeldForCell extends CauseOfBlockage {
+		private final Lease lease;
+
+		HeldForCell(Lease lease) {
+			this.lease = lease;
+		}
+
+		@Override
+		public String getShortDescription() {
+			String holder = lease.buildId == null ? "a matrix cell" : lease.buildId;
+			return lease.nodeName + " is reserved for " + holder;
+		}
+	}
+
+	@Extension
+	public static class Dispatcher extends QueueTaskDispatcher {
+		@Override
+		public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+			Lease lease = get().getLease(node.getNodeName());
+			if (lease == null || lease.admits(item))
+				return null;
+			return new HeldForCell(lease);
+		}
+	}
+
+	@Extension
+	public static class Releaser extends RunListener<Run<?, ?>> {
+		@Override
+		public void onStarted(Run<?, ?> run, TaskListener listener) {
+			Executor executor = run.getExecutor();
+			if (executor != null && executor.getOwner().getNode() != null)
+				get().release(executor.getOwner().getNode().getNodeName());
+		}
+
+		@Override
+		public void onCompleted(Run<?, ?> run, TaskListener listener) {
+			for (String nodeName : get().releaseAllOf(run.getExternalizableId()))
+				AxisIdleNodeIndex.get().reindex(nodeName);
+		}
+	}
+}
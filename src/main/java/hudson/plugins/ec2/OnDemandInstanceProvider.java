@@ -2,17 +2,18 @@ package hudson.plugins.ec2;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
-import hudson.model.Hudson;
 import hudson.model.Node;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import jenkins.model.Jenkins;
 
@@ -22,115 +23,399 @@ import org.apache.commons.lang.StringUtils;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusRequest;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusResult;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Filter;
-import com.amazonaws.services.ec2.model.Image;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.InstanceStatus;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.KeyPair;
-import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.StartInstancesRequest;
 import com.amazonaws.services.ec2.model.StartInstancesResult;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
 import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 
 public class OnDemandInstanceProvider {
+	static final String WARM_POOL_TAG = "ec2-cloud-axis-warm-pool";
+	private static final int START_INSTANCES_BATCH_SIZE = 100;
+	/* warm instances that could not be bootstrapped by then are terminated */
+	private static final long WARM_POOL_BOOTSTRAP_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	private static final String STATUS_OK = "ok";
+
 	private String ami;
 	private String description;
 	private KeyPair keyPair;
 	private InstanceType type;
-	private String zone;
-	private String subnetId;
+	private List<InstancePlacement> placements;
 	private Set<String> securityGroupSet;
 	private List<String> ec2SecurityGroups;
 	private List<EC2Tag> tags;
 	private Ec2AxisSlaveTemplate slaveTemplate;
 	private EC2Cloud cloud;
 	private String userData;
+	private String instanceLabel;
+	private String remoteAdmin;
 	private EC2Logger logger;
 	
 	public OnDemandInstanceProvider(
 			KeyPair keyPair, 
 			List<String> ec2SecurityGroups,
-			Ec2AxisSlaveTemplate slaveTemplate,
+			ProvisioningSpec spec,
 			EC2Logger logger) 
 	{
 		this.keyPair = keyPair;
 		this.ec2SecurityGroups = ec2SecurityGroups;
-		this.slaveTemplate = slaveTemplate;
+		this.slaveTemplate = spec.getTemplate();
 		this.logger = logger;
 		
-		ami = slaveTemplate.ami;
-		description = slaveTemplate.description;
-		type = slaveTemplate.type;
-		zone = slaveTemplate.zone;
-		subnetId = slaveTemplate.subnetId;
-		securityGroupSet = slaveTemplate.getSecurityGroupSet();
-		tags = slaveTemplate.getTags();
-		cloud = slaveTemplate.getParent();
-		userData = slaveTemplate.userData;
+		ami = spec.getAmi();
+		description = spec.getDescription();
+		type = spec.getType();
+		placements = spec.getPlacements();
+		securityGroupSet = spec.getSecurityGroupSet();
+		tags = spec.getTags();
+		cloud = spec.getCloud();
+		userData = spec.getUserData();
+		instanceLabel = spec.getInstanceLabel();
+		remoteAdmin = spec.getRemoteAdmin();
 	}
 	
 	public List<EC2AbstractSlave> provisionMultiple(int numberOfInstancesToCreate) 
 			throws AmazonClientException, IOException {
+		return provisionMultiple(numberOfInstancesToCreate, numberOfInstancesToCreate);
+	}
+
+	/**
+	 * Provisions up to numberOfInstancesToCreate instances, failing only when less
+	 * than minimumNumberOfInstances could be obtained.
+	 */
+	public List<EC2AbstractSlave> provisionMultiple(int numberOfInstancesToCreate, int minimumNumberOfInstances) 
+			throws AmazonClientException, IOException {
 		
         AmazonEC2 ec2 = AmazonEC2Insistent.wrap(cloud.connect(), logger);
 
         logger.println("Launching " + ami + " for template " + description);
-        final List<EC2AbstractSlave> allocatedSlaves = (List<EC2AbstractSlave>) requestStoppedInstancesToAllocation(ec2, keyPair);
+        final List<EC2AbstractSlave> allocatedSlaves = requestStoppedInstancesToAllocation(ec2, keyPair, numberOfInstancesToCreate);
         int instancesRemainingToCreate = numberOfInstancesToCreate - allocatedSlaves.size();
-        if (instancesRemainingToCreate == 0)
+        if (instancesRemainingToCreate <= 0) {
+        	OnDemandSlaveLauncher.launchSlaves(cloud, allocatedSlaves, logger);
         	return allocatedSlaves;
+        }
         
-    	HashSet<Tag> inst_tags = new HashSet<Tag>();
-    	if (tags != null && !tags.isEmpty()) {
-    		for(EC2Tag t : tags) {
-    			inst_tags.add(new Tag(t.getName(), t.getValue()));
-    		}
-    	}
+    	HashSet<Tag> inst_tags = getTemplateTags();
     	
-    	RunInstancesRequest runInstanceRequest = createRunInstanceRequest(ec2, instancesRemainingToCreate, keyPair);
-        List<Instance> createdInstances = ec2.runInstances(runInstanceRequest).getReservation().getInstances();
+        int minimumInstancesRemaining = Math.max(0, minimumNumberOfInstances - allocatedSlaves.size());
+        List<Instance> createdInstances = launchAcrossPlacements(ec2, instancesRemainingToCreate, minimumInstancesRemaining);
         logger.println("Sent instance creation request. Allocated instance count : " + createdInstances.size() );
-        SynchronousSafeTask syncSafeTask = new SynchronousSafeTask();
-        for (final Instance inst : createdInstances) {
-        	if (inst_tags.size() > 0) {
-        		slaveTemplate.updateRemoteTags(ec2, inst_tags, inst.getInstanceId());
-        		inst.setTags(inst_tags);
-        	}
-        	logger.println("Creating instance: "+inst.getInstanceId());
-        	
-        	syncSafeTask.invoke(new Runnable() {  @Override public void run() {
-				EC2OndemandSlave newOndemandSlave = newOnDemandSlaveOrCry(inst);
-				logger.println("Slave "+ newOndemandSlave.getDisplayName() +" created for instance "+inst.getInstanceId());
-				allocatedSlaves.add(newOndemandSlave);
-				try {
-					Jenkins.getInstance().addNode(newOndemandSlave);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-			}});
+        if (inst_tags.size() > 0) 
+        	tagInstances(ec2, createdInstances, inst_tags);
+        
+        List<EC2AbstractSlave> newSlaves = new ArrayList<EC2AbstractSlave>();
+        for (Instance inst : createdInstances) {
+        	EC2OndemandSlave newOndemandSlave = newOnDemandSlaveOrCry(inst);
+        	logger.println("Slave "+ newOndemandSlave.getDisplayName() +" created for instance "+inst.getInstanceId());
+        	newSlaves.add(newOndemandSlave);
 		}
-        syncSafeTask.waitCompletion();
+        Utils.addNodesAndWait(newSlaves);
+        allocatedSlaves.addAll(newSlaves);
         
-        OnDemandSlaveLauncher.launchSlaves(allocatedSlaves, logger);
+        OnDemandSlaveLauncher.launchSlaves(cloud, allocatedSlaves, logger);
         return allocatedSlaves;
     }
 
 	private List<EC2AbstractSlave> requestStoppedInstancesToAllocation(
-			AmazonEC2 ec2, KeyPair keyPair) {
-		List<EC2AbstractSlave> slavesForExistingStoppedInstances = new LinkedList<EC2AbstractSlave>();
+			AmazonEC2 ec2, KeyPair keyPair, int maxInstancesToStart) {
+		List<EC2AbstractSlave> slavesForExistingStoppedInstances = new ArrayList<EC2AbstractSlave>();
+		
+		List<Instance> instances = describeTemplateInstances(ec2, false, InstanceStateName.Stopped.toString());
+		if (instances.isEmpty()) 
+			return slavesForExistingStoppedInstances;
+		if (instances.size() > maxInstancesToStart)
+			instances = instances.subList(0, maxInstancesToStart);
+
+		for (int i = 0; i < instances.size(); i += START_INSTANCES_BATCH_SIZE) 
+			startStoppedInstances(ec2, instances.subList(i, Math.min(i + START_INSTANCES_BATCH_SIZE, instances.size())), description, logger);
+
+		Map<String, EC2AbstractSlave> slavesByInstanceId = indexSlavesByInstanceId();
+		List<EC2AbstractSlave> newSlaves = new ArrayList<EC2AbstractSlave>();
+		for (Instance existingInstance : instances) {
+			EC2AbstractSlave ec2Node = slavesByInstanceId.get(existingInstance.getInstanceId());
+			if (ec2Node != null) {
+				logger.println("Found existing corresponding: "+ec2Node);
+				slavesForExistingStoppedInstances.add(ec2Node);
+				continue;
+			}
+			
+			logger.println("Creating new slave for existing instance: "+existingInstance.getInstanceId());
+			newSlaves.add(newOnDemandSlaveOrCry(existingInstance));
+		}
+		Utils.addNodesAndWait(newSlaves);
+		slavesForExistingStoppedInstances.addAll(newSlaves);
+		
+		return slavesForExistingStoppedInstances;
+	}
+
+	/**
+	 * Starts stopped instances of the template. The ones in the warm pool leave
+	 * it first, so {@link #replenishWarmPool(int)} never stops an instance about
+	 * to run a build, and go back to it if they could not be started.
+	 */
+	static void startStoppedInstances(AmazonEC2 ec2, List<Instance> instances, String description, EC2Logger logger) {
+		List<String> instanceIds = new ArrayList<String>();
+		List<String> warmInstanceIds = new ArrayList<String>();
+		for (Instance instance : instances) {
+			instanceIds.add(instance.getInstanceId());
+			if (isInWarmPool(instance))
+				warmInstanceIds.add(instance.getInstanceId());
+		}
+		if (!warmInstanceIds.isEmpty())
+			leaveWarmPool(ec2, warmInstanceIds);
+		try {
+			StartInstancesResult siResult = ec2.startInstances(new StartInstancesRequest(instanceIds));
+			logger.println("Starting existing instances: " + StringUtils.join(instanceIds, ", ") + " result:" + siResult);
+		} catch (RuntimeException e) {
+			if (!warmInstanceIds.isEmpty())
+				rejoinWarmPool(ec2, warmInstanceIds, description, logger);
+			throw e;
+		}
+	}
+
+	private static boolean isInWarmPool(Instance instance) {
+		if (instance.getTags() == null)
+			return false;
+		for (Tag tag : instance.getTags()) {
+			if (WARM_POOL_TAG.equals(tag.getKey()))
+				return true;
+		}
+		return false;
+	}
+
+	private static void rejoinWarmPool(AmazonEC2 ec2, List<String> instanceIds, String description, EC2Logger logger) {
+		try {
+			ec2.createTags(new CreateTagsRequest(instanceIds, Arrays.asList(new Tag(WARM_POOL_TAG, description))));
+		} catch (RuntimeException e) {
+			logger.println("Failed to put instances " + StringUtils.join(instanceIds, ", ") + " back in the warm pool: " + e.getMessage());
+		}
+	}
+
+	private Map<String, EC2AbstractSlave> indexSlavesByInstanceId() {
+		Map<String, EC2AbstractSlave> slavesByInstanceId = new HashMap<String, EC2AbstractSlave>();
+		for (Node node : Jenkins.getInstance().getNodes()) {
+			if (node instanceof EC2AbstractSlave) {
+				EC2AbstractSlave ec2Node = (EC2AbstractSlave) node;
+				slavesByInstanceId.put(ec2Node.getInstanceId(), ec2Node);
+			}
+		}
+		return slavesByInstanceId;
+	}
+
+	/**
+	 * Keeps warmPoolSize instances of this template launched, bootstrapped and 
+	 * stopped, ready to be started by {@link #provisionMultiple(int)}. 
+	 * 
+	 * Newly launched warm instances are bootstrapped and stopped on a later pass,
+	 * once they pass their status checks. Bootstrapping runs the init script of
+	 * the template, so the launcher skips it when the instance is started for a
+	 * build; the agent itself is still copied and started on connect.
+	 */
+	public void replenishWarmPool(int warmPoolSize) {
+		AmazonEC2 ec2 = AmazonEC2Insistent.wrap(cloud.connect(), logger);
+		
+		List<Instance> stopped = describeTemplateInstances(ec2, false, 
+				InstanceStateName.Stopped.toString(), InstanceStateName.Stopping.toString());
+		List<Instance> booting = describeTemplateInstances(ec2, true,
+				InstanceStateName.Pending.toString(), InstanceStateName.Running.toString());
+		
+		List<String> bootstrappedInstanceIds = new ArrayList<String>();
+		for (Instance instance : passingStatusChecks(ec2, booting)) {
+			if (bootstrapWarmInstance(ec2, instance))
+				bootstrappedInstanceIds.add(instance.getInstanceId());
+		}
+		if (bootstrappedInstanceIds.size() > 0) {
+			logger.println("Stopping bootstrapped warm pool instances: " + StringUtils.join(bootstrappedInstanceIds, ", "));
+			ec2.stopInstances(new StopInstancesRequest(bootstrappedInstanceIds));
+		}
+		
+		int missing = warmPoolSize - stopped.size() - booting.size();
+		if (missing <= 0)
+			return;
+		
+		logger.println("Launching " + missing + " warm pool instances of " + ami + " for template " + description);
+		CapacityFanOut.Result<Instance> result = fanOutAcrossPlacements(ec2, missing);
+		if (result.getShortfall() > 0)
+			logger.println("Warm pool for template " + description + " is short of " + result.getShortfall() + " instances");
+		List<Instance> launched = result.getLaunched();
+		if (launched.isEmpty())
+			return;
+		
+		HashSet<Tag> warmPoolTags = getTemplateTags();
+		warmPoolTags.add(new Tag(WARM_POOL_TAG, description));
+		try {
+			tagInstances(ec2, launched, warmPoolTags);
+		} catch (RuntimeException e) {
+			/* untagged, they would never be stopped nor reused */
+			terminate(ec2, launched);
+			throw e;
+		}
+	}
+
+	/**
+	 * The running instances among the given ones whose system and instance 
+	 * status checks passed.
+	 */
+	private static List<Instance> passingStatusChecks(AmazonEC2 ec2, List<Instance> instances) {
+		Map<String, Instance> running = new HashMap<String, Instance>();
+		for (Instance instance : instances) {
+			if (instance.getState().getName().equals(InstanceStateName.Running.toString()))
+				running.put(instance.getInstanceId(), instance);
+		}
+		List<Instance> passing = new ArrayList<Instance>();
+		if (running.isEmpty())
+			return passing;
+		DescribeInstanceStatusResult result = ec2.describeInstanceStatus(
+				new DescribeInstanceStatusRequest().withInstanceIds(running.keySet()));
+		for (InstanceStatus status : result.getInstanceStatuses()) {
+			if (STATUS_OK.equals(status.getSystemStatus().getStatus()) && STATUS_OK.equals(status.getInstanceStatus().getStatus()))
+				passing.add(running.get(status.getInstanceId()));
+		}
+		return passing;
+	}
+
+	/**
+	 * Runs the init script of the template on a booted warm instance. Returns 
+	 * false to try again on a later pass. Instances whose init script fails, or
+	 * that could not be reached for too long, are terminated.
+	 */
+	private boolean bootstrapWarmInstance(AmazonEC2 ec2, Instance instance) {
+		String initScript = slaveTemplate.initScript;
+		if (initScript == null || initScript.trim().isEmpty())
+			return true;
+		SshAgentBootstrap bootstrap = new SshAgentBootstrap(instance.getPrivateIpAddress(), remoteAdmin,
+				keyPair.getKeyMaterial().toCharArray(), logger);
+		try {
+			bootstrap.runInitScript(initScript, slaveTemplate.rootCommandPrefix);
+			return true;
+		} catch (SshAgentBootstrap.StepFailedException e) {
+			logger.println("Init script failed on warm pool instance " + instance.getInstanceId() + ": " + e.getMessage());
+		} catch (IOException e) {
+			logger.println("Could not bootstrap warm pool instance " + instance.getInstanceId() + " yet: " + e.getMessage());
+			if (instance.getLaunchTime().getTime() > System.currentTimeMillis() - WARM_POOL_BOOTSTRAP_TIMEOUT_MILLIS)
+				return false;
+		}
+		terminate(ec2, Arrays.asList(instance));
+		return false;
+	}
+
+	/**
+	 * Tags all the given instances with a single CreateTags call.
+	 */
+	private void tagInstances(AmazonEC2 ec2, List<Instance> instances, HashSet<Tag> instanceTags) {
+		List<String> instanceIds = new ArrayList<String>();
+		for (Instance instance : instances) {
+			instanceIds.add(instance.getInstanceId());
+			instance.setTags(instanceTags);
+		}
+		slaveTemplate.updateRemoteTags(ec2, instanceTags, instanceIds.toArray(new String[instanceIds.size()]));
+	}
+
+	private List<Instance> launchAcrossPlacements(AmazonEC2 ec2, int numberOfInstancesToCreate, int minimumNumberOfInstances) {
+		CapacityFanOut.Result<Instance> result = fanOutAcrossPlacements(ec2, numberOfInstancesToCreate);
+		List<Instance> launched = result.getLaunched();
+		if (launched.size() >= minimumNumberOfInstances) {
+			if (result.getShortfall() > 0)
+				logger.println("Partially fulfilled: launched " + launched.size() + " of " + numberOfInstancesToCreate + " instances of " + ami);
+			if (result.getFailure() != null) {
+				logger.println("Launching instances of " + ami + " failed: " + result.getFailure().getMessage());
+				logger.printStackTrace(result.getFailure());
+			}
+			return launched;
+		}
+		
+		terminate(ec2, launched);
+		throw new AmazonClientException("Could only launch " + launched.size() + " of " + numberOfInstancesToCreate
+				+ " instances of " + ami + " across " + placements, result.getFailure());
+	}
+
+	private CapacityFanOut.Result<Instance> fanOutAcrossPlacements(final AmazonEC2 ec2, int numberOfInstancesToCreate) {
+		RunInstancesTarget.RequestFactory requestFactory = new RunInstancesTarget.RequestFactory() {
+			@Override
+			public RunInstancesRequest create(int count, InstancePlacement placement) {
+				return createRunInstanceRequest(ec2, count, keyPair, placement);
+			}
+		};
+		List<RunInstancesTarget> targets = new ArrayList<RunInstancesTarget>();
+		for (InstancePlacement placement : placements) 
+			targets.add(new RunInstancesTarget(ec2, placement, requestFactory));
 		
+		return new CapacityFanOut<Instance>(logger).launch(targets, numberOfInstancesToCreate);
+	}
+
+	private void terminate(AmazonEC2 ec2, List<Instance> instances) {
+		if (instances.isEmpty())
+			return;
+		List<String> instanceIds = new ArrayList<String>();
+		for (Instance instance : instances) 
+			instanceIds.add(instance.getInstanceId());
+		logger.println("Terminating instances: " + StringUtils.join(instanceIds, ", "));
+		ec2.terminateInstances(new TerminateInstancesRequest(instanceIds));
+	}
+
+	private List<Instance> describeTemplateInstances(AmazonEC2 ec2, boolean warmPoolOnly, String... states) {
+		List<Filter> filters = createTemplateInstanceFilters(keyPair);
+		filters.add(new Filter("instance-state-name").withValues(states));
+		if (warmPoolOnly)
+			filters.add(new Filter("tag-key").withValues(WARM_POOL_TAG));
+		
+		List<Instance> instances = new ArrayList<Instance>();
+		DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(filters);
+		do {
+			DescribeInstancesResult result = ec2.describeInstances(request);
+			for (Reservation reservation : result.getReservations()) 
+				instances.addAll(reservation.getInstances());
+			request.setNextToken(result.getNextToken());
+		} while (request.getNextToken() != null);
+		return instances;
+	}
+
+	private static void leaveWarmPool(AmazonEC2 ec2, List<String> instanceIds) {
+		ec2.deleteTags(new DeleteTagsRequest()
+			.withResources(instanceIds)
+			.withTags(new Tag().withKey(WARM_POOL_TAG)));
+	}
+
+	private HashSet<Tag> getTemplateTags() {
+		HashSet<Tag> inst_tags = new HashSet<Tag>();
+		if (tags != null && !tags.isEmpty()) {
+			for(EC2Tag t : tags) {
+				inst_tags.add(new Tag(t.getName(), t.getValue()));
+			}
+		}
+		return inst_tags;
+	}
+
+	private List<Filter> createTemplateInstanceFilters(KeyPair keyPair) {
 		List<Filter> describeInstanceFilters = new ArrayList<Filter>();
 		describeInstanceFilters.add(new Filter("image-id").withValues(ami));
-		if (StringUtils.isNotBlank(zone)) {
-		    describeInstanceFilters.add(new Filter("availability-zone").withValues(zone));
+		List<String> zones = new ArrayList<String>();
+		List<String> subnetIds = new ArrayList<String>();
+		for (InstancePlacement placement : placements) {
+			zones.add(placement.getZone());
+			subnetIds.add(placement.getSubnetId());
+		}
+		if (!zones.contains(null)) {
+		    describeInstanceFilters.add(new Filter("availability-zone").withValues(zones));
 		}
 
-		if (StringUtils.isNotBlank(subnetId)) {
-		   describeInstanceFilters.add(new Filter("subnet-id").withValues(subnetId));
+		if (!subnetIds.contains(null)) {
+		   describeInstanceFilters.add(new Filter("subnet-id").withValues(subnetIds));
 
 		   /* If we have a subnet ID then we can only use VPC security groups */
 		   if (!securityGroupSet.isEmpty()) {
@@ -154,49 +439,13 @@ public class OnDemandInstanceProvider {
 		        describeInstanceFilters.add(new Filter("tag:"+t.getName()).withValues(t.getValue()));
 		    }
 		}
-		
-		DescribeInstancesRequest diRequest = new DescribeInstancesRequest();
-		describeInstanceFilters.add(new Filter("instance-state-name").withValues(InstanceStateName.Stopped.toString(), 
-				InstanceStateName.Stopping.toString()));
-		diRequest.setFilters(describeInstanceFilters);
-
-		DescribeInstancesResult diResult = ec2.describeInstances(diRequest);
-		if (diResult.getReservations().size() == 0) 
-			return slavesForExistingStoppedInstances;
-		List<Instance> instances = diResult.getReservations().get(0).getInstances();
-
-		for (Instance existingInstance : instances) {
-			logger.println("Found existing stopped instance: " + existingInstance);
-			List<String> instancesNames = new ArrayList<String>();
-			instancesNames.add(existingInstance.getInstanceId());
-			StartInstancesRequest siRequest = new StartInstancesRequest(instancesNames);
-			StartInstancesResult siResult = ec2.startInstances(siRequest);
-			logger.println("Starting existing instance: "+existingInstance+ " result:"+siResult);
-
-			List<Node> nodes = Hudson.getInstance().getNodes();
-			for (int i = 0, len = nodes.size(); i < len; i++) {
-				if (!(nodes.get(i) instanceof EC2AbstractSlave))
-					continue;
-				EC2AbstractSlave ec2Node = (EC2AbstractSlave) nodes.get(i);
-				if (ec2Node.getInstanceId().equals(existingInstance.getInstanceId())) {
-			        logger.println("Found existing corresponding: "+ec2Node);
-			        slavesForExistingStoppedInstances.add(ec2Node);
-				}
-			}
-			
-			// Existing slave not found 
-			logger.println("Creating new slave for existing instance: "+existingInstance);
-			EC2OndemandSlave ondemandSlave = newOnDemandSlaveOrCry(existingInstance);
-			slavesForExistingStoppedInstances.add(ondemandSlave);
-		}
-		
-		return slavesForExistingStoppedInstances;
+		return describeInstanceFilters;
 	}
 
 	private EC2OndemandSlave newOnDemandSlaveOrCry(Instance existingInstance) {
 		EC2OndemandSlave ondemandSlave;
 		try {
-			ondemandSlave = slaveTemplate.newOndemandSlave(existingInstance);
+			ondemandSlave = slaveTemplate.newOndemandSlave(existingInstance, instanceLabel);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		} 
@@ -215,17 +464,12 @@ public class OnDemandInstanceProvider {
 		return Base64.encodeBase64String(bytes);
         }
 
-	private RunInstancesRequest createRunInstanceRequest(AmazonEC2 ec2, int numberOfInstancesToCreate, KeyPair keyPair) 
+	private RunInstancesRequest createRunInstanceRequest(AmazonEC2 ec2, int numberOfInstancesToCreate, KeyPair keyPair, InstancePlacement placement) 
 	{
-		RunInstancesRequest runInstanceRequest = new RunInstancesRequest(ami, numberOfInstancesToCreate, numberOfInstancesToCreate);
-		setupDeviceMapping(runInstanceRequest);
-		if (StringUtils.isNotBlank(zone)) {
-			Placement placement = new Placement(zone);
-			runInstanceRequest.setPlacement(placement);
-		}
-		if (StringUtils.isNotBlank(subnetId)) {
-		   runInstanceRequest.setSubnetId(subnetId);
-
+		RunInstancesRequest runInstanceRequest = new RunInstancesRequest(ami, 1, numberOfInstancesToCreate);
+		setupDeviceMapping(ec2, runInstanceRequest);
+		placement.applyTo(runInstanceRequest);
+		if (placement.hasSubnet()) {
 		   if (!securityGroupSet.isEmpty()) {
 		      List<String> group_ids = ec2SecurityGroups;
 
@@ -245,8 +489,8 @@ public class OnDemandInstanceProvider {
 		return runInstanceRequest;
 	}
 	
-	private void setupDeviceMapping(RunInstancesRequest riRequest) {
-        final List<BlockDeviceMapping> oldDeviceMapping = getAmiBlockDeviceMappings();
+	private void setupDeviceMapping(AmazonEC2 ec2, RunInstancesRequest riRequest) {
+        final List<BlockDeviceMapping> oldDeviceMapping = getAmiBlockDeviceMappings(ec2);
 
         final Set<String> occupiedDevices = new HashSet<String>();
         for (final BlockDeviceMapping mapping: oldDeviceMapping ) {
@@ -277,13 +521,8 @@ public class OnDemandInstanceProvider {
         riRequest.withBlockDeviceMappings(newDeviceMapping);
     }
 	
-	private List<BlockDeviceMapping> getAmiBlockDeviceMappings() {
-		final AmazonEC2 ec2 = AmazonEC2Insistent.wrap(cloud.connect(), logger);
-		for (final Image image: ec2.describeImages().getImages()) {
-            if (ami.equals(image.getImageId())) {
-                return image.getBlockDeviceMappings();
-            }
-        }
-        throw new AmazonClientException("Unable to get AMI device mapping for " + ami);
+	private List<BlockDeviceMapping> getAmiBlockDeviceMappings(AmazonEC2 ec2) {
+		String region = ((AmazonEC2Cloud)cloud).getRegion();
+		return AmiMetadataCache.get().getBlockDeviceMappings(ec2, region, ami);
     }
 }
@@ -1,78 +1,198 @@
 package hudson.plugins.ec2;
 
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.slaves.Cloud;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.apache.commons.lang.time.StopWatch;
-
+/**
+ * Connects to freshly allocated slaves until they come online or time out.
+ *
+ * Launches never block a thread while waiting: each attempt checks the pending
+ * connection and schedules its next check on a small shared pool. At most
+ * {@link #MAX_CONCURRENT_LAUNCHES_PER_CLOUD} connections are in flight per cloud.
+ */
 final class OnDemandSlaveLauncher implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(OnDemandSlaveLauncher.class.getName());
+	static final int MAX_CONCURRENT_LAUNCHES_PER_CLOUD = Integer.getInteger(
+			OnDemandSlaveLauncher.class.getName() + ".maxConcurrentLaunchesPerCloud", 20);
+	private static final int LAUNCHER_THREADS = Integer.getInteger(
+			OnDemandSlaveLauncher.class.getName() + ".threads", 4);
+	private static final long RETRY_INTERVAL_SECS = 5;
+	private static final long POLL_INTERVAL_MILLIS = 500;
+
+	private static final ScheduledExecutorService scheduler = createScheduler();
+	private static final ConcurrentMap<String, Semaphore> launchSlotsByCloud = new ConcurrentHashMap<String, Semaphore>();
 
 	private final EC2Logger logger;
-	private EC2AbstractSlave slave;
+	private final EC2AbstractSlave slave;
+	private final Semaphore launchSlots;
+	private final Run<?, ?> owner;
+	private final long maxWait;
+	private Future<?> connectionPromise;
+	private boolean holdingSlot;
 	private Exception connectionFailed;
 
-	public OnDemandSlaveLauncher(EC2AbstractSlave slave, EC2Logger logger) {
+	OnDemandSlaveLauncher(EC2AbstractSlave slave, Semaphore launchSlots, Run<?, ?> owner, EC2Logger logger) {
 		this.slave = slave;
+		this.launchSlots = launchSlots;
+		this.owner = owner;
 		this.logger = logger;
+		this.maxWait = System.currentTimeMillis() + EC2AxisCloud.getTimeout(slave);
 	}
 
+	/**
+	 * Runs one step of the launch: starts a connection, checks the pending one, or
+	 * gives up. Always returns right away, rescheduling itself when needed. A step
+	 * that fails is retried like a failed connection, until the launch times out.
+	 */
 	@Override
 	public void run() {
-		long timeout = EC2AxisCloud.getTimeout(slave);
-		int retryIntervalSecs = 5;
-		long retryIntervalMillis = TimeUnit.SECONDS.toMillis(retryIntervalSecs);
-		long maxWait = System.currentTimeMillis() + timeout;
-		StopWatch stopwatch = new StopWatch();
-		stopwatch.start();
-		
-		Future<?> connectionPromise;
+		try {
+			step();
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Launch step of " + slave.getDisplayName() + " failed", e);
+			cancelConnection();
+			releaseSlot();
+			connectionFailed = e;
+			if (System.currentTimeMillis() < maxWait) {
+				logger.println("Launching " + slave.getDisplayName() + " failed: " + e.getMessage()
+						+ ". Will retry in " + RETRY_INTERVAL_SECS + " seconds");
+				reschedule(TimeUnit.SECONDS.toMillis(RETRY_INTERVAL_SECS));
+				return;
+			}
+			try {
+				giveUp();
+			} catch (RuntimeException giveUpFailure) {
+				LOGGER.log(Level.WARNING, "Failed to dispose of " + slave.getDisplayName(), giveUpFailure);
+			}
+		}
+	}
+
+	private void step() {
 		String displayName = slave.getDisplayName();
-		do {
-                        hudson.model.Computer computer = slave.toComputer();
-                        if (computer == null) {
-				logger.println("No node for " + displayName);
+		if (owner != null && !owner.isBuilding()) {
+			logger.println("Build " + owner + " was aborted, no longer launching " + displayName);
+			cancelConnection();
+			releaseSlot();
+			Utils.finishSlaveAndQueuedItems(slave);
+			return;
+		}
+
+		if (connectionPromise == null) {
+			if (System.currentTimeMillis() >= maxWait) {
+				giveUp();
 				return;
-                        }
-			connectionPromise = computer.connect(false);
-			if (waitForConnection(connectionPromise))
+			}
+			if (!launchSlots.tryAcquire()) {
+				reschedule(POLL_INTERVAL_MILLIS);
 				return;
-			try {
-				logger.println("Connection to " + displayName + " failed. Will retry in "+retryIntervalSecs+" seconds");
-				Thread.sleep(retryIntervalMillis);
-			} catch (InterruptedException e) {
-				logger.printStackTrace(e);
+			}
+			holdingSlot = true;
+			Computer computer = slave.toComputer();
+			if (computer == null) {
+				releaseSlot();
+				connectionFailed = new IllegalStateException("No computer for " + displayName);
+				logger.println("No computer for " + displayName + " yet. Will retry in " + RETRY_INTERVAL_SECS + " seconds");
+				reschedule(TimeUnit.SECONDS.toMillis(RETRY_INTERVAL_SECS));
 				return;
 			}
+			logger.println(String.format("Waiting %s (label %s) to come up", displayName, slave.getLabelString()));
+			connectionPromise = computer.connect(false);
 		}
-		while(System.currentTimeMillis() < maxWait);
-		Utils.finishSlaveAndQueuedItems(slave);
-		
-		logger.printStackTrace(new RuntimeException("Slave"+displayName+" failed to come up after " + timeout + " ms",connectionFailed));
+
+		if (!connectionPromise.isDone()) {
+			if (System.currentTimeMillis() >= maxWait) {
+				cancelConnection();
+				releaseSlot();
+				giveUp();
+				return;
+			}
+			reschedule(POLL_INTERVAL_MILLIS);
+			return;
+		}
+
+		Future<?> completed = connectionPromise;
+		releaseSlot();
+		if (connected(completed))
+			return;
+		logger.println("Connection to " + displayName + " failed. Will retry in " + RETRY_INTERVAL_SECS + " seconds");
+		reschedule(TimeUnit.SECONDS.toMillis(RETRY_INTERVAL_SECS));
 	}
 
-	private boolean waitForConnection(Future<?> connectionPromise) {
-		logger.println( String.format("Waiting %s (label %s) to come up", slave.getDisplayName(), slave.getLabelString()));
-		
+	private boolean connected(Future<?> completed) {
 		try {
-			connectionPromise.get();
-			logger.println(String.format("Slave %s (label %s) is online", 
+			completed.get();
+			logger.println(String.format("Slave %s (label %s) is online",
 					slave.getDisplayName(),
 					slave.getLabelString()));
 			return true;
-		}catch(Exception e) {
-			logger.println("Slave '"+slave.getDisplayName()+"' with label '"+slave.getLabelString()+"' failed to connect."
-					+ "\n"
-					+ "The instance is probably still initializing."
-					);
+		} catch (InterruptedException e) {
+			connectionFailed = e;
+		} catch (ExecutionException e) {
+			connectionFailed = e;
+		} catch (RuntimeException e) {
 			connectionFailed = e;
-			return false;
 		}
+		logger.println("Slave '" + slave.getDisplayName() + "' with label '" + slave.getLabelString() + "' failed to connect."
+				+ "\n"
+				+ "The instance is probably still initializing.");
+		return false;
 	}
 
-	public static void launchSlaves(List<EC2AbstractSlave> allocatedSlaves, EC2Logger logger2) {
-		for (EC2AbstractSlave slaveToLaunch : allocatedSlaves) {
-			new Thread(new OnDemandSlaveLauncher(slaveToLaunch, logger2)).start();
-		}
+	private void giveUp() {
+		Utils.finishSlaveAndQueuedItems(slave);
+		logger.printStackTrace(new RuntimeException("Slave" + slave.getDisplayName() + " failed to come up after "
+				+ EC2AxisCloud.getTimeout(slave) + " ms", connectionFailed));
+	}
+
+	private void cancelConnection() {
+		if (connectionPromise != null && !connectionPromise.isDone())
+			connectionPromise.cancel(true);
+	}
+
+	private void releaseSlot() {
+		connectionPromise = null;
+		if (!holdingSlot)
+			return;
+		holdingSlot = false;
+		launchSlots.release();
+	}
+
+	private void reschedule(long delayMillis) {
+		scheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public static void launchSlaves(Cloud cloud, List<EC2AbstractSlave> allocatedSlaves, EC2Logger logger) {
+		Semaphore launchSlots = launchSlotsFor(cloud);
+		Run<?, ?> owner = logger.getBuild();
+		for (EC2AbstractSlave slaveToLaunch : allocatedSlaves)
+			scheduler.execute(new OnDemandSlaveLauncher(slaveToLaunch, launchSlots, owner, logger));
+	}
+
+	private static Semaphore launchSlotsFor(Cloud cloud) {
+		Semaphore created = new Semaphore(MAX_CONCURRENT_LAUNCHES_PER_CLOUD);
+		Semaphore existing = launchSlotsByCloud.putIfAbsent(cloud.name, created);
+		return existing != null ? existing : created;
+	}
+
+	private static ScheduledExecutorService createScheduler() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(LAUNCHER_THREADS,
+				new NamingThreadFactory(new DaemonThreadFactory(), "EC2 Axis slave launcher"));
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
 	}
 }
@@ -0,0 +1,114 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Provisions axis slaves shortly before the hours the {@link DemandHistory}
+ * expects a label to be asked for them, up to the maxPredictiveSlaves of its
+ * template, so the allocations of that hour find them idle. Does nothing
+ * while no template sets maxPredictiveSlaves.
+ */
+@Extension
+public class PredictiveProvisioner extends AsyncPeriodicWork {
+	static final long LEAD_MILLIS = TimeUnit.MINUTES.toMillis(
+			Integer.getInteger(PredictiveProvisioner.class.getName() + ".leadMinutes", 15));
+
+	public PredictiveProvisioner() {
+		super("EC2 Axis predictive provisioner");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit.MINUTES.toMillis(5);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) {
+		if (!isEnabled())
+			return;
+		EC2Logger logger = new EC2Logger(listener.getLogger());
+		DemandHistory history = DemandHistory.get();
+		long now = System.currentTimeMillis();
+		long currentHour = DemandHistory.localHour(now);
+		long upcomingHour = DemandHistory.localHour(now + LEAD_MILLIS);
+		for (String ec2Label : history.getLabels()) {
+			Ec2AxisSlaveTemplate template = LabelResolutionCache.get().resolve(ec2Label);
+			if (template == null || template.getMaxPredictiveSlaves() <= 0)
+				continue;
+			if (upcomingHour == currentHour)
+				continue;
+			int expected = (int) Math.ceil(history.forecast(ec2Label, upcomingHour));
+			int missing = missingSlaves(expected, template.getMaxPredictiveSlaves(), countAvailableSlaves(ec2Label));
+			if (missing <= 0)
+				continue;
+			logger.println("Expecting " + expected + " slaves to be asked for " + ec2Label + " next hour, provisioning " + missing);
+			try {
+				((EC2AxisCloud) template.getParent()).provisionPredictedSlaves(logger, ec2Label, missing);
+			} catch (Exception e) {
+				logger.println("Failed to provision predicted slaves for " + ec2Label);
+				logger.printStackTrace(e);
+			}
+		}
+		history.saveIfChanged();
+	}
+
+	/**
+	 * Whether any axis template provisions predicted slaves. Demand is only
+	 * recorded for those.
+	 */
+	private static boolean isEnabled() {
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			for (SlaveTemplate template : ((EC2AxisCloud) cloud).getTemplates()) {
+				if (((Ec2AxisSlaveTemplate) template).getMaxPredictiveSlaves() > 0)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	static int missingSlaves(int expected, int maxPredictiveSlaves, int available) {
+		return Math.min(expected, maxPredictiveSlaves) - available;
+	}
+
+	/**
+	 * The axis slaves of the label an allocation could still get: idle and not
+	 * leased, or on their way up.
+	 */
+	private static int countAvailableSlaves(String ec2Label) {
+		Label axisLabel = Jenkins.getInstance().getLabel(ec2Label + AxisIdleNodeIndex.AXIS_LABEL_SUFFIX);
+		if (axisLabel == null)
+			return 0;
+		int available = 0;
+		for (Node node : axisLabel.getNodes()) {
+			if (NodeReservations.get().isReserved(node.getNodeName()))
+				continue;
+			Computer computer = node.toComputer();
+			if (computer == null || computer.isConnecting() || hasIdleExecutor(computer))
+				available++;
+		}
+		return available;
+	}
+
+	private static boolean hasIdleExecutor(Computer computer) {
+		List<Executor> executors = computer.getExecutors();
+		for (Executor executor : executors) {
+			if (executor.isIdle())
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,133 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.services.ec2.model.InstanceType;
+
+/**
+ * What one allocation provisions: a snapshot of the settings of an axis
+ * template, along with the label the new slaves get.
+ *
+ * Built per allocation and never changed, so allocations from the same
+ * template don't need to be serialized.
+ */
+public final class ProvisioningSpec {
+	private final Ec2AxisSlaveTemplate template;
+	private final String instanceLabel;
+	private final boolean spot;
+	private final String ami;
+	private final String description;
+	private final InstanceType type;
+	private final String zone;
+	private final String subnetId;
+	private final List<InstancePlacement> placements;
+	private final Set<String> securityGroupSet;
+	private final List<EC2Tag> tags;
+	private final String userData;
+	private final String remoteAdmin;
+	private final String spotMaxBidPrice;
+	private final String bidType;
+	private final List<WeightedInstanceType> spotInstanceTypes;
+	private final int spotFulfillmentTimeoutMinutes;
+
+	ProvisioningSpec(Ec2AxisSlaveTemplate template, String instanceLabel) {
+		this.template = template;
+		this.instanceLabel = instanceLabel;
+		this.spot = template.spotConfig != null;
+		this.ami = template.ami;
+		this.description = template.description;
+		this.type = template.type;
+		this.zone = template.zone;
+		this.subnetId = template.getSubnetId();
+		this.placements = Collections.unmodifiableList(new ArrayList<InstancePlacement>(template.getPlacements()));
+		this.securityGroupSet = Collections.unmodifiableSet(new LinkedHashSet<String>(template.getSecurityGroupSet()));
+		this.tags = template.getTags() == null
+				? Collections.<EC2Tag>emptyList()
+				: Collections.unmodifiableList(new ArrayList<EC2Tag>(template.getTags()));
+		this.userData = template.userData;
+		this.remoteAdmin = template.getRemoteAdmin();
+		this.spotMaxBidPrice = spot ? template.getSpotMaxBidPrice() : null;
+		this.bidType = spot ? template.getBidType() : null;
+		this.spotInstanceTypes = Collections.unmodifiableList(template.getWeightedSpotInstanceTypes());
+		this.spotFulfillmentTimeoutMinutes = template.getSpotFulfillmentTimeoutMinutes();
+	}
+
+	/**
+	 * The template the spec was taken from, for creating slaves and tagging.
+	 */
+	public Ec2AxisSlaveTemplate getTemplate() {
+		return template;
+	}
+
+	public EC2Cloud getCloud() {
+		return template.getParent();
+	}
+
+	public String getInstanceLabel() {
+		return instanceLabel;
+	}
+
+	public boolean isSpot() {
+		return spot;
+	}
+
+	public String getAmi() {
+		return ami;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public InstanceType getType() {
+		return type;
+	}
+
+	public String getZone() {
+		return zone;
+	}
+
+	public String getSubnetId() {
+		return subnetId;
+	}
+
+	public List<InstancePlacement> getPlacements() {
+		return placements;
+	}
+
+	public Set<String> getSecurityGroupSet() {
+		return securityGroupSet;
+	}
+
+	public List<EC2Tag> getTags() {
+		return tags;
+	}
+
+	public String getUserData() {
+		return userData;
+	}
+
+	public String getRemoteAdmin() {
+		return remoteAdmin;
+	}
+
+	public String getSpotMaxBidPrice() {
+		return spotMaxBidPrice;
+	}
+
+	public String getBidType() {
+		return bidType;
+	}
+
+	public List<WeightedInstanceType> getSpotInstanceTypes() {
+		return spotInstanceTypes;
+	}
+
+	public int getSpotFulfillmentTimeoutMinutes() {
+		return spotFulfillmentTimeoutMinutes;
+	}
+}
@@ -0,0 +1,38 @@
+package hudson.plugins.ec2;
+
+import java.util.List;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+/**
+ * Launches on-demand instances on a single {@link InstancePlacement}.
+ */
+class RunInstancesTarget implements CapacityFanOut.Target<Instance> {
+
+	interface RequestFactory {
+		RunInstancesRequest create(int count, InstancePlacement placement);
+	}
+
+	private final AmazonEC2 ec2;
+	private final InstancePlacement placement;
+	private final RequestFactory requestFactory;
+
+	RunInstancesTarget(AmazonEC2 ec2, InstancePlacement placement, RequestFactory requestFactory) {
+		this.ec2 = ec2;
+		this.placement = placement;
+		this.requestFactory = requestFactory;
+	}
+
+	@Override
+	public List<Instance> launch(int count) {
+		RunInstancesRequest request = requestFactory.create(count, placement);
+		return ec2.runInstances(request).getReservation().getInstances();
+	}
+
+	@Override
+	public String toString() {
+		return placement.toString();
+	}
+}
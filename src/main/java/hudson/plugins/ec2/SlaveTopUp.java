@@ -0,0 +1,69 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Run;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provisions, in the background, the slaves a partially fulfilled allocation
+ * is missing, binding each of them to the label of a waiting matrix cell.
+ */
+final class SlaveTopUp implements Runnable {
+	private static final long RETRY_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	private static final long TOP_UP_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+	private final EC2AxisCloud cloud;
+	private final EC2Logger logger;
+	private final String ec2Label;
+	private final LinkedList<String> pendingLabels;
+	private final int firstMatrixId;
+	private final Run<?, ?> owner;
+	private final long retryIntervalMillis;
+	private final long timeoutMillis;
+
+	SlaveTopUp(EC2AxisCloud cloud, EC2Logger logger, String ec2Label, List<String> pendingLabels, int firstMatrixId) {
+		this(cloud, logger, ec2Label, pendingLabels, firstMatrixId, RETRY_INTERVAL_MILLIS, TOP_UP_TIMEOUT_MILLIS);
+	}
+
+	SlaveTopUp(EC2AxisCloud cloud, EC2Logger logger, String ec2Label, List<String> pendingLabels, int firstMatrixId,
+			long retryIntervalMillis, long timeoutMillis) {
+		this.retryIntervalMillis = retryIntervalMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.cloud = cloud;
+		this.logger = logger;
+		this.ec2Label = ec2Label;
+		this.pendingLabels = new LinkedList<String>(pendingLabels);
+		this.firstMatrixId = firstMatrixId;
+		this.owner = logger.getBuild();
+	}
+
+	@Override
+	public void run() {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		int matrixId = firstMatrixId;
+		while (!pendingLabels.isEmpty() && System.currentTimeMillis() < deadline) {
+			if (owner != null && !owner.isBuilding()) {
+				logger.println("Build " + owner + " is over, no longer provisioning slaves for " + pendingLabels);
+				break;
+			}
+			try {
+				List<EC2AbstractSlave> slaves = cloud.provisionTopUpSlaves(logger, ec2Label, pendingLabels.size());
+				for (EC2AbstractSlave slave : slaves) {
+					String pendingLabel = pendingLabels.removeFirst();
+					cloud.bindToPendingLabel(slave, ec2Label, pendingLabel, matrixId > 0 ? matrixId++ : 0);
+					logger.println("Slave " + slave.getNodeName() + " will run the cell waiting on " + pendingLabel);
+				}
+			} catch (Exception e) {
+				logger.println("Could not provision the missing " + pendingLabels.size() + " slaves yet: " + e.getMessage());
+			}
+			if (!pendingLabels.isEmpty())
+				ThreadUtils.sleepWithoutInterruptions(retryIntervalMillis);
+		}
+		for (String pendingLabel : pendingLabels) {
+			logger.println("Giving up on provisioning a slave for " + pendingLabel);
+			Utils.cancelQueuedItems(pendingLabel);
+		}
+	}
+}
@@ -6,10 +6,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import jenkins.model.Jenkins;
-
 import org.apache.commons.lang.StringUtils;
 
 import com.amazonaws.AmazonClientException;
@@ -36,6 +35,8 @@ public class SpotInstanceProvider {
 	private Set<String> securityGroupSet;
 	private List<String> ec2SecurityGroups;
 	private List<EC2Tag> tags;
+	private List<WeightedInstanceType> weightedTypes;
+	private ProvisioningSpec spec;
 	private Ec2AxisSlaveTemplate slaveTemplate;
 	private EC2Cloud cloud;
 	private EC2Logger logger;
@@ -43,44 +44,107 @@ public class SpotInstanceProvider {
 	public SpotInstanceProvider(
 			KeyPair keyPair, 
 			List<String> ec2SecurityGroups,
-			Ec2AxisSlaveTemplate slaveTemplate,
+			ProvisioningSpec spec,
 			EC2Logger logger) 
 	{
 		this.keyPair = keyPair;
-		this.slaveTemplate = slaveTemplate;
+		this.spec = spec;
+		this.slaveTemplate = spec.getTemplate();
 		this.ec2SecurityGroups = ec2SecurityGroups;
 		this.logger = logger;
 		
-		this.ami = slaveTemplate.ami;
-		this.description = slaveTemplate.description;
-		this.spotMaxBidPrice = slaveTemplate.getSpotMaxBidPrice();
-		this.bidType = slaveTemplate.getBidType();
-		this.type = slaveTemplate.type;
-		this.zone = slaveTemplate.zone;
-		this.subnetId = slaveTemplate.getSubnetId();
-		this.securityGroupSet = slaveTemplate.getSecurityGroupSet();
-		this.tags = slaveTemplate.getTags();
-		this.cloud = slaveTemplate.getParent();
+		this.ami = spec.getAmi();
+		this.description = spec.getDescription();
+		this.spotMaxBidPrice = spec.getSpotMaxBidPrice();
+		this.bidType = spec.getBidType();
+		this.type = spec.getType();
+		this.zone = spec.getZone();
+		this.subnetId = spec.getSubnetId();
+		this.securityGroupSet = spec.getSecurityGroupSet();
+		this.tags = spec.getTags();
+		this.weightedTypes = spec.getSpotInstanceTypes();
+		this.cloud = spec.getCloud();
 	}
 	
 	public List<EC2AbstractSlave> provisionMultiple(int numberOfInstancesToCreate)
 					throws AmazonClientException, IOException {
 		logger.println("Launching " + ami + " for template " + description);
 
-		RequestSpotInstancesRequest spotRequest = new RequestSpotInstancesRequest();
-
 		if (spotMaxBidPrice == null){
 			throw new AmazonClientException("Invalid Spot price specified: " + spotMaxBidPrice);
 		}
 
+		AmazonEC2 ec2 = AmazonEC2Insistent.wrap(cloud.connect(), logger);
+		List<SpotInstanceRequest> reqInstances = requestAcrossInstanceTypes(ec2, numberOfInstancesToCreate);
+		if (reqInstances.size() <= 0){
+			throw new AmazonClientException("No spot instances found");
+		}
+
+		if (tags != null && !tags.isEmpty()) 
+			tagSpotRequests(ec2, reqInstances);
+		
+		List<EC2AbstractSlave> spotSlaves = new ArrayList<EC2AbstractSlave>();
+		for (SpotInstanceRequest spotInstanceRequest : reqInstances) {
+			if (spotInstanceRequest == null){
+				logger.println("Spot instance request is null");
+				continue;
+			}
+			String spotInstanceRequestId = spotInstanceRequest.getSpotInstanceRequestId();
+			logger.println("Spot instance id in provision: " + spotInstanceRequestId);
+			String slaveName = description.replace(" ", "") + "@"+spotInstanceRequestId;
+			try {
+				spotSlaves.add(slaveTemplate.newSpotSlave(spotInstanceRequest, slaveName));
+			} catch (FormException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		Utils.addNodesAndWait(spotSlaves);
+		monitorSpotRequestsAndMakeThemConnectToJenkins(ec2, reqInstances, spotSlaves);
+		
+		return spotSlaves;
+	}
+	
+	/**
+	 * Places one spot request per instance type of the template, each for its
+	 * weighted share of the count. A type whose request fails is skipped.
+	 */
+	private List<SpotInstanceRequest> requestAcrossInstanceTypes(AmazonEC2 ec2, int numberOfInstancesToCreate) {
+		if (weightedTypes.isEmpty())
+			return requestSpotInstances(ec2, type, numberOfInstancesToCreate);
+
+		Map<InstanceType, Integer> shares = WeightedInstanceType.split(weightedTypes, numberOfInstancesToCreate);
+		List<SpotInstanceRequest> reqInstances = new ArrayList<SpotInstanceRequest>();
+		AmazonClientException firstFailure = null;
+		for (Map.Entry<InstanceType, Integer> share : shares.entrySet()) {
+			try {
+				logger.println("Requesting " + share.getValue() + " spot instances of type " + share.getKey());
+				reqInstances.addAll(requestSpotInstances(ec2, share.getKey(), share.getValue()));
+			} catch (AmazonClientException e) {
+				logger.println("Spot request for " + share.getKey() + " failed: " + e.getMessage());
+				if (firstFailure == null)
+					firstFailure = e;
+			}
+		}
+		if (reqInstances.isEmpty() && firstFailure != null)
+			throw firstFailure;
+		return reqInstances;
+	}
+
+	private List<SpotInstanceRequest> requestSpotInstances(AmazonEC2 ec2, InstanceType instanceType, int count) {
+		RequestSpotInstancesRequest spotRequest = new RequestSpotInstancesRequest();
 		spotRequest.setSpotPrice(spotMaxBidPrice);
-		spotRequest.setInstanceCount(numberOfInstancesToCreate);
+		spotRequest.setInstanceCount(count);
 		spotRequest.setType(bidType);
+		spotRequest.setLaunchSpecification(createLaunchSpecification(instanceType));
+
+		RequestSpotInstancesResult reqResult = ec2.requestSpotInstances(spotRequest);
+		return reqResult.getSpotInstanceRequests();
+	}
 
+	private LaunchSpecification createLaunchSpecification(InstanceType instanceType) {
 		LaunchSpecification launchSpecification = new LaunchSpecification();
 
 		launchSpecification.setImageId(ami);
-		launchSpecification.setInstanceType(type);
 
 		if (StringUtils.isNotBlank(zone)) {
 			SpotPlacement placement = new SpotPlacement(zone);
@@ -111,65 +175,35 @@ public class SpotInstanceProvider {
 		}
 
 		launchSpecification.setKeyName(keyPair.getKeyName());
-		launchSpecification.setInstanceType(type.toString());
-
-		spotRequest.setLaunchSpecification(launchSpecification);
-
-		AmazonEC2 ec2 = AmazonEC2Insistent.wrap(cloud.connect(), logger);
-		RequestSpotInstancesResult reqResult = ec2 .requestSpotInstances(spotRequest);
-
-		List<SpotInstanceRequest> reqInstances = reqResult.getSpotInstanceRequests();
-		if (reqInstances.size() <= 0){
-			throw new AmazonClientException("No spot instances found");
-		}
-
-		HashSet<Tag> inst_tags = null;
-		if (tags != null && !tags.isEmpty()) {
-			inst_tags = new HashSet<Tag>();
-			for(EC2Tag t : tags) {
-				inst_tags.add(new Tag(t.getName(), t.getValue()));
-			}
+		launchSpecification.setInstanceType(instanceType.toString());
+		return launchSpecification;
+	}
+	
+	/**
+	 * Now that we have our Spot requests, we can set tags on all of them at once
+	 */
+	private void tagSpotRequests(AmazonEC2 ec2, List<SpotInstanceRequest> reqInstances) {
+		HashSet<Tag> inst_tags = new HashSet<Tag>();
+		for(EC2Tag t : tags) {
+			inst_tags.add(new Tag(t.getName(), t.getValue()));
 		}
-		final List<EC2AbstractSlave> spotSlaves = new ArrayList<EC2AbstractSlave>();
-		SynchronousSafeTask syncSafeTask = new SynchronousSafeTask();
-		for (final SpotInstanceRequest spotInstanceRequest : reqInstances) {
-			if (spotInstanceRequest == null){
-				logger.println("Spot instance request is null");
+		
+		List<String> spotInstanceRequestIds = new ArrayList<String>();
+		for (SpotInstanceRequest spotInstanceRequest : reqInstances) {
+			if (spotInstanceRequest == null)
 				continue;
-			}
-			/* Now that we have our Spot request, we can set tags on it */
-			String spotInstanceRequestId = spotInstanceRequest.getSpotInstanceRequestId();
-			if (inst_tags != null) {
-				slaveTemplate.updateRemoteTags(ec2, inst_tags, spotInstanceRequestId);
-				// That was a remote request - we should also update our local instance data.
-				spotInstanceRequest.setTags(inst_tags);
-			}
-			
-			logger.println("Spot instance id in provision: " + spotInstanceRequestId);
-			final String slaveName = description.replace(" ", "") + "@"+spotInstanceRequestId;
-			syncSafeTask.invoke(new Runnable() {  @Override public void run() {
-					EC2SpotSlave newSpotSlave;
-					try {
-						newSpotSlave = slaveTemplate.newSpotSlave(spotInstanceRequest, slaveName);
-						Jenkins.getInstance().addNode(newSpotSlave);
-					} catch (FormException | IOException e) {
-						throw new RuntimeException(e);
-					}
- 					spotSlaves.add(newSpotSlave);
- 				}
-			});
+			spotInstanceRequestIds.add(spotInstanceRequest.getSpotInstanceRequestId());
+			// That was a remote request - we should also update our local instance data.
+			spotInstanceRequest.setTags(inst_tags);
 		}
-		syncSafeTask.waitCompletion();
-		monitorSpotRequestsAndMakeThemConnectToJenkins(ec2, reqInstances, spotSlaves);
-		
-		return spotSlaves;
+		slaveTemplate.updateRemoteTags(ec2, inst_tags, spotInstanceRequestIds.toArray(new String[spotInstanceRequestIds.size()]));
 	}
-	
+
 	private void monitorSpotRequestsAndMakeThemConnectToJenkins(
 			final AmazonEC2 ec2, 
 			final List<SpotInstanceRequest> reqInstances, 
 			final List<EC2AbstractSlave> spotSlaves) throws AmazonClientException, IOException 
 	{
-		SpotRequestConnectSupervisor.start(logger, reqInstances, spotSlaves, ec2, keyPair.getKeyMaterial().toCharArray(), slaveTemplate.getRemoteAdmin());
+		SpotRequestConnectSupervisor.start(logger, spec, reqInstances, spotSlaves, ec2, keyPair.getKeyMaterial().toCharArray(), spec.getRemoteAdmin());
 	}
 }
@@ -0,0 +1,324 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.plugins.ec2.utils.ExecutorUtils;
+import hudson.slaves.Cloud;
+import hudson.slaves.OfflineCause;
+import hudson.util.LogTaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.CauseOfInterruption;
+import jenkins.model.Jenkins;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+
+/**
+ * Watches the spot slaves the axis connected, and moves the label of any slave
+ * whose instance EC2 reclaims to a replacement slave of the same template.
+ *
+ * A cell still waiting for the reclaimed slave simply runs on the replacement.
+ * A cell already running on it cannot be moved, so it is aborted with a cause
+ * saying why rather than left to fail on a lost channel. Replacements are
+ * provisioned like any axis slave, spilling over to the other clouds serving
+ * the label; when none can be had after a few attempts, the cells waiting on
+ * the reclaimed slave are cancelled.
+ */
+public final class SpotInterruptionWatcher {
+	private static final Logger LOGGER = Logger.getLogger(SpotInterruptionWatcher.class.getName());
+	static final int DESCRIBE_BATCH_SIZE = 200;
+	private static final int REPLACEMENT_ATTEMPTS = 5;
+	private static final long REPLACEMENT_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+	/**
+	 * Spot request status codes meaning EC2 is taking, or has taken, the instance back.
+	 */
+	static final Set<String> INTERRUPTION_CODES = new HashSet<String>(Arrays.asList(
+			"marked-for-termination",
+			"marked-for-stop",
+			"instance-terminated-by-price",
+			"instance-terminated-by-service",
+			"instance-terminated-no-capacity",
+			"instance-terminated-capacity-oversubscribed",
+			"instance-terminated-launch-group-constraint",
+			"instance-stopped-by-price",
+			"instance-stopped-no-capacity",
+			"instance-stopped-capacity-oversubscribed"));
+
+	private static final String[] GONE_INSTANCE_STATES = {
+			InstanceStateName.ShuttingDown.toString(),
+			InstanceStateName.Terminated.toString(),
+			InstanceStateName.Stopping.toString(),
+			InstanceStateName.Stopped.toString() };
+
+	private static final SpotInterruptionWatcher instance = new SpotInterruptionWatcher();
+
+	private final ConcurrentMap<String, WatchedSlave> watchedByRequestId = new ConcurrentHashMap<String, WatchedSlave>();
+	private final int replacementAttempts;
+	private final long replacementRetryMillis;
+
+	private static final class WatchedSlave {
+		final Ec2AxisSlaveTemplate template;
+		final EC2SpotSlave slave;
+		final String instanceId;
+
+		WatchedSlave(Ec2AxisSlaveTemplate template, EC2SpotSlave slave, String instanceId) {
+			this.template = template;
+			this.slave = slave;
+			this.instanceId = instanceId;
+		}
+	}
+
+	SpotInterruptionWatcher() {
+		this(REPLACEMENT_ATTEMPTS, REPLACEMENT_RETRY_MILLIS);
+	}
+
+	SpotInterruptionWatcher(int replacementAttempts, long replacementRetryMillis) {
+		this.replacementAttempts = replacementAttempts;
+		this.replacementRetryMillis = replacementRetryMillis;
+	}
+
+	public static SpotInterruptionWatcher get() {
+		return instance;
+	}
+
+	/**
+	 * Starts watching a spot slave that is now connected to the given instance.
+	 */
+	public void watch(Ec2AxisSlaveTemplate template, EC2SpotSlave slave, String instanceId) {
+		watchedByRequestId.put(slave.getSpotInstanceRequestId(), new WatchedSlave(template, slave, instanceId));
+	}
+
+	public int getWatchedCount() {
+		return watchedByRequestId.size();
+	}
+
+	/**
+	 * Finds, among the given spot requests and the instances fulfilling them,
+	 * those EC2 is reclaiming. Requests and instances are described in batches,
+	 * two calls per batch.
+	 */
+	static Set<String> findInterrupted(AmazonEC2 ec2, Map<String, String> instanceIdsByRequestId) {
+		Set<String> interrupted = new LinkedHashSet<String>();
+		List<String> requestIds = new ArrayList<String>(instanceIdsByRequestId.keySet());
+		for (int i = 0; i < requestIds.size(); i += DESCRIBE_BATCH_SIZE) {
+			List<String> batch = requestIds.subList(i, Math.min(i + DESCRIBE_BATCH_SIZE, requestIds.size()));
+			List<SpotInstanceRequest> requests = ec2.describeSpotInstanceRequests(
+					new DescribeSpotInstanceRequestsRequest().withSpotInstanceRequestIds(batch)).getSpotInstanceRequests();
+			for (SpotInstanceRequest request : requests) {
+				if (request.getStatus() != null && INTERRUPTION_CODES.contains(request.getStatus().getCode()))
+					interrupted.add(request.getSpotInstanceRequestId());
+			}
+
+			Map<String, String> requestIdsByInstanceId = new HashMap<String, String>();
+			for (String requestId : batch) {
+				String instanceId = instanceIdsByRequestId.get(requestId);
+				if (instanceId != null && !interrupted.contains(requestId))
+					requestIdsByInstanceId.put(instanceId, requestId);
+			}
+			if (requestIdsByInstanceId.isEmpty())
+				continue;
+			// filtering rather than naming the instances, so one that is already gone doesn't fail the call
+			DescribeInstancesRequest describeInstances = new DescribeInstancesRequest().withFilters(
+					new Filter("instance-id").withValues(requestIdsByInstanceId.keySet()),
+					new Filter("instance-state-name").withValues(GONE_INSTANCE_STATES));
+			for (Reservation reservation : ec2.describeInstances(describeInstances).getReservations()) {
+				for (Instance gone : reservation.getInstances()) {
+					String requestId = requestIdsByInstanceId.get(gone.getInstanceId());
+					if (requestId != null)
+						interrupted.add(requestId);
+				}
+			}
+		}
+		return interrupted;
+	}
+
+	void checkAll() {
+		Map<String, Map<String, String>> instanceIdsByCloud = new HashMap<String, Map<String, String>>();
+		Jenkins jenkins = Jenkins.getInstance();
+		for (Map.Entry<String, WatchedSlave> watched : watchedByRequestId.entrySet()) {
+			WatchedSlave slave = watched.getValue();
+			if (jenkins.getNode(slave.slave.getNodeName()) != slave.slave) {
+				watchedByRequestId.remove(watched.getKey(), slave);
+				continue;
+			}
+			String cloudName = slave.template.getParent().name;
+			Map<String, String> instanceIds = instanceIdsByCloud.get(cloudName);
+			if (instanceIds == null) {
+				instanceIds = new HashMap<String, String>();
+				instanceIdsByCloud.put(cloudName, instanceIds);
+			}
+			instanceIds.put(watched.getKey(), slave.instanceId);
+		}
+
+		for (Map.Entry<String, Map<String, String>> cloudInstances : instanceIdsByCloud.entrySet()) {
+			Cloud cloud = jenkins.getCloud(cloudInstances.getKey());
+			if (!(cloud instanceof EC2Cloud))
+				continue;
+			try {
+				check(((EC2Cloud) cloud).connect(), cloudInstances.getValue());
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Failed to check spot slaves of cloud " + cloudInstances.getKey() + " for interruptions", e);
+			}
+		}
+	}
+
+	/**
+	 * Replaces, in the background, the watched slaves among the given ones whose 
+	 * instance is being reclaimed.
+	 */
+	void check(AmazonEC2 ec2, Map<String, String> instanceIdsByRequestId) {
+		for (String requestId : findInterrupted(ec2, instanceIdsByRequestId)) {
+			WatchedSlave slave = watchedByRequestId.remove(requestId);
+			if (slave != null)
+				replaceLater(slave);
+		}
+	}
+
+	private void replaceLater(final WatchedSlave interrupted) {
+		ExecutorUtils.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					replace(interrupted);
+				} catch (Exception e) {
+					LOGGER.log(Level.WARNING, "Failed to replace interrupted spot slave " + interrupted.slave.getNodeName(), e);
+				}
+				return null;
+			}
+		});
+	}
+
+	private void replace(WatchedSlave interrupted) {
+		EC2SpotSlave slave = interrupted.slave;
+		LOGGER.log(Level.INFO, "Spot instance {0} of {1} is being reclaimed, replacing it",
+				new Object[]{interrupted.instanceId, slave.getNodeName()});
+		takeOffline(slave.toComputer(), slave.getNodeName(), interrupted.instanceId);
+
+		EC2Logger logger = new EC2Logger(new LogTaskListener(LOGGER, Level.INFO).getLogger());
+		EC2AxisCloud cloud = (EC2AxisCloud) interrupted.template.getParent();
+		String ec2Label = ec2LabelOf(interrupted);
+		EC2AbstractSlave replacement = null;
+		for (int attempt = 1; replacement == null && attempt <= replacementAttempts; attempt++) {
+			if (attempt > 1)
+				ThreadUtils.sleepWithoutInterruptions(replacementRetryMillis);
+			try {
+				replacement = provisionReplacement(cloud, logger, ec2Label, slave);
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Attempt " + attempt + " of " + replacementAttempts + " to replace " + slave.getNodeName() + " failed", e);
+			}
+		}
+		if (replacement == null) {
+			LOGGER.log(Level.WARNING, "No replacement for {0}, cancelling the cells waiting on it", slave.getNodeName());
+			Utils.finishSlaveAndQueuedItems(slave);
+			return;
+		}
+		LOGGER.log(Level.INFO, "{0} takes over {1}", new Object[]{replacement.getNodeName(), slave.getNodeName()});
+		slave.terminate();
+	}
+
+	/**
+	 * Stops new cells from starting on the slave, and aborts those running on it.
+	 */
+	static void takeOffline(Computer computer, String nodeName, String instanceId) {
+		if (computer == null)
+			return;
+		computer.setTemporarilyOffline(true, new InterruptedOffline(instanceId));
+		for (Executor executor : computer.getExecutors()) {
+			if (executor.isBusy())
+				executor.interrupt(Result.ABORTED, new SpotInterruption(nodeName, instanceId));
+		}
+	}
+
+	private static EC2AbstractSlave provisionReplacement(EC2AxisCloud cloud, EC2Logger logger, String ec2Label, EC2SpotSlave slave) throws IOException {
+		EC2AbstractSlave replacement = cloud.provisionAcrossClouds(logger, ec2Label, 1, 1).get(0);
+		try {
+			cloud.bindToReplacedLabel(replacement, slave);
+		} catch (IOException e) {
+			replacement.terminate();
+			throw e;
+		}
+		return replacement;
+	}
+
+	private static String ec2LabelOf(WatchedSlave interrupted) {
+		List<String> ec2Labels = AxisIdleNodeIndex.ec2LabelsOf(interrupted.slave);
+		return ec2Labels.isEmpty() ? interrupted.template.getLabelString() : ec2Labels.get(0);
+	}
+
+	private static final class InterruptedOffline extends OfflineCause {
+		private final String instanceId;
+
+		InterruptedOffline(String instanceId) {
+			this.instanceId = instanceId;
+		}
+
+		@Override
+		public String toString() {
+			return "Spot instance " + instanceId + " is being reclaimed by EC2";
+		}
+	}
+
+	static final class SpotInterruption extends CauseOfInterruption {
+		private static final long serialVersionUID = 1L;
+		private final String nodeName;
+		private final String instanceId;
+
+		SpotInterruption(String nodeName, String instanceId) {
+			this.nodeName = nodeName;
+			this.instanceId = instanceId;
+		}
+
+		@Override
+		public String getShortDescription() {
+			return "Spot instance " + instanceId + " of " + nodeName + " was reclaimed by EC2";
+		}
+	}
+
+	/**
+	 * Checks the watched spot slaves every 30 seconds, well within the two
+	 * minutes of notice EC2 gives before reclaiming an instance.
+	 */
+	@Extension
+	public static class Checker extends AsyncPeriodicWork {
+		public Checker() {
+			super("EC2 Axis spot interruption watcher");
+		}
+
+		@Override
+		public long getRecurrencePeriod() {
+			return TimeUnit.SECONDS.toMillis(30);
+		}
+
+		@Override
+		protected void execute(TaskListener listener) {
+			get().checkAll();
+		}
+	}
+}
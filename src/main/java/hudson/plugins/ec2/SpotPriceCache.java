@@ -0,0 +1,230 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.plugins.ec2.utils.ExecutorUtils;
+import hudson.slaves.Cloud;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryRequest;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.ec2.model.SpotPrice;
+
+/**
+ * Current spot prices per region, instance type and availability zone.
+ *
+ * Reads never call EC2: they return the last known price, or null, and queue
+ * a load when the price is missing or stale. Loads run on the plugin's worker
+ * pool, not on the shared Jenkins timer, since describeSpotPriceHistory can
+ * block for a long time. Prices read recently are kept fresh in the background
+ * by {@link Refresher}.
+ */
+public final class SpotPriceCache {
+	private static final Logger LOGGER = Logger.getLogger(SpotPriceCache.class.getName());
+	static final String PRODUCT_DESCRIPTION = "Linux/UNIX";
+	static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	static final long FORGET_AFTER_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private static final SpotPriceCache instance = new SpotPriceCache();
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Entry {
+		private final String cloudName;
+		private final String region;
+		private final InstanceType instanceType;
+		private final String availabilityZone;
+		private volatile String price;
+		private volatile long fetchedAt;
+		private volatile long lastReadAt;
+		private volatile boolean loading;
+
+		Entry(String cloudName, String region, InstanceType instanceType, String availabilityZone) {
+			this.cloudName = cloudName;
+			this.region = region;
+			this.instanceType = instanceType;
+			this.availabilityZone = availabilityZone;
+		}
+
+		@Exported
+		public String getRegion() {
+			return region;
+		}
+
+		@Exported
+		public String getInstanceType() {
+			return instanceType.toString();
+		}
+
+		@Exported
+		public String getAvailabilityZone() {
+			return availabilityZone;
+		}
+
+		@Exported
+		public String getPrice() {
+			return price;
+		}
+
+		@Exported
+		public long getAgeSeconds() {
+			if (fetchedAt == 0)
+				return -1;
+			return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - fetchedAt);
+		}
+
+		boolean isStale(long now) {
+			return now - fetchedAt > MAX_AGE_MILLIS;
+		}
+	}
+
+	SpotPriceCache() {
+	}
+
+	public static SpotPriceCache get() {
+		return instance;
+	}
+
+	/**
+	 * The last known price, or null when it has not been loaded yet. A missing or
+	 * stale price is loaded in the background.
+	 */
+	public String getPrice(EC2Cloud cloud, String region, InstanceType instanceType, String availabilityZone) {
+		String zone = StringUtils.trimToEmpty(availabilityZone);
+		String key = region + "|" + instanceType + "|" + zone;
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			Entry created = new Entry(cloud.name, region, instanceType, zone);
+			entry = entries.putIfAbsent(key, created);
+			if (entry == null)
+				entry = created;
+		}
+		long now = System.currentTimeMillis();
+		entry.lastReadAt = now;
+		if (entry.isStale(now))
+			loadLater(entry);
+		return entry.price;
+	}
+
+	public List<Entry> getEntries(String region) {
+		List<Entry> regionEntries = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (entry.region.equals(region))
+				regionEntries.add(entry);
+		}
+		return regionEntries;
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	private void loadLater(final Entry entry) {
+		synchronized (entry) {
+			if (entry.loading)
+				return;
+			entry.loading = true;
+		}
+		ExecutorUtils.submit(Executors.callable(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh(entry);
+				} finally {
+					entry.loading = false;
+				}
+			}
+		}));
+	}
+
+	void refresh(Entry entry) {
+		Cloud cloud = Jenkins.getInstance().getCloud(entry.cloudName);
+		if (!(cloud instanceof EC2Cloud))
+			return;
+		try {
+			refresh(entry, ((EC2Cloud) cloud).connect());
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Failed to get spot price of " + entry.instanceType + " in " + entry.region, e);
+		}
+	}
+
+	void refresh(Entry entry, AmazonEC2 ec2) {
+		DescribeSpotPriceHistoryRequest request = new DescribeSpotPriceHistoryRequest()
+				.withInstanceTypes(entry.instanceType.toString())
+				.withProductDescriptions(PRODUCT_DESCRIPTION)
+				.withStartTime(new Date());
+		if (!entry.availabilityZone.isEmpty())
+			request.setAvailabilityZone(entry.availabilityZone);
+
+		String lowest = null;
+		for (SpotPrice price : ec2.describeSpotPriceHistory(request).getSpotPriceHistory()) {
+			if (lowest == null || new BigDecimal(price.getSpotPrice()).compareTo(new BigDecimal(lowest)) < 0)
+				lowest = price.getSpotPrice();
+		}
+		entry.price = lowest;
+		entry.fetchedAt = System.currentTimeMillis();
+	}
+
+	private void refreshRecentlyRead() {
+		long now = System.currentTimeMillis();
+		for (String key : entries.keySet()) {
+			Entry entry = entries.get(key);
+			if (entry == null)
+				continue;
+			if (now - entry.lastReadAt > FORGET_AFTER_MILLIS) {
+				entries.remove(key, entry);
+				continue;
+			}
+			if (entry.isStale(now + TimeUnit.MINUTES.toMillis(1)))
+				loadLater(entry);
+		}
+	}
+
+	/**
+	 * Keeps the prices of the spot templates, and of whatever was read in the
+	 * last hour, from going stale.
+	 */
+	@Extension
+	public static class Refresher extends AsyncPeriodicWork {
+		public Refresher() {
+			super("EC2 Axis spot price refresher");
+		}
+
+		@Override
+		public long getRecurrencePeriod() {
+			return TimeUnit.MINUTES.toMillis(1);
+		}
+
+		@Override
+		protected void execute(TaskListener listener) {
+			for (Cloud cloud : Jenkins.getInstance().clouds) {
+				if (!(cloud instanceof EC2AxisCloud))
+					continue;
+				for (SlaveTemplate template : ((EC2AxisCloud) cloud).getTemplates()) {
+					if (template.spotConfig != null)
+						((Ec2AxisSlaveTemplate) template).getCurrentSpotPrice();
+				}
+			}
+			get().refreshRecentlyRead();
+		}
+	}
+}
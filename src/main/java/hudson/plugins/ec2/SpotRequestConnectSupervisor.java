@@ -3,6 +3,7 @@ package hudson.plugins.ec2;
 import hudson.model.Hudson;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -13,100 +14,156 @@ import org.apache.commons.lang.time.StopWatch;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
-import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
-import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
 import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.SpotInstanceRequest;
-import com.trilead.ssh2.ChannelCondition;
-import com.trilead.ssh2.Connection;
-import com.trilead.ssh2.ServerHostKeyVerifier;
-import com.trilead.ssh2.Session;
-
-final class SpotRequestConnectSupervisor implements Runnable {
-	private final List<SpotInstanceRequest> reqInstances;
-	private final List<EC2AbstractSlave> spotSlaves;
+
+/**
+ * Connects the slaves of one spot allocation to their instances once the
+ * cloud's {@link SpotRequestPoller} reports their requests fulfilled.
+ * 
+ * Requests still open when the fulfillment timeout of the template passes are
+ * cancelled, and their slaves replaced by on-demand ones bound to the same labels.
+ */
+final class SpotRequestConnectSupervisor implements SpotRequestPoller.Listener {
+	private final List<EC2AbstractSlave> remainingSlaves;
+	private final ProvisioningSpec spec;
+	private final Ec2AxisSlaveTemplate slaveTemplate;
 	private final AmazonEC2 ec2;
 	private String remoteAdmin;
 	private char [] privateKey;
 	private EC2Logger logger;
 
 	public static void start(EC2Logger logger, 
+			ProvisioningSpec spec,
 			List<SpotInstanceRequest> reqInstances, 
 			List<EC2AbstractSlave> spotSlaves, 
 			AmazonEC2 ec2, 
 			char [] privateKey, 
 			String remoteAdmin) {
-		new Thread(new SpotRequestConnectSupervisor(logger, reqInstances, spotSlaves, ec2, privateKey, remoteAdmin)).start();
+		SpotRequestConnectSupervisor supervisor = new SpotRequestConnectSupervisor(logger, spec, spotSlaves, ec2, privateKey, remoteAdmin);
+		long fulfillmentTimeoutMillis = TimeUnit.MINUTES.toMillis(spec.getSpotFulfillmentTimeoutMinutes());
+		if (fulfillmentTimeoutMillis > 0)
+			logger.println("Waiting up to " + spec.getSpotFulfillmentTimeoutMinutes() + " minutes for " + reqInstances.size() + " spot requests to be fulfilled");
+		else
+			logger.println("Waiting for " + reqInstances.size() + " spot requests to be fulfilled");
+		SpotRequestPoller.forCloud(spec.getCloud()).watch(spec.getCloud().connect(), reqInstances, supervisor, fulfillmentTimeoutMillis);
 	}
 
-	private SpotRequestConnectSupervisor(
+	SpotRequestConnectSupervisor(
 			EC2Logger logger, 
-			List<SpotInstanceRequest> reqInstances,
+			ProvisioningSpec spec,
 			List<EC2AbstractSlave> spotSlaves, 
 			AmazonEC2 ec2,
 			char [] privateKey, 
 			String remoteAdmin) {
 		this.logger = logger;
-		this.reqInstances = reqInstances;
-		this.spotSlaves = spotSlaves;
+		this.spec = spec;
+		this.slaveTemplate = spec.getTemplate();
+		this.remainingSlaves = new LinkedList<EC2AbstractSlave>(spotSlaves);
 		this.ec2 = ec2;
 		this.privateKey = privateKey;
 		this.remoteAdmin = remoteAdmin;
 	}
 
-	@Override 
-	public void run() {
-		List<String> spotInstanceRequestIds = new ArrayList<String>();
-		for (SpotInstanceRequest req : reqInstances) {
-			spotInstanceRequestIds.add(req.getSpotInstanceRequestId());
+	@Override
+	public EC2Logger getLogger() {
+		return logger;
+	}
+
+	@Override
+	public void requestsFinished(List<SpotInstanceRequest> finished) {
+		List<String> fulfilled = new LinkedList<String>();
+		for (SpotInstanceRequest request : finished) {
+			if (request.getInstanceId() != null)
+				fulfilled.add(request.getInstanceId());
 		}
-		LinkedList<EC2AbstractSlave> remainingSlaves = new LinkedList<EC2AbstractSlave>();
-		for (EC2AbstractSlave ec2AbstractSlave : spotSlaves) {
-			remainingSlaves.add(ec2AbstractSlave);
+		try {
+			makeInstancesConnectBackOnJenkins(fulfilled);
+		} catch (Exception e) {
+			logger.printStackTrace(e);
 		}
-		
-		do {
-			DescribeSpotInstanceRequestsRequest describeRequest = new DescribeSpotInstanceRequestsRequest();
-			describeRequest.setSpotInstanceRequestIds(spotInstanceRequestIds);
-	
-			connectFulfilledInstancesToJenkins(spotInstanceRequestIds, remainingSlaves, describeRequest);
-	
-			try {
-				Thread.sleep(60 * 1000);
-			} catch (Exception e) {
-			}
-		} while (spotInstanceRequestIds.size()>0);
 	}
 
-	private void connectFulfilledInstancesToJenkins(
-			List<String> spotInstanceRequestIds,
-			LinkedList<EC2AbstractSlave> remainingSlaves,
-			DescribeSpotInstanceRequestsRequest describeRequest) {
+	/**
+	 * Cancels the expired requests and replaces their slaves. When cancelling or
+	 * checking them fails, the slaves are replaced all the same, so their cells 
+	 * do not wait for requests nobody watches anymore.
+	 */
+	@Override
+	public void requestsExpired(List<String> spotInstanceRequestIds) {
+		logger.println("Spot requests not fulfilled after " + spec.getSpotFulfillmentTimeoutMinutes() 
+				+ " minutes, cancelling them: " + StringUtils.join(spotInstanceRequestIds, ", "));
+		List<SpotInstanceRequest> fulfilledMeanwhile = new ArrayList<SpotInstanceRequest>();
+		List<EC2AbstractSlave> unfulfilledSlaves = new ArrayList<EC2AbstractSlave>();
+		for (String spotInstanceRequestId : spotInstanceRequestIds) {
+			EC2AbstractSlave slave = getSlaveToAssociate(spotInstanceRequestId);
+			if (slave != null)
+				unfulfilledSlaves.add(slave);
+		}
 		try {
-			logger.println("Checking whether spot requests have been fulfilled");
-			DescribeSpotInstanceRequestsResult describeResult = ec2.describeSpotInstanceRequests(describeRequest);
-			List<SpotInstanceRequest> describeResponses = describeResult.getSpotInstanceRequests();
+			ec2.cancelSpotInstanceRequests(new CancelSpotInstanceRequestsRequest(spotInstanceRequestIds));
 
-			List<String> fulfilled = new LinkedList<String>();
-			for (SpotInstanceRequest describeResponse : describeResponses) {
-				if (describeResponse.getState().equals("open")) {
+			// a request may have been fulfilled between the last poll and the cancellation
+			List<SpotInstanceRequest> cancelled = ec2.describeSpotInstanceRequests(
+					new DescribeSpotInstanceRequestsRequest().withSpotInstanceRequestIds(spotInstanceRequestIds)).getSpotInstanceRequests();
+			for (SpotInstanceRequest request : cancelled) {
+				if (request.getInstanceId() == null)
 					continue;
-				}
-				logger.println("Request finished with state: "+describeResponse.getState()+ " " + describeResponse.getSpotInstanceRequestId() + " Instance id : " + describeResponse.getInstanceId());
-				fulfilled.add(describeResponse.getInstanceId());
-				spotInstanceRequestIds.remove(describeResponse.getSpotInstanceRequestId());
+				fulfilledMeanwhile.add(request);
+				unfulfilledSlaves.remove(getSlaveToAssociate(request.getSpotInstanceRequestId()));
+			}
+		} catch (RuntimeException e) {
+			logger.println("Could not cancel the expired spot requests, replacing their slaves anyway: " + e.getMessage());
+		} finally {
+			if (!fulfilledMeanwhile.isEmpty())
+				requestsFinished(fulfilledMeanwhile);
+			replaceByOnDemandSlaves(unfulfilledSlaves);
+		}
+	}
+
+	private void replaceByOnDemandSlaves(List<EC2AbstractSlave> spotSlaves) {
+		if (spotSlaves.isEmpty())
+			return;
+		logger.println("Provisioning " + spotSlaves.size() + " on-demand instances in place of the unfulfilled spot requests");
+		List<EC2AbstractSlave> replacements;
+		try {
+			replacements = slaveTemplate.provisionOnDemandSlaves(spec, logger, spotSlaves.size(), 1);
+		} catch (RuntimeException e) {
+			logger.println("Could not provision on-demand replacements: " + e.getMessage());
+			replacements = new ArrayList<EC2AbstractSlave>();
+		}
+
+		EC2AxisCloud cloud = (EC2AxisCloud) slaveTemplate.getParent();
+		for (int i = 0; i < spotSlaves.size(); i++) {
+			EC2AbstractSlave spotSlave = spotSlaves.get(i);
+			forgetSlave(spotSlave);
+			if (i >= replacements.size()) {
+				logger.println("No replacement for " + spotSlave.getDisplayName() + ", cancelling its queued items");
+				Utils.finishSlaveAndQueuedItems(spotSlave);
+				continue;
+			}
+			EC2AbstractSlave replacement = replacements.get(i);
+			try {
+				cloud.bindToReplacedLabel(replacement, spotSlave);
+				logger.println(replacement.getDisplayName() + " takes over " + spotSlave.getDisplayName());
+				spotSlave.terminate();
+			} catch (IOException | RuntimeException e) {
+				logger.printStackTrace(e);
+				Utils.finishSlaveAndQueuedItems(spotSlave);
 			}
-			
-			makeInstancesConnectBackOnJenkins(fulfilled, remainingSlaves);
-		} catch (Exception e) {
-			logger.printStackTrace(e);
 		}
 	}
 
-	private void makeInstancesConnectBackOnJenkins(List<String> fulfilledInstanceIds, LinkedList<EC2AbstractSlave> remainingSlaves) 
+	private synchronized void forgetSlave(EC2AbstractSlave slave) {
+		remainingSlaves.remove(slave);
+	}
+
+	private void makeInstancesConnectBackOnJenkins(List<String> fulfilledInstanceIds) 
 			throws AmazonClientException, IOException {
 		if (fulfilledInstanceIds.size() == 0)
 			return;
@@ -122,21 +179,38 @@ final class SpotRequestConnectSupervisor implements Runnable {
 		
 		logger.println("Count of instances to connect to: " + instances.size());
 		for (final Instance instance : instances) {
-			final EC2AbstractSlave slaveToAssociate = getSlaveToAssociate(instance.getSpotInstanceRequestId(), remainingSlaves);
+			final EC2AbstractSlave slaveToAssociate = getSlaveToAssociate(instance.getSpotInstanceRequestId());
 			if(slaveToAssociate == null){
 				String message = "SlaveToAssociate is null!!! "+instance.getInstanceId()+"/"+instance.getPrivateIpAddress();
 				logger.println(message);
 				throw new RuntimeException(message);
 			}
-			logger.println("Firing up connection for "+instance.getSpotInstanceRequestId()+" : "+instance.getInstanceId()+"/"+instance.getPrivateIpAddress());
-			new Thread(new Runnable() {  @Override public void run() {
-				associateSlaveToInstanceIpAddress(instance, slaveToAssociate);
-			}}).start();
+			logger.println("Waiting for SSH on "+instance.getSpotInstanceRequestId()+" : "+instance.getInstanceId()+"/"+instance.getPrivateIpAddress());
+			final long timeout = EC2AxisCloud.getTimeout(slaveToAssociate);
+			InetSocketAddress sshAddress = new InetSocketAddress(instance.getPrivateIpAddress(), SshPortReadinessProber.SSH_PORT);
+			SshPortReadinessProber.get().probe(sshAddress, timeout, new SshPortReadinessProber.Listener() {
+				@Override
+				public void ready(InetSocketAddress address) {
+					try {
+						associateSlaveToInstanceIpAddress(instance, slaveToAssociate);
+					} catch (RuntimeException e) {
+						logger.println("Failed to connect " + slaveToAssociate.getDisplayName() + "/" + instance.getInstanceId());
+						logger.printStackTrace(e);
+						Utils.finishSlaveAndQueuedItems(slaveToAssociate);
+					}
+				}
+
+				@Override
+				public void timedOut(InetSocketAddress address) {
+					Utils.finishSlaveAndQueuedItems(slaveToAssociate);
+					logger.println("SSH port of " + slaveToAssociate.getDisplayName() + "/" + instance.getInstanceId() + " did not open after " + timeout + " ms");
+				}
+			});
 		}
-		logger.println("Done firing up threads to handle connections for " + StringUtils.join(fulfilledInstanceIds,", "));
+		logger.println("Probing SSH readiness of " + StringUtils.join(fulfilledInstanceIds,", "));
 	}
 
-	private EC2AbstractSlave getSlaveToAssociate(String reqId, LinkedList<EC2AbstractSlave> remainingSlaves) {
+	private synchronized EC2AbstractSlave getSlaveToAssociate(String reqId) {
 		for (EC2AbstractSlave ec2AbstractSlave : remainingSlaves) {
 			if (((EC2SpotSlave)ec2AbstractSlave).getSpotInstanceRequestId().equals(reqId)) {
 				return ec2AbstractSlave;
@@ -157,15 +231,22 @@ final class SpotRequestConnectSupervisor implements Runnable {
 		String slaveName = slaveToAssociate.getDisplayName();
 		
 		logger.println("Trying to connect Slave " + slaveName + " "+ slaveToAssociate.getLabelString() + " to "+privateIpAddress);
-		do{
-			success = tryToLaunchSlave(slaveToAssociate.getNodeName(), privateIpAddress);
-			try {
-				Thread.sleep(retryIntervalMillis);
-			} catch (InterruptedException e) {
-				logger.println("InterruptedException!!");
-				logger.printStackTrace(e);
-			}
-		} while(!success && System.currentTimeMillis() < maxWait );
+		SshAgentBootstrap bootstrap = new SshAgentBootstrap(privateIpAddress, remoteAdmin, privateKey, logger);
+		try {
+			do{
+				success = tryToLaunchSlave(bootstrap, slaveToAssociate.getNodeName(), privateIpAddress);
+				if (success)
+					break;
+				try {
+					Thread.sleep(retryIntervalMillis);
+				} catch (InterruptedException e) {
+					logger.println("InterruptedException!!");
+					logger.printStackTrace(e);
+				}
+			} while(System.currentTimeMillis() < maxWait );
+		} finally {
+			bootstrap.close();
+		}
 		
 		stopwatch.stop();
 		String slaveIdentString = slaveName+"/"+instance.getInstanceId()+"/"+privateIpAddress;
@@ -175,60 +256,19 @@ final class SpotRequestConnectSupervisor implements Runnable {
 		}
 		else {
 			logger.println("It took " + stopwatch.getTime() + " ms to connect to "+ slaveIdentString);
+			SpotInterruptionWatcher.get().watch(slaveTemplate, (EC2SpotSlave) slaveToAssociate, instance.getInstanceId());
 		}
 	}
 
-	private boolean tryToLaunchSlave(String slaveToAssociate, String privateIpAddress) {
+	private boolean tryToLaunchSlave(SshAgentBootstrap bootstrap, String slaveToAssociate, String privateIpAddress) {
 		String jenkinsUrl = Hudson.getInstance().getRootUrl();
-		
 		try {
-			Connection sshConnection = new Connection(privateIpAddress);
-			sshConnection.connect(new ServerHostKeyVerifier() {
-		        public boolean verifyServerHostKey(String hostname, int port, String serverHostKeyAlgorithm, byte[] serverHostKey) throws Exception {
-		            return true;
-		        }
-		    });
-			if (sshConnection.authenticateWithPublicKey(remoteAdmin, privateKey, "")) {
-				logger.println("Will associate slave " + slaveToAssociate + " with instance whose ip is " + privateIpAddress);
-				
-				try {
-					startSlaveAgentOnRemoteInstance(slaveToAssociate, jenkinsUrl, sshConnection);
-					logger.println("Successfully connected to "+privateIpAddress);
-					return true; 
-				} catch (IOException | InterruptedException e) {
-					return false;
-				}
-			}
-			else {
-				String message = "Could not connect with user " + remoteAdmin + " on " + privateIpAddress;
-				logger.println(message);
-				throw new RuntimeException(message);
-			}
+			bootstrap.bootstrap(slaveToAssociate, jenkinsUrl);
+			logger.println("Successfully connected to "+privateIpAddress);
+			return true;
 		} catch (IOException e) {
+			logger.println("Could not start agent on " + privateIpAddress + ": " + e.getMessage());
 			return false;
 		}
 	}
-
-	private void startSlaveAgentOnRemoteInstance(String slaveToAssociate, String jenkinsUrl, Connection sshConnection)
-					throws IOException,	InterruptedException {
-		Session openSession = sshConnection.openSession();
-		String wgetCmd = "wget " + jenkinsUrl + "jnlpJars/slave.jar -O slave.jar";
-		String encodedSlaveToAssociate = slaveToAssociate.replace(" ", "%20");
-		String slaveLaunch = "java -jar slave.jar -jnlpUrl \"" + jenkinsUrl + "computer/" + encodedSlaveToAssociate + "/slave-agent.jnlp\"";
-		String slaveLaunchCmd = "nohup " +slaveLaunch + " > slave.log 2> slave.err </dev/null &";
-		
-		execCommandAndWaitForCompletion(openSession, wgetCmd + " && " + slaveLaunchCmd);
-		openSession.close();
-	}
-
-	private void execCommandAndWaitForCompletion(Session openSession, String cmd) throws IOException, InterruptedException {
-		long timeoutForCommand = TimeUnit.MINUTES.toMillis(5);
-		openSession.execCommand(cmd);
-		openSession.waitForCondition(ChannelCondition.EXIT_STATUS, timeoutForCommand);
-		Integer exitStatus = openSession.getExitStatus();
-		if(exitStatus != 0){
-			logger.println("Command failed: " + cmd);
-			throw new RuntimeException("Command failed: " + cmd);
-		}
-	}
 }
@@ -0,0 +1,327 @@
+package hudson.plugins.ec2;
+
+import hudson.plugins.ec2.utils.ExecutorUtils;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+
+/**
+ * Watches the open spot requests of a cloud, for all the builds at once.
+ *
+ * Every poll describes all the requests that are due in as few calls as
+ * possible. Young requests are polled every few seconds, older ones less and
+ * less often, up to once a minute. A batch naming a request EC2 does not know
+ * is split until the unknown request is isolated, so it does not hold up the
+ * others.
+ */
+final class SpotRequestPoller {
+	private static final Logger LOGGER = Logger.getLogger(SpotRequestPoller.class.getName());
+
+	static final long MIN_POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+	static final long MAX_POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+	static final int DESCRIBE_BATCH_SIZE = 200;
+	static final String REQUEST_NOT_FOUND_ERROR_CODE = "InvalidSpotInstanceRequestID.NotFound";
+	/* new requests take a moment to become visible to describe calls */
+	static final long NOT_FOUND_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new NamingThreadFactory(new DaemonThreadFactory(), "EC2 Axis spot request poller"));
+	private static final ConcurrentMap<String, SpotRequestPoller> pollersByCloud = new ConcurrentHashMap<String, SpotRequestPoller>();
+
+	interface Listener {
+		EC2Logger getLogger();
+
+		/**
+		 * Called, off the poller thread, with the requests of this listener that
+		 * are no longer open.
+		 */
+		void requestsFinished(List<SpotInstanceRequest> finished);
+
+		/**
+		 * Called, off the poller thread, with the requests of this listener that
+		 * were still open when their fulfillment deadline passed. They are no
+		 * longer watched.
+		 */
+		void requestsExpired(List<String> spotInstanceRequestIds);
+	}
+
+	static class PendingRequest {
+		final Listener listener;
+		final long createdAt;
+		final long fulfillmentDeadline;
+		long dueAt;
+
+		PendingRequest(Listener listener, long now, long fulfillmentTimeoutMillis) {
+			this.listener = listener;
+			this.createdAt = now;
+			this.fulfillmentDeadline = fulfillmentTimeoutMillis > 0 ? now + fulfillmentTimeoutMillis : 0;
+			this.dueAt = now + MIN_POLL_INTERVAL_MILLIS;
+		}
+
+		void scheduleNextCheck(long now) {
+			dueAt = now + pollIntervalFor(now - createdAt);
+			if (fulfillmentDeadline > 0)
+				dueAt = Math.min(dueAt, Math.max(fulfillmentDeadline, now + MIN_POLL_INTERVAL_MILLIS));
+		}
+
+		boolean isPastDeadline(long now) {
+			return fulfillmentDeadline > 0 && now >= fulfillmentDeadline;
+		}
+	}
+
+	private final String cloudName;
+	private final Map<String, PendingRequest> pending = new LinkedHashMap<String, PendingRequest>();
+	private final EC2Logger pollLogger = new EC2Logger(new LogTaskListener(LOGGER, Level.INFO).getLogger());
+	private AmazonEC2 ec2;
+	private ScheduledFuture<?> nextPoll;
+	private long nextPollAt;
+
+	SpotRequestPoller(String cloudName) {
+		this.cloudName = cloudName;
+	}
+
+	public static SpotRequestPoller forCloud(EC2Cloud cloud) {
+		SpotRequestPoller created = new SpotRequestPoller(cloud.name);
+		SpotRequestPoller existing = pollersByCloud.putIfAbsent(cloud.name, created);
+		return existing != null ? existing : created;
+	}
+
+	/**
+	 * Starts watching the given requests, notifying the listener once they are
+	 * no longer open, or once they have been open for longer than
+	 * fulfillmentTimeoutMillis if positive. The poller retries throttled calls on 
+	 * its own, ec2 must not be wrapped with the logger of a build.
+	 */
+	public synchronized void watch(AmazonEC2 ec2, List<SpotInstanceRequest> requests, Listener listener, long fulfillmentTimeoutMillis) {
+		this.ec2 = AmazonEC2Insistent.wrap(ec2, pollLogger);
+		long now = System.currentTimeMillis();
+		for (SpotInstanceRequest request : requests) {
+			if (request == null)
+				continue;
+			pending.put(request.getSpotInstanceRequestId(), new PendingRequest(listener, now, fulfillmentTimeoutMillis));
+		}
+		scheduleNextPoll();
+	}
+
+	/**
+	 * Stops watching the given requests, typically because they were cancelled.
+	 */
+	public synchronized void forget(List<String> spotInstanceRequestIds) {
+		for (String id : spotInstanceRequestIds)
+			pending.remove(id);
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	static long pollIntervalFor(long ageMillis) {
+		long interval = MIN_POLL_INTERVAL_MILLIS;
+		long threshold = TimeUnit.MINUTES.toMillis(1);
+		while (ageMillis >= threshold && interval < MAX_POLL_INTERVAL_MILLIS) {
+			interval *= 2;
+			threshold *= 2;
+		}
+		return Math.min(interval, MAX_POLL_INTERVAL_MILLIS);
+	}
+
+	private synchronized void scheduleNextPoll() {
+		if (pending.isEmpty())
+			return;
+		long dueAt = Long.MAX_VALUE;
+		for (PendingRequest request : pending.values())
+			dueAt = Math.min(dueAt, request.dueAt);
+		if (nextPoll != null && !nextPoll.isDone() && nextPollAt <= dueAt)
+			return;
+		if (nextPoll != null)
+			nextPoll.cancel(false);
+		nextPollAt = dueAt;
+		nextPoll = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				poll(System.currentTimeMillis());
+			}
+		}, Math.max(0, dueAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	void poll(long now) {
+		List<String> dueIds = new ArrayList<String>();
+		AmazonEC2 client;
+		synchronized (this) {
+			nextPoll = null;
+			for (Map.Entry<String, PendingRequest> entry : pending.entrySet()) {
+				if (entry.getValue().dueAt <= now)
+					dueIds.add(entry.getKey());
+			}
+			client = ec2;
+		}
+
+		Map<Listener, List<SpotInstanceRequest>> finishedByListener = new HashMap<Listener, List<SpotInstanceRequest>>();
+		Map<Listener, List<String>> expiredByListener = new HashMap<Listener, List<String>>();
+		for (int i = 0; i < dueIds.size(); i += DESCRIBE_BATCH_SIZE) {
+			List<String> batch = dueIds.subList(i, Math.min(dueIds.size(), i + DESCRIBE_BATCH_SIZE));
+			describe(client, batch, now, finishedByListener, expiredByListener);
+		}
+
+		synchronized (this) {
+			now = Math.max(now, System.currentTimeMillis());
+			for (String id : dueIds) {
+				PendingRequest request = pending.get(id);
+				if (request != null)
+					request.scheduleNextCheck(now);
+			}
+			scheduleNextPoll();
+		}
+		LOGGER.log(Level.FINE, "Polled {0} spot requests of cloud {1}", new Object[]{dueIds.size(), cloudName});
+
+		for (Map.Entry<Listener, List<SpotInstanceRequest>> finished : finishedByListener.entrySet())
+			dispatch(finished.getKey(), finished.getValue());
+		for (Map.Entry<Listener, List<String>> expired : expiredByListener.entrySet())
+			dispatchExpired(expired.getKey(), expired.getValue());
+	}
+
+	private void describe(
+			AmazonEC2 client,
+			List<String> batch,
+			long now,
+			Map<Listener, List<SpotInstanceRequest>> finishedByListener,
+			Map<Listener, List<String>> expiredByListener) {
+		try {
+			List<SpotInstanceRequest> described = client.describeSpotInstanceRequests(
+					new DescribeSpotInstanceRequestsRequest().withSpotInstanceRequestIds(batch)).getSpotInstanceRequests();
+			collectFinished(described, now, finishedByListener, expiredByListener);
+		} catch (AmazonServiceException e) {
+			if (!REQUEST_NOT_FOUND_ERROR_CODE.equals(e.getErrorCode())) {
+				reportFailure(batch, e);
+				return;
+			}
+			if (batch.size() == 1) {
+				collectNotFound(batch.get(0), now, expiredByListener);
+				return;
+			}
+			int half = batch.size() / 2;
+			describe(client, batch.subList(0, half), now, finishedByListener, expiredByListener);
+			describe(client, batch.subList(half, batch.size()), now, finishedByListener, expiredByListener);
+		} catch (Exception e) {
+			reportFailure(batch, e);
+		}
+	}
+
+	private synchronized void collectFinished(
+			List<SpotInstanceRequest> described, 
+			long now,
+			Map<Listener, List<SpotInstanceRequest>> finishedByListener,
+			Map<Listener, List<String>> expiredByListener) {
+		for (SpotInstanceRequest request : described) {
+			if ("open".equals(request.getState())) {
+				collectExpired(request.getSpotInstanceRequestId(), now, expiredByListener);
+				continue;
+			}
+			PendingRequest finished = pending.remove(request.getSpotInstanceRequestId());
+			if (finished == null)
+				continue;
+			finished.listener.getLogger().println("Request finished with state: " + request.getState() + " "
+					+ request.getSpotInstanceRequestId() + " Instance id : " + request.getInstanceId());
+			List<SpotInstanceRequest> listenerRequests = finishedByListener.get(finished.listener);
+			if (listenerRequests == null) {
+				listenerRequests = new ArrayList<SpotInstanceRequest>();
+				finishedByListener.put(finished.listener, listenerRequests);
+			}
+			listenerRequests.add(request);
+		}
+	}
+
+	/**
+	 * A request EC2 still does not know once it had time to become visible is
+	 * given up on like one whose fulfillment deadline passed.
+	 */
+	private synchronized void collectNotFound(String spotInstanceRequestId, long now, Map<Listener, List<String>> expiredByListener) {
+		PendingRequest unknown = pending.get(spotInstanceRequestId);
+		if (unknown == null || unknown.isPastDeadline(now) || now - unknown.createdAt < NOT_FOUND_GRACE_MILLIS) {
+			collectExpired(spotInstanceRequestId, now, expiredByListener);
+			return;
+		}
+		unknown.listener.getLogger().println("Spot request " + spotInstanceRequestId + " can no longer be found");
+		expire(spotInstanceRequestId, unknown, expiredByListener);
+	}
+
+	private void collectExpired(String spotInstanceRequestId, long now, Map<Listener, List<String>> expiredByListener) {
+		PendingRequest open = pending.get(spotInstanceRequestId);
+		if (open == null || !open.isPastDeadline(now))
+			return;
+		expire(spotInstanceRequestId, open, expiredByListener);
+	}
+
+	private void expire(String spotInstanceRequestId, PendingRequest open, Map<Listener, List<String>> expiredByListener) {
+		pending.remove(spotInstanceRequestId);
+		List<String> listenerRequests = expiredByListener.get(open.listener);
+		if (listenerRequests == null) {
+			listenerRequests = new ArrayList<String>();
+			expiredByListener.put(open.listener, listenerRequests);
+		}
+		listenerRequests.add(spotInstanceRequestId);
+	}
+
+	private synchronized void reportFailure(List<String> batch, Exception e) {
+		LOGGER.log(Level.WARNING, "Failed to describe spot requests of cloud " + cloudName, e);
+		Set<Listener> listeners = new LinkedHashSet<Listener>();
+		for (String id : batch) {
+			PendingRequest request = pending.get(id);
+			if (request != null)
+				listeners.add(request.listener);
+		}
+		for (Listener listener : listeners) {
+			listener.getLogger().println("Failed to check whether spot requests have been fulfilled, will retry: " + e.getMessage());
+		}
+	}
+
+	private void dispatch(final Listener listener, final List<SpotInstanceRequest> finished) {
+		ExecutorUtils.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					listener.requestsFinished(finished);
+				} catch (Exception e) {
+					listener.getLogger().printStackTrace(e);
+				}
+				return null;
+			}
+		});
+	}
+
+	private void dispatchExpired(final Listener listener, final List<String> expired) {
+		ExecutorUtils.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					listener.requestsExpired(expired);
+				} catch (Exception e) {
+					listener.getLogger().printStackTrace(e);
+				}
+				return null;
+			}
+		});
+	}
+}
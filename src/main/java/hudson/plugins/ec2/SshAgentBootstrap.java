@@ -0,0 +1,296 @@
+package hudson.plugins.ec2;
+
+import hudson.plugins.ec2.utils.ExecutorUtils;
+import hudson.plugins.ec2.utils.RuntimeTimeoutException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+import com.trilead.ssh2.ServerHostKeyVerifier;
+import com.trilead.ssh2.Session;
+import com.trilead.ssh2.StreamGobbler;
+
+/**
+ * Starts the agent on an instance over a single authenticated SSH connection.
+ *
+ * The preflight check and the probe of the installed agent jar run side by
+ * side, then the jar is pushed if needed and the agent launched. Every step
+ * has its own timeout. When a command fails, typically because the instance
+ * is still initializing, the connection is kept for the next attempt; it is
+ * closed once the agent is launched, when the connection itself fails, or by
+ * {@link #close()}.
+ *
+ * Also runs the init script of warm pool instances before they are stopped.
+ */
+final class SshAgentBootstrap {
+	static final String AGENT_JAR = "slave.jar";
+	/* the marker the launcher of the base plugin skips the init script on */
+	static final String INIT_MARKER = "~/.hudson-run-init";
+	static final long INIT_SCRIPT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+	static final class Timeouts {
+		final long connectMillis;
+		final long preflightMillis;
+		final long installMillis;
+		final long launchMillis;
+
+		Timeouts(long connectMillis, long preflightMillis, long installMillis, long launchMillis) {
+			this.connectMillis = connectMillis;
+			this.preflightMillis = preflightMillis;
+			this.installMillis = installMillis;
+			this.launchMillis = launchMillis;
+		}
+	}
+
+	static final Timeouts DEFAULT_TIMEOUTS = new Timeouts(
+			TimeUnit.SECONDS.toMillis(30),
+			TimeUnit.SECONDS.toMillis(60),
+			TimeUnit.MINUTES.toMillis(2),
+			TimeUnit.SECONDS.toMillis(60));
+
+	private final String host;
+	private final int port;
+	private final String user;
+	private final char[] privateKey;
+	private final EC2Logger logger;
+	private final Timeouts timeouts;
+	private AgentJarCache agentJar;
+	private Connection connection;
+
+	/**
+	 * A command that ran and failed, the connection it ran on is still usable.
+	 */
+	static final class StepFailedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		StepFailedException(String message) {
+			super(message);
+		}
+	}
+
+	SshAgentBootstrap(String host, String user, char[] privateKey, EC2Logger logger) {
+		this(host, SshPortReadinessProber.SSH_PORT, user, privateKey, logger, DEFAULT_TIMEOUTS, null);
+	}
+
+	SshAgentBootstrap(String host, int port, String user, char[] privateKey, EC2Logger logger, Timeouts timeouts, AgentJarCache agentJar) {
+		this.host = host;
+		this.port = port;
+		this.user = user;
+		this.privateKey = privateKey;
+		this.logger = logger;
+		this.timeouts = timeouts;
+		this.agentJar = agentJar;
+	}
+
+	/**
+	 * Installs the agent jar if missing and launches the agent for the given 
+	 * node, connecting first unless a previous attempt left an authenticated 
+	 * connection. Any IOException is worth a retry.
+	 */
+	public void bootstrap(String nodeName, String jenkinsUrl) throws IOException {
+		boolean keepConnection = false;
+		try {
+			Connection connection = connect();
+			logger.println("Authenticated on " + host + ", starting agent for " + nodeName);
+
+			Step preflight = new Step("preflight", "java -version", timeouts.preflightMillis);
+			Step probe = new Step("agent jar probe", "sha256sum " + AGENT_JAR + " 2>/dev/null", timeouts.preflightMillis);
+			String installedChecksum;
+			try {
+				preflight.start(connection);
+				probe.start(connection);
+				preflight.awaitSuccess();
+				installedChecksum = probe.await() == 0 ? probe.getOutput() : null;
+			} finally {
+				preflight.close();
+				probe.close();
+			}
+
+			installAgentJarUnlessPresent(connection, installedChecksum);
+			new Step("launch", launchCommand(nodeName, jenkinsUrl), timeouts.launchMillis).start(connection).awaitSuccess();
+			logger.println("Agent launched on " + host);
+		} catch (StepFailedException e) {
+			keepConnection = true;
+			throw e;
+		} finally {
+			if (!keepConnection)
+				close();
+		}
+	}
+
+	/**
+	 * Runs the init script of the template once, as the launcher of the base
+	 * plugin does, leaving the marker that makes it skip the script when it 
+	 * connects later. Always closes the connection.
+	 */
+	public void runInitScript(String initScript, String rootCommandPrefix) throws IOException {
+		try {
+			Connection connection = connect();
+			if (new Step("init marker probe", "test -e " + INIT_MARKER, timeouts.preflightMillis).start(connection).await() == 0) {
+				logger.println("Init script already ran on " + host);
+				return;
+			}
+			copy(connection, initScript.getBytes("UTF-8"), "init.sh", "/tmp", "0700");
+			new Step("init script", withPrefix(rootCommandPrefix, "/tmp/init.sh"), INIT_SCRIPT_TIMEOUT_MILLIS)
+				.withPty().start(connection).awaitSuccess();
+			new Step("init marker", withPrefix(rootCommandPrefix, "touch " + INIT_MARKER), timeouts.preflightMillis)
+				.start(connection).awaitSuccess();
+			logger.println("Init script ran on " + host);
+		} finally {
+			close();
+		}
+	}
+
+	private static String withPrefix(String rootCommandPrefix, String command) {
+		if (rootCommandPrefix == null || rootCommandPrefix.trim().isEmpty())
+			return command;
+		return rootCommandPrefix.trim() + " " + command;
+	}
+
+	/**
+	 * Closes the connection a failed attempt kept open, if any.
+	 */
+	public void close() {
+		if (connection == null)
+			return;
+		connection.close();
+		connection = null;
+	}
+
+	private Connection connect() throws IOException {
+		if (connection != null)
+			return connection;
+		Connection connecting = new Connection(host, port);
+		try {
+			connecting.connect(new ServerHostKeyVerifier() {
+				public boolean verifyServerHostKey(String hostname, int port, String serverHostKeyAlgorithm, byte[] serverHostKey) throws Exception {
+					return true;
+				}
+			}, (int) timeouts.connectMillis, (int) timeouts.connectMillis);
+			if (!connecting.authenticateWithPublicKey(user, privateKey, ""))
+				throw new IOException("Could not authenticate with user " + user + " on " + host);
+		} catch (IOException e) {
+			connecting.close();
+			throw e;
+		}
+		connection = connecting;
+		return connection;
+	}
+
+	static String launchCommand(String nodeName, String jenkinsUrl) {
+		String encodedNodeName = nodeName.replace(" ", "%20");
+		String slaveLaunch = "java -jar " + AGENT_JAR + " -jnlpUrl \"" + jenkinsUrl + "computer/" + encodedNodeName + "/slave-agent.jnlp\"";
+		return "nohup " + slaveLaunch + " > slave.log 2> slave.err </dev/null &";
+	}
+
+	private void installAgentJarUnlessPresent(final Connection connection, String installedChecksum) throws IOException {
+		AgentJarCache jar = getAgentJar();
+		if (jar.matches(installedChecksum)) {
+			logger.println(AGENT_JAR + " on " + host + " is up to date");
+			return;
+		}
+		copy(connection, jar.getJar(), AGENT_JAR, ".", "0644");
+		logger.println("Copied " + AGENT_JAR + " to " + host);
+	}
+
+	private void copy(final Connection connection, final byte[] data, final String fileName, final String directory, final String mode) throws IOException {
+		try {
+			ExecutorUtils.runBlockWithTimeout(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						new SCPClient(connection).put(data, fileName, directory, mode);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}, timeouts.installMillis, TimeUnit.MILLISECONDS);
+		} catch (RuntimeTimeoutException e) {
+			throw new IOException("Copying " + fileName + " to " + host + " timed out after " + timeouts.installMillis + " ms", e);
+		} catch (RuntimeException e) {
+			throw new IOException("Could not copy " + fileName + " to " + host, e);
+		}
+	}
+
+	private synchronized AgentJarCache getAgentJar() throws IOException {
+		if (agentJar == null)
+			agentJar = AgentJarCache.get();
+		return agentJar;
+	}
+
+	/**
+	 * One command running on its own session of the shared connection.
+	 */
+	private final class Step {
+		private final String name;
+		private final String command;
+		private final long timeoutMillis;
+		private boolean pty;
+		private Session session;
+		private InputStream stdout;
+		private String output;
+
+		Step(String name, String command, long timeoutMillis) {
+			this.name = name;
+			this.command = command;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		/**
+		 * Runs the command on a terminal, as init scripts calling sudo may need one.
+		 */
+		Step withPty() {
+			pty = true;
+			return this;
+		}
+
+		Step start(Connection connection) throws IOException {
+			session = connection.openSession();
+			if (pty)
+				session.requestDumbPTY();
+			stdout = new StreamGobbler(session.getStdout());
+			new StreamGobbler(session.getStderr());
+			session.execCommand(command);
+			return this;
+		}
+
+		int await() throws IOException {
+			try {
+				int condition = session.waitForCondition(ChannelCondition.EXIT_STATUS | ChannelCondition.CLOSED, timeoutMillis);
+				if ((condition & ChannelCondition.TIMEOUT) != 0)
+					throw new IOException("Step " + name + " timed out after " + timeoutMillis + " ms on " + host);
+				Integer exitStatus = session.getExitStatus();
+				if (exitStatus == null)
+					throw new IOException("Step " + name + " ended without exit status on " + host);
+				if (exitStatus == 0)
+					output = IOUtils.toString(stdout, "UTF-8");
+				return exitStatus;
+			} finally {
+				close();
+			}
+		}
+
+		void close() {
+			if (session == null)
+				return;
+			session.close();
+			session = null;
+		}
+
+		void awaitSuccess() throws IOException {
+			int exitStatus = await();
+			if (exitStatus != 0)
+				throw new StepFailedException("Step " + name + " failed on " + host + " with exit status " + exitStatus + ": " + command);
+		}
+
+		String getOutput() {
+			return output;
+		}
+	}
+}
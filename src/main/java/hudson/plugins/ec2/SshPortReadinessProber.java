@@ -0,0 +1,227 @@
+package hudson.plugins.ec2;
+
+import hudson.plugins.ec2.utils.ExecutorUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for booting instances to accept TCP connections, typically on the SSH
+ * port, before anything tries to log into them.
+ *
+ * All the probes are non-blocking connects multiplexed on a single selector
+ * thread. Listeners are notified on the worker pool.
+ */
+public final class SshPortReadinessProber {
+	private static final Logger LOGGER = Logger.getLogger(SshPortReadinessProber.class.getName());
+	public static final int SSH_PORT = 22;
+
+	private static SshPortReadinessProber instance;
+
+	public interface Listener {
+		void ready(InetSocketAddress address);
+
+		void timedOut(InetSocketAddress address);
+	}
+
+	private static class Probe {
+		final InetSocketAddress address;
+		final long deadline;
+		final Listener listener;
+		SocketChannel channel;
+		long attemptDeadline;
+		long retryAt;
+
+		Probe(InetSocketAddress address, long deadline, Listener listener) {
+			this.address = address;
+			this.deadline = deadline;
+			this.listener = listener;
+		}
+	}
+
+	private final long retryIntervalMillis;
+	private final long attemptTimeoutMillis;
+	private final Queue<Probe> submitted = new ConcurrentLinkedQueue<Probe>();
+	private final List<Probe> waiting = new ArrayList<Probe>();
+	private final Selector selector;
+
+	SshPortReadinessProber(long retryIntervalMillis, long attemptTimeoutMillis) throws IOException {
+		this.retryIntervalMillis = retryIntervalMillis;
+		this.attemptTimeoutMillis = attemptTimeoutMillis;
+		this.selector = Selector.open();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "EC2 Axis readiness prober");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static synchronized SshPortReadinessProber get() {
+		if (instance == null) {
+			try {
+				instance = new SshPortReadinessProber(TimeUnit.SECONDS.toMillis(2), TimeUnit.SECONDS.toMillis(5));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Probes the address until it accepts a connection or the timeout expires.
+	 */
+	public void probe(InetSocketAddress address, long timeoutMillis, Listener listener) {
+		submitted.add(new Probe(address, System.currentTimeMillis() + timeoutMillis, listener));
+		selector.wakeup();
+	}
+
+	private void loop() {
+		while (true) {
+			try {
+				selector.select(startDueProbes());
+				long now = System.currentTimeMillis();
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while (selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+					finishConnect((Probe) key.attachment(), now);
+				}
+				expireAttempts(now);
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Readiness prober failure", e);
+			}
+		}
+	}
+
+	/**
+	 * Starts a connection attempt for every probe due for one and returns how
+	 * long the selector may sleep.
+	 */
+	private long startDueProbes() {
+		Probe fresh;
+		while ((fresh = submitted.poll()) != null)
+			waiting.add(fresh);
+
+		long now = System.currentTimeMillis();
+		long wakeUpAt = Long.MAX_VALUE;
+		Iterator<Probe> it = waiting.iterator();
+		while (it.hasNext()) {
+			Probe probe = it.next();
+			if (now >= probe.deadline) {
+				it.remove();
+				notifyTimedOut(probe);
+				continue;
+			}
+			if (probe.retryAt > now) {
+				wakeUpAt = Math.min(wakeUpAt, probe.retryAt);
+				continue;
+			}
+			it.remove();
+			startAttempt(probe, now);
+		}
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid())
+				wakeUpAt = Math.min(wakeUpAt, ((Probe) key.attachment()).attemptDeadline);
+		}
+
+		if (wakeUpAt == Long.MAX_VALUE)
+			return 0;
+		return Math.max(1, wakeUpAt - System.currentTimeMillis());
+	}
+
+	private void startAttempt(Probe probe, long now) {
+		try {
+			SocketChannel channel = SocketChannel.open();
+			probe.channel = channel;
+			channel.configureBlocking(false);
+			if (channel.connect(probe.address)) {
+				closeChannel(probe);
+				notifyReady(probe);
+				return;
+			}
+			probe.attemptDeadline = Math.min(probe.deadline, now + attemptTimeoutMillis);
+			channel.register(selector, SelectionKey.OP_CONNECT, probe);
+		} catch (IOException e) {
+			retryLater(probe, now);
+		}
+	}
+
+	private void finishConnect(Probe probe, long now) {
+		try {
+			if (!probe.channel.finishConnect())
+				return;
+			closeChannel(probe);
+			notifyReady(probe);
+		} catch (IOException e) {
+			retryLater(probe, now);
+		}
+	}
+
+	private void expireAttempts(long now) {
+		for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+			Probe probe = (Probe) key.attachment();
+			if (key.isValid() && now >= probe.attemptDeadline)
+				retryLater(probe, now);
+		}
+	}
+
+	private void retryLater(Probe probe, long now) {
+		closeChannel(probe);
+		probe.retryAt = now + retryIntervalMillis;
+		waiting.add(probe);
+	}
+
+	private void closeChannel(Probe probe) {
+		if (probe.channel == null)
+			return;
+		try {
+			probe.channel.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Failed to close probe to " + probe.address, e);
+		}
+		probe.channel = null;
+	}
+
+	private void notifyReady(final Probe probe) {
+		ExecutorUtils.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					probe.listener.ready(probe.address);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Readiness listener of " + probe.address + " failed", e);
+				}
+				return null;
+			}
+		});
+	}
+
+	private void notifyTimedOut(final Probe probe) {
+		ExecutorUtils.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					probe.listener.timedOut(probe.address);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Readiness listener of " + probe.address + " failed", e);
+				}
+				return null;
+			}
+		});
+	}
+}
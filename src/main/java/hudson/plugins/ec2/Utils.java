@@ -1,8 +1,12 @@
 package hudson.plugins.ec2;
 
+import hudson.model.Label;
+import hudson.model.Node;
 import hudson.model.Queue;
+import hudson.slaves.NodeListener;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import jenkins.model.Jenkins;
@@ -12,27 +16,61 @@ import org.jenkinsci.plugins.ec2axis.Ec2SafeNodeTaskWorker;
 
 public class Utils {
 	public static void finishSlaveAndQueuedItems(EC2AbstractSlave slave) {
+		cancelQueuedItems(slave.getDisplayName());
+		if (!slave.stopOnTerminate)
+			slave.terminate();
+	}
+
+	public static void cancelQueuedItems(String assignedLabel) {
 		Queue.Item[] items = Jenkins.getInstance().getQueue().getItems();
 		for (Queue.Item item : items) {
-			if (item.task.getAssignedLabel().getDisplayName().equals(slave.getDisplayName())) {
+			Label itemLabel = item.task.getAssignedLabel();
+			if (itemLabel != null && itemLabel.getDisplayName().equals(assignedLabel)) {
 				Jenkins.getInstance().getQueue().cancel(item);
 			}
 		}
-		if (!slave.stopOnTerminate)
-			slave.terminate();
 	}
 
-	public static void addNodesAndWait(final List<EC2AbstractSlave> allocatedSlaves) {
+	public static void addNodesAndWait(final List<? extends Node> nodesToAdd) {
+		if (nodesToAdd.isEmpty())
+			return;
 		Ec2SafeNodeTaskWorker.invokeAndWait(new Runnable() {
 			@Override public void run() { 
-				for (EC2AbstractSlave nodeToAdd : allocatedSlaves) {
-					try {
-						Jenkins.getInstance().addNode(nodeToAdd);
-					} catch (IOException e) {
-						throw new RuntimeException(e);
-					}
+				addNodes(nodesToAdd);
+			}
+		});
+	}
+
+	/**
+	 * Adds the nodes with a single update of the node list under the queue lock,
+	 * so the queue never sees part of an allocation and the computers are 
+	 * refreshed and the node list saved once rather than once per node. If the 
+	 * node list can't be saved, the nodes are taken out again.
+	 */
+	public static void addNodes(final List<? extends Node> nodesToAdd) {
+		Queue.withLock(new Runnable() {
+			@Override public void run() {
+				Jenkins jenkins = Jenkins.getInstance();
+				List<Node> previous = new ArrayList<Node>(jenkins.getNodes());
+				List<Node> nodes = new ArrayList<Node>(previous);
+				nodes.addAll(nodesToAdd);
+				try {
+					jenkins.setNodes(nodes);
+				} catch (IOException e) {
+					rollBack(previous, e);
+					throw new RuntimeException(e);
 				}
 			}
 		});
+		for (Node node : nodesToAdd) 
+			NodeListener.fireOnCreated(node);
+	}
+
+	private static void rollBack(List<Node> previous, IOException failure) {
+		try {
+			Jenkins.getInstance().setNodes(previous);
+		} catch (IOException e) {
+			failure.addSuppressed(e);
+		}
 	}
 }
@@ -0,0 +1,48 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps the warm pool of every {@link Ec2AxisSlaveTemplate} filled with stopped
+ * instances, so matrix allocations start existing instances instead of booting
+ * new ones from the AMI.
+ */
+@Extension
+public class WarmPoolMaintainer extends AsyncPeriodicWork {
+
+	public WarmPoolMaintainer() {
+		super("EC2 Axis warm pool maintainer");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit.MINUTES.toMillis(1);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) {
+		EC2Logger logger = new EC2Logger(listener.getLogger());
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof EC2AxisCloud))
+				continue;
+			for (SlaveTemplate template : ((EC2AxisCloud) cloud).getTemplates()) {
+				Ec2AxisSlaveTemplate axisTemplate = (Ec2AxisSlaveTemplate) template;
+				if (axisTemplate.getWarmPoolSize() <= 0)
+					continue;
+				try {
+					axisTemplate.replenishWarmPool(logger);
+				} catch (Exception e) {
+					logger.println("Failed to replenish warm pool for template " + axisTemplate.description);
+					logger.printStackTrace(e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.services.ec2.model.InstanceType;
+
+/**
+ * An instance type a spot request can be spread over, with its share of the
+ * request. Written as "type[:weight]", the weight defaulting to 1.
+ */
+public final class WeightedInstanceType {
+	private final InstanceType type;
+	private final int weight;
+
+	public WeightedInstanceType(InstanceType type, int weight) {
+		if (weight <= 0)
+			throw new IllegalArgumentException("Weight of " + type + " must be positive: " + weight);
+		this.type = type;
+		this.weight = weight;
+	}
+
+	public InstanceType getType() {
+		return type;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Parses a whitespace or comma separated list such as "m1.large:4 m1.xlarge:4 c1.xlarge:8".
+	 */
+	public static List<WeightedInstanceType> parse(String instanceTypes) {
+		List<WeightedInstanceType> parsed = new ArrayList<WeightedInstanceType>();
+		if (StringUtils.isBlank(instanceTypes))
+			return parsed;
+		for (String entry : instanceTypes.trim().split("[\\s,]+")) {
+			String typeName = StringUtils.substringBefore(entry, ":");
+			String weight = StringUtils.substringAfter(entry, ":");
+			try {
+				parsed.add(new WeightedInstanceType(
+						InstanceType.fromValue(typeName),
+						StringUtils.isEmpty(weight) ? 1 : Integer.parseInt(weight)));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid instance type entry '" + entry + "'", e);
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * Splits count instances across the types in proportion to their weights,
+	 * handing the remainder to the types with the largest fractional share.
+	 * Types that get nothing are left out.
+	 */
+	public static Map<InstanceType, Integer> split(List<WeightedInstanceType> types, int count) {
+		Map<InstanceType, Integer> shares = new LinkedHashMap<InstanceType, Integer>();
+		int totalWeight = 0;
+		for (WeightedInstanceType type : types)
+			totalWeight += type.weight;
+		if (totalWeight == 0 || count <= 0)
+			return shares;
+
+		final long[] remainders = new long[types.size()];
+		int assigned = 0;
+		for (int i = 0; i < types.size(); i++) {
+			long exact = (long) count * types.get(i).weight;
+			int share = (int) (exact / totalWeight);
+			remainders[i] = exact % totalWeight;
+			Integer previous = shares.get(types.get(i).type);
+			shares.put(types.get(i).type, previous == null ? share : previous + share);
+			assigned += share;
+		}
+
+		List<Integer> byRemainder = new ArrayList<Integer>();
+		for (int i = 0; i < types.size(); i++)
+			byRemainder.add(i);
+		Collections.sort(byRemainder, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(remainders[b], remainders[a]);
+			}
+		});
+		for (int i = 0; assigned < count; i++, assigned++) {
+			InstanceType type = types.get(byRemainder.get(i)).type;
+			shares.put(type, shares.get(type) + 1);
+		}
+
+		Map<InstanceType, Integer> nonEmpty = new LinkedHashMap<InstanceType, Integer>();
+		for (Map.Entry<InstanceType, Integer> share : shares.entrySet()) {
+			if (share.getValue() > 0)
+				nonEmpty.put(share.getKey(), share.getValue());
+		}
+		return nonEmpty;
+	}
+
+	@Override
+	public String toString() {
+		return type + ":" + weight;
+	}
+}
@@ -1,5 +1,8 @@
 package hudson.plugins.ec2.utils;
 
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -9,12 +12,18 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class ExecutorUtils {
+	private static final ExecutorService executor = Executors.newCachedThreadPool(
+			new NamingThreadFactory(new DaemonThreadFactory(), "EC2 Axis worker"));
+
+	public static <T> Future<T> submit(Callable<T> task) {
+		return executor.submit(task);
+	}
+
 	public static void runBlockWithTimeoutInSeconds(final Runnable runnable, long timeout) {
 		runBlockWithTimeout(runnable, timeout, TimeUnit.SECONDS);
 	}
-	
+
 	public static void runBlockWithTimeout(final Runnable runnable, long timeout, TimeUnit timeUnit) {
-		ExecutorService executor = Executors.newCachedThreadPool();
 		Callable<Void> task = new Callable<Void>() {
 		   public Void call() {
 			   runnable.run();
@@ -23,13 +32,14 @@ public class ExecutorUtils {
 		};
 		Future<Void> future = executor.submit(task);
 		try {
-		   future.get(timeout, timeUnit); 
+		   future.get(timeout, timeUnit);
 		} catch (InterruptedException e) {
 			throw new RuntimeException(e);
 		} catch (ExecutionException e) {
 		   throw new RuntimeException(e);
 		} catch (TimeoutException e) {
+			future.cancel(true);
 			throw new RuntimeTimeoutException(e);
-		} 
+		}
 	}
 }
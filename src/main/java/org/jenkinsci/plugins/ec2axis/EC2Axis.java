@@ -12,10 +12,12 @@ import hudson.matrix.MatrixProject;
 import hudson.model.AutoCompletionCandidates;
 import hudson.model.Messages;
 import hudson.model.Label;
-import hudson.model.Run;
+import hudson.model.Node;
 import hudson.model.labels.LabelAtom;
+import hudson.plugins.ec2.DemandHistory;
 import hudson.plugins.ec2.EC2AxisCloud;
 import hudson.plugins.ec2.EC2Logger;
+import hudson.plugins.ec2.Ec2AxisSlaveTemplate;
 import hudson.util.FormValidation;
 
 import java.text.MessageFormat;
@@ -24,12 +26,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
 
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -41,6 +43,7 @@ public class EC2Axis extends LabelAxis {
 	private final String ec2label;
 	private final Integer instanceBootTimeoutLimit;
 	private boolean createMatrixEnvironmentVariable = false;
+	private Integer minimumNumberOfSlaves;
 
 	@DataBoundConstructor
 	public EC2Axis(String name, String ec2label, Integer numberOfSlaves, boolean alwaysCreateNewNodes, boolean createMatrixEnvironmentVariable) {
@@ -64,6 +67,19 @@ public class EC2Axis extends LabelAxis {
 		this.numberOfSlaves = numberOfSlaves;
 	}
 
+	/**
+	 * The smallest number of slaves the build can start with. The missing ones are
+	 * provisioned while the build runs. Null means all slaves are required upfront.
+	 */
+	public Integer getMinimumNumberOfSlaves() {
+		return minimumNumberOfSlaves;
+	}
+
+	@DataBoundSetter
+	public void setMinimumNumberOfSlaves(Integer minimumNumberOfSlaves) {
+		this.minimumNumberOfSlaves = minimumNumberOfSlaves;
+	}
+
 	public Integer getInstanceBootTimeoutLimit() {
 		return instanceBootTimeoutLimit;
 	}
@@ -72,19 +88,28 @@ public class EC2Axis extends LabelAxis {
 		return alwaysCreateNewNodes;
 	}
 
-	final static ReentrantLock  labelAllocationLock = new ReentrantLock();
-	
 	@Override
 	public List<String> rebuild(MatrixBuild.MatrixBuildExecution context) {
 		EC2AxisCloud cloudToUse = getCloudToUse();
+		Ec2AxisSlaveTemplate template = cloudToUse.getTemplate(new LabelAtom(ec2label));
+		if (template != null && template.getMaxPredictiveSlaves() > 0)
+			DemandHistory.get().record(ec2label, numberOfSlaves);
 		
-		addEc2Description(context, cloudToUse);
+		Ec2AxisDescriptionAction description = addEc2Description(context, cloudToUse);
 
-		try {
-			lockForIdleNodeAllocationIfNeeded();
-			return allocateNodes(context, cloudToUse);
-		}finally {
-			releaseLockForIdleNodeAllocation();
+		List<String> allocatedLabels = allocateNodes(context, cloudToUse);
+		recordInstanceTypes(description, allocatedLabels);
+		return allocatedLabels;
+	}
+
+	private void recordInstanceTypes(Ec2AxisDescriptionAction description, List<String> allocatedLabels) {
+		for (String allocatedLabel : allocatedLabels) {
+			Node node = Jenkins.getInstance().getNode(allocatedLabel);
+			if (node == null) 
+				continue;
+			String nodeInstanceType = Ec2AxisSlaveTemplate.getInstanceTypeOf(node);
+			if (nodeInstanceType != null) 
+				description.addNodeInstanceType(allocatedLabel, nodeInstanceType);
 		}
 	}
 
@@ -96,7 +121,7 @@ public class EC2Axis extends LabelAxis {
 		return cloudToUse;
 	}
 
-	private void addEc2Description(MatrixBuild.MatrixBuildExecution context, EC2AxisCloud cloudToUse) 
+	private Ec2AxisDescriptionAction addEc2Description(MatrixBuild.MatrixBuildExecution context, EC2AxisCloud cloudToUse) 
 	{
 		Ec2AxisDescriptionAction e = new Ec2AxisDescriptionAction(
 				ec2label,
@@ -104,13 +129,14 @@ public class EC2Axis extends LabelAxis {
 				cloudToUse.getInstanceType(ec2label),
 				cloudToUse.getSpotPriceIfApplicable(ec2label));
 		context.getBuild().getActions().add(e);
+		return e;
 	}
 
 	public List<String> allocateNodes(MatrixBuild.MatrixBuildExecution context,
 			EC2AxisCloud cloudToUse) {
-		EC2Logger ec2Logger = new EC2Logger(context.getListener().getLogger());
+		EC2Logger ec2Logger = new EC2Logger(context.getListener().getLogger(), context.getBuild());
 		List<String> allocateSlavesLabels = cloudToUse.allocateSlavesLabels(
-				ec2Logger, ec2label, numberOfSlaves, instanceBootTimeoutLimit, alwaysCreateNewNodes, createMatrixEnvironmentVariable
+				ec2Logger, ec2label, numberOfSlaves, minimumNumberOfSlaves, instanceBootTimeoutLimit, alwaysCreateNewNodes, createMatrixEnvironmentVariable
 				);
 		
 		ec2Logger.println("Will run on the following labels:-------");
@@ -122,22 +148,6 @@ public class EC2Axis extends LabelAxis {
 		return allocateSlavesLabels;
 	}
 
-	private void releaseLockForIdleNodeAllocation() {
-		if (alwaysCreateNewNodes)
-			return;
-		labelAllocationLock.unlock();
-	}
-
-	public void lockForIdleNodeAllocationIfNeeded() {
-		if (alwaysCreateNewNodes)
-			return;
-		try {
-			labelAllocationLock.lockInterruptibly();
-		} catch (InterruptedException e1) {
-			throw new Run.RunnerAbortedException();
-		}
-	}
-
 	@Override
 	public List<String> getValues() {
 		StaplerRequest currentRequest = getCurrentRequest();
@@ -219,7 +229,7 @@ public class EC2Axis extends LabelAxis {
 	}
 
 	public int hashCode() {
-                return Objects.hash(name, ec2label, numberOfSlaves, instanceBootTimeoutLimit, createMatrixEnvironmentVariable);
+                return Objects.hash(name, ec2label, numberOfSlaves, minimumNumberOfSlaves, instanceBootTimeoutLimit, createMatrixEnvironmentVariable);
 	}
 
 	public boolean equals(Object obj) {
@@ -234,6 +244,7 @@ public class EC2Axis extends LabelAxis {
                 Objects.equals(other.name, this.name) &&
                 Objects.equals(other.ec2label, this.ec2label) &&
                 Objects.equals(other.numberOfSlaves, this.numberOfSlaves) &&
+                Objects.equals(other.minimumNumberOfSlaves, this.minimumNumberOfSlaves) &&
                 Objects.equals(other.alwaysCreateNewNodes, this.alwaysCreateNewNodes) &&
                 Objects.equals(other.instanceBootTimeoutLimit, this.instanceBootTimeoutLimit) &&
                 Objects.equals(other.createMatrixEnvironmentVariable, this.createMatrixEnvironmentVariable);
@@ -249,13 +260,44 @@ public class EC2Axis extends LabelAxis {
 	
 	    @Override
 	    public Axis newInstance(StaplerRequest req, JSONObject formData) throws FormException {
-	        return new EC2Axis(
+	        EC2Axis axis = new EC2Axis(
 	                formData.getString("name"),
 	                formData.getString("ec2label"),
 	                formData.getInt("numberOfSlaves"),
 	                formData.getBoolean("alwaysCreateNewNodes"),
 	                formData.getBoolean("createMatrixEnvironmentVariable")
 	        );
+	        String minimumNumberOfSlaves = Util.fixEmptyAndTrim(formData.optString("minimumNumberOfSlaves"));
+	        if (minimumNumberOfSlaves != null) {
+	        	if (parseNonNegative(minimumNumberOfSlaves) == null)
+	        		throw new FormException("Minimum number of slaves must be a number of 0 or more", "minimumNumberOfSlaves");
+	        	axis.setMinimumNumberOfSlaves(Integer.valueOf(minimumNumberOfSlaves));
+	        }
+	        return axis;
+	    }
+
+	    public FormValidation doCheckMinimumNumberOfSlaves(@QueryParameter String value, @QueryParameter String numberOfSlaves) {
+	    	String minimum = Util.fixEmptyAndTrim(value);
+	    	if (minimum == null)
+	    		return FormValidation.ok();
+	    	Integer parsed = parseNonNegative(minimum);
+	    	if (parsed == null)
+	    		return FormValidation.error("Must be a number of 0 or more");
+	    	Integer total = parseNonNegative(Util.fixEmptyAndTrim(numberOfSlaves));
+	    	if (total != null && parsed > total)
+	    		return FormValidation.warning("Larger than the number of slaves to run, all of them will be required upfront");
+	    	return FormValidation.ok();
+	    }
+
+	    private static Integer parseNonNegative(String value) {
+	    	if (value == null)
+	    		return null;
+	    	try {
+	    		int parsed = Integer.parseInt(value);
+	    		return parsed < 0 ? null : parsed;
+	    	} catch (NumberFormatException e) {
+	    		return null;
+	    	}
 	    }
 	    
 	    public FormValidation doCheckEc2label(@QueryParameter String value) {
@@ -2,12 +2,16 @@ package org.jenkinsci.plugins.ec2axis;
 
 import hudson.model.Action;
 
+import java.util.Map;
+import java.util.TreeMap;
+
 public class Ec2AxisDescriptionAction implements Action {
 
 	private String ec2label;
 	private Integer numberOfSlaves;
 	private String currentBidPrice;
 	private String instanceType;
+	private Map<String, String> instanceTypesByNode;
 
 	public Ec2AxisDescriptionAction(String ec2label, Integer numberOfSlaves, String instanceType, String currentBidPrice) 
 	{
@@ -18,6 +22,21 @@ public class Ec2AxisDescriptionAction implements Action {
 	}
 	
 	
+	/**
+	 * Records the instance type the given node was launched with.
+	 */
+	public synchronized void addNodeInstanceType(String nodeName, String nodeInstanceType) {
+		if (instanceTypesByNode == null)
+			instanceTypesByNode = new TreeMap<String, String>();
+		instanceTypesByNode.put(nodeName, nodeInstanceType);
+	}
+
+	public synchronized Map<String, String> getInstanceTypesByNode() {
+		if (instanceTypesByNode == null)
+			return new TreeMap<String, String>();
+		return new TreeMap<String, String>(instanceTypesByNode);
+	}
+	
     public String getIconPath() { return ""; }
     public String getText() { 
     	String text = 
@@ -28,6 +47,12 @@ public class Ec2AxisDescriptionAction implements Action {
     		text += "<br><b>Instance Type:</b> " + instanceType;
     	if (currentBidPrice != null) 
     		text += "<br><b>Spot bid price:</b> $" + currentBidPrice;
+    	Map<String, String> nodeTypes = getInstanceTypesByNode();
+    	if (!nodeTypes.isEmpty()) {
+    		text += "<br><b>Instance type per slave:</b>";
+    		for (Map.Entry<String, String> nodeType : nodeTypes.entrySet()) 
+    			text += "<br>" + nodeType.getKey() + ": " + nodeType.getValue();
+    	}
     	
     	return text; 
     }
@@ -1,20 +1,29 @@
 package org.jenkinsci.plugins.ec2axis;
 
-import hudson.Extension;
-import hudson.model.PeriodicWork;
-
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-@Extension
-public class Ec2SafeNodeTaskWorker extends PeriodicWork {
-	private static BlockingQueue<FutureTask<Void>> tasks = new LinkedBlockingQueue<>();
-        private static final Logger LOGGER = Logger.getLogger(Ec2SafeNodeTaskWorker.class.getName());
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Runs the tasks changing the node list one at a time, in submission order, on
+ * a dedicated thread that picks them up as soon as they are queued.
+ */
+public class Ec2SafeNodeTaskWorker {
+	private static final Logger LOGGER = Logger.getLogger(Ec2SafeNodeTaskWorker.class.getName());
+	private static final BlockingQueue<QueuedTask> tasks = new LinkedBlockingQueue<QueuedTask>();
+
+	private static final AtomicLong completedTasks = new AtomicLong();
+	private static final AtomicLong totalLatencyNanos = new AtomicLong();
+	private static volatile long lastLatencyNanos;
+	private static Thread consumer;
 
 	public static void invokeAndWait(final Runnable task) {
 		FutureTask<Void> futureTask = invoke(task);
@@ -25,29 +34,125 @@ public class Ec2SafeNodeTaskWorker extends PeriodicWork {
 		}
 	}
 
-	@Override
-	public long getRecurrencePeriod() {
-		return TimeUnit.SECONDS.toMillis(1);
+	public static FutureTask<Void> invoke(final Runnable task) {
+		ensureConsumerStarted();
+		QueuedTask queuedTask = new QueuedTask(task);
+		boolean inserted = tasks.offer(queuedTask);
+		if (!inserted) {
+			LOGGER.log(Level.FINE, "Failed to insert task {0} into queue", queuedTask.toString());
+		}
+		return queuedTask;
+	}
+
+	/**
+	 * How busy the worker is, for the remote API of the axis clouds.
+	 */
+	public static Stats getStats() {
+		long completed = completedTasks.get();
+		long averageLatencyNanos = completed == 0 ? 0 : totalLatencyNanos.get() / completed;
+		return new Stats(tasks.size(), completed,
+				TimeUnit.NANOSECONDS.toMillis(lastLatencyNanos), TimeUnit.NANOSECONDS.toMillis(averageLatencyNanos));
 	}
 
-	@Override
-	protected void doRun() throws Exception {
-		if (tasks.isEmpty())
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Stats {
+		private final int queueDepth;
+		private final long completedTasks;
+		private final long lastTaskLatencyMillis;
+		private final long averageTaskLatencyMillis;
+
+		Stats(int queueDepth, long completedTasks, long lastTaskLatencyMillis, long averageTaskLatencyMillis) {
+			this.queueDepth = queueDepth;
+			this.completedTasks = completedTasks;
+			this.lastTaskLatencyMillis = lastTaskLatencyMillis;
+			this.averageTaskLatencyMillis = averageTaskLatencyMillis;
+		}
+
+		/**
+		 * Number of tasks waiting to be run.
+		 */
+		@Exported
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		@Exported
+		public long getCompletedTasks() {
+			return completedTasks;
+		}
+
+		/**
+		 * Time between the submission and the end of the last task, in milliseconds.
+		 */
+		@Exported
+		public long getLastTaskLatencyMillis() {
+			return lastTaskLatencyMillis;
+		}
+
+		@Exported
+		public long getAverageTaskLatencyMillis() {
+			return averageTaskLatencyMillis;
+		}
+	}
+
+	private static synchronized void ensureConsumerStarted() {
+		if (consumer != null && consumer.isAlive())
 			return;
-		while(!tasks.isEmpty()) {
-			FutureTask<Void> safeEc2Task = tasks.take();
-			safeEc2Task.run();
+		consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				consumeTasks();
+			}
+		}, "EC2 Axis safe node task worker");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	private static void consumeTasks() {
+		while (true) {
+			QueuedTask task;
+			try {
+				task = tasks.take();
+			} catch (InterruptedException e) {
+				LOGGER.log(Level.FINE, "Safe node task worker interrupted, waiting for the next task");
+				continue;
+			}
+			runTask(task);
 		}
 	}
 
-	public static FutureTask<Void> invoke(final Runnable task) {
-		FutureTask<Void> futureTask = new FutureTask<>(task, null);
-		boolean inserted = tasks.offer(futureTask);
-                if (!inserted) {
-                    LOGGER.log(Level.FINE, "Failed to insert task {0} into queue", futureTask.toString());
-                }
-		return futureTask;
+	private static void runTask(QueuedTask task) {
+		task.run();
+		long latency = System.nanoTime() - task.queuedAt;
+		lastLatencyNanos = latency;
+		totalLatencyNanos.addAndGet(latency);
+		completedTasks.incrementAndGet();
+		LOGGER.log(Level.FINE, "Node task completed {0} ms after being queued",
+				TimeUnit.NANOSECONDS.toMillis(latency));
 	}
-		
 
+	private static class QueuedTask extends FutureTask<Void> {
+		private final long queuedAt = System.nanoTime();
+
+		QueuedTask(Runnable task) {
+			super(task, null);
+		}
+
+		/**
+		 * The future keeps what the task threw, log it for the callers that do 
+		 * not wait for it.
+		 */
+		@Override
+		protected void done() {
+			if (isCancelled())
+				return;
+			try {
+				get();
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.WARNING, "Node task " + this + " failed", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 }
@@ -0,0 +1,31 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class AgentJarCacheTest {
+	private static final String SHA256_OF_ABC = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	private final AgentJarCache subject = new AgentJarCache("abc".getBytes());
+
+	@Test
+	public void computesSha256OfJar() {
+		assertEquals(SHA256_OF_ABC, subject.getSha256());
+	}
+
+	@Test
+	public void matchesSha256sumOutputForSameJar() {
+		assertTrue(subject.matches(SHA256_OF_ABC + "  slave.jar\n"));
+	}
+
+	@Test
+	public void doesNotMatchOtherOrMissingJar() {
+		assertFalse(subject.matches("0000000000000000000000000000000000000000000000000000000000000000  slave.jar\n"));
+		assertFalse(subject.matches(""));
+		assertFalse(subject.matches(null));
+	}
+}
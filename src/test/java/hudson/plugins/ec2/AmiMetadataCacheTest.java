@@ -0,0 +1,97 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesResult;
+import com.amazonaws.services.ec2.model.Image;
+
+
+public class AmiMetadataCacheTest {
+
+	private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+	private final BlockDeviceMapping rootDevice = new BlockDeviceMapping().withDeviceName("/dev/sda1");
+	private AmiMetadataCache subject = new AmiMetadataCache(60000);
+
+	@Rule
+	public ExpectedException expectedException= ExpectedException.none();
+
+	@Before
+	public void setUp() {
+		Image image = new Image().withImageId("ami-1234").withBlockDeviceMappings(rootDevice);
+		when(ec2.describeImages(any(DescribeImagesRequest.class)))
+			.thenReturn(new DescribeImagesResult().withImages(image));
+	}
+
+	@Test
+	public void describesOnlyTheRequestedAmi() {
+		List<BlockDeviceMapping> mappings = subject.getBlockDeviceMappings(ec2, "us-east-1", "ami-1234");
+
+		assertEquals(Arrays.asList(rootDevice), mappings);
+		ArgumentCaptor<DescribeImagesRequest> request = ArgumentCaptor.forClass(DescribeImagesRequest.class);
+		verify(ec2).describeImages(request.capture());
+		assertEquals(Arrays.asList("ami-1234"), request.getValue().getImageIds());
+	}
+
+	@Test
+	public void repeatedLookupsHitTheCache() {
+		for (int i = 0; i < 10; i++)
+			subject.getBlockDeviceMappings(ec2, "us-east-1", "ami-1234");
+
+		verify(ec2, times(1)).describeImages(any(DescribeImagesRequest.class));
+	}
+
+	@Test
+	public void regionsAreCachedSeparately() {
+		subject.getBlockDeviceMappings(ec2, "us-east-1", "ami-1234");
+		subject.getBlockDeviceMappings(ec2, "eu-west-1", "ami-1234");
+		subject.getBlockDeviceMappings(ec2, "eu-west-1", "ami-1234");
+
+		verify(ec2, times(2)).describeImages(any(DescribeImagesRequest.class));
+	}
+
+	@Test
+	public void invalidationForcesNewLookup() {
+		subject.getBlockDeviceMappings(ec2, "us-east-1", "ami-1234");
+		subject.invalidate("us-east-1", "ami-1234");
+		subject.getBlockDeviceMappings(ec2, "us-east-1", "ami-1234");
+		subject.invalidateRegion("us-east-1");
+		subject.getBlockDeviceMappings(ec2, "us-east-1", "ami-1234");
+
+		verify(ec2, times(3)).describeImages(any(DescribeImagesRequest.class));
+	}
+
+	@Test
+	public void expiredEntriesAreReloaded() {
+		subject = new AmiMetadataCache(0);
+		subject.getBlockDeviceMappings(ec2, "us-east-1", "ami-1234");
+		subject.getBlockDeviceMappings(ec2, "us-east-1", "ami-1234");
+
+		verify(ec2, times(2)).describeImages(any(DescribeImagesRequest.class));
+	}
+
+	@Test
+	public void errorWhenAmiIsNotFound() {
+		expectedException.expect(AmazonClientException.class);
+		expectedException.expectMessage("ami-unknown");
+
+		subject.getBlockDeviceMappings(ec2, "us-east-1", "ami-unknown");
+	}
+}
@@ -0,0 +1,161 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class AxisIdleNodeIndexTest {
+
+	private final Map<String, Computer> computers = new HashMap<String, Computer>();
+	private final AxisIdleNodeIndex index = new AxisIdleNodeIndex() {
+		@Override
+		Computer computerOf(String nodeName) {
+			return computers.get(nodeName);
+		}
+	};
+
+	@After
+	public void releaseLeases() {
+		for (String nodeName : computers.keySet())
+			NodeReservations.get().release(nodeName);
+	}
+
+	@Test
+	public void indexesNodesUnderTheEc2LabelsOfTheirAxisLabels() {
+		Node node = mock(Node.class);
+		when(node.getAssignedLabels()).thenReturn(new LinkedHashSet<LabelAtom>(Arrays.asList(
+				new LabelAtom("linux$axis"), 
+				new LabelAtom("linux-pending-1a2b3c4d"),
+				new LabelAtom("windows$axis"))));
+
+		assertEquals(Arrays.asList("linux", "windows"), AxisIdleNodeIndex.ec2LabelsOf(node));
+	}
+
+	@Test
+	public void ignoresNodesWithoutAxisLabel() {
+		Node node = mock(Node.class);
+		when(node.getAssignedLabels()).thenReturn(Collections.singleton(new LabelAtom("linux")));
+
+		assertEquals(Collections.<String>emptyList(), AxisIdleNodeIndex.ec2LabelsOf(node));
+	}
+
+	@Test
+	public void executorEventsAddAndRemoveSlaves() {
+		Executor executor = mock(Executor.class);
+		Computer computer = computer("index-events", executor);
+
+		index.update(computer, null);
+		assertEquals(Collections.<String>emptyList(), idleNodes("linux"));
+
+		index.update(computer, executor);
+		assertEquals(Arrays.asList("index-events"), idleNodes("linux"));
+
+		index.update(computer, null);
+		assertEquals(Collections.<String>emptyList(), idleNodes("linux"));
+	}
+
+	@Test
+	public void offlineSlavesAreRemoved() {
+		Executor executor = idleExecutor();
+		Computer computer = computer("index-offline", executor);
+		index.update(computer, null);
+
+		when(computer.isOnline()).thenReturn(false);
+		index.update(computer, null);
+
+		assertEquals(Collections.<String>emptyList(), idleNodes("linux"));
+	}
+
+	@Test
+	public void pollingTakesIdleSlavesInOrderAndLeasesThem() {
+		index.update(computer("index-poll-1", idleExecutor()), null);
+		index.update(computer("index-poll-2", idleExecutor()), null);
+		index.update(computer("index-poll-3", idleExecutor()), null);
+
+		assertEquals(Arrays.asList("index-poll-1", "index-poll-2"), nodeNames(index.pollIdle("linux", 2, null)));
+		assertTrue(NodeReservations.get().isReserved("index-poll-1"));
+		assertTrue(NodeReservations.get().isReserved("index-poll-2"));
+		assertEquals(Arrays.asList("index-poll-3"), idleNodes("linux"));
+	}
+
+	@Test
+	public void pollingDropsTheBusyAndLeasedSlavesItGoesThrough() {
+		Executor busy = mock(Executor.class);
+		index.update(computer("index-busy", busy), busy);
+		index.update(computer("index-leased", idleExecutor()), null);
+		index.update(computer("index-gone", idleExecutor()), null);
+		index.update(computer("index-idle", idleExecutor()), null);
+		index.update(computer("index-spare", idleExecutor()), null);
+		NodeReservations.get().tryReserve("index-leased", null);
+		computers.remove("index-gone");
+
+		assertEquals(Arrays.asList("index-idle"), nodeNames(index.pollIdle("linux", 1, null)));
+		assertEquals(Arrays.asList("index-spare"), idleNodes("linux"));
+	}
+
+	@Test
+	public void releasedSlavesGoBackToTheIndex() {
+		index.update(computer("index-released", idleExecutor()), null);
+		index.pollIdle("linux", 1, null);
+		assertEquals(Collections.<String>emptyList(), idleNodes("linux"));
+
+		NodeReservations.get().release("index-released");
+		index.reindex("index-released");
+
+		assertEquals(Arrays.asList("index-released"), idleNodes("linux"));
+		assertFalse(index.pollIdle("linux", 1, null).isEmpty());
+	}
+
+	private List<String> idleNodes(String ec2Label) {
+		for (AxisIdleNodeIndex.LabelEntry entry : index.getEntries()) {
+			if (entry.getEc2Label().equals(ec2Label))
+				return entry.getIdleNodes();
+		}
+		return Collections.emptyList();
+	}
+
+	private Computer computer(String nodeName, Executor executor) {
+		EC2AbstractSlave slave = mock(EC2AbstractSlave.class);
+		when(slave.getNodeName()).thenReturn(nodeName);
+		when(slave.getAssignedLabels()).thenReturn(Collections.singleton(new LabelAtom("linux$axis")));
+		Computer computer = mock(Computer.class);
+		when(computer.getNode()).thenReturn(slave);
+		when(computer.isOnline()).thenReturn(true);
+		when(computer.isAcceptingTasks()).thenReturn(true);
+		when(computer.getExecutors()).thenReturn(Arrays.asList(executor));
+		computers.put(nodeName, computer);
+		return computer;
+	}
+
+	private static Executor idleExecutor() {
+		Executor executor = mock(Executor.class);
+		when(executor.isIdle()).thenReturn(true);
+		return executor;
+	}
+
+	private static List<String> nodeNames(List<EC2AbstractSlave> slaves) {
+		List<String> nodeNames = new ArrayList<String>();
+		for (EC2AbstractSlave slave : slaves)
+			nodeNames.add(slave.getNodeName());
+		return nodeNames;
+	}
+}
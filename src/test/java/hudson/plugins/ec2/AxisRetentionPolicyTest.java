@@ -0,0 +1,89 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class AxisRetentionPolicyTest {
+	private static final long NOW = TimeUnit.DAYS.toMillis(100);
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+	private final AxisRetentionPolicy subject = new AxisRetentionPolicy();
+
+	@Test
+	public void longestIdleSlavesBeyondTheKeptOnesAreSelected() {
+		List<AxisRetentionPolicy.IdleNode> idle = Arrays.asList(
+				idleFor("b", 2 * HOUR), idleFor("a", 3 * HOUR), idleFor("c", HOUR), idleFor("d", HOUR / 2));
+
+		assertEquals(Arrays.asList("a", "b"), AxisRetentionPolicy.selectForTermination(idle, 2, NOW));
+	}
+
+	@Test
+	public void slavesIdleForLessThanTheGracePeriodAreKept() {
+		List<AxisRetentionPolicy.IdleNode> idle = Arrays.asList(
+				idleFor("a", HOUR), idleFor("b", AxisRetentionPolicy.IDLE_GRACE_MILLIS / 2));
+
+		assertEquals(Arrays.asList("a"), AxisRetentionPolicy.selectForTermination(idle, 0, NOW));
+	}
+
+	@Test
+	public void atMostABatchIsSelectedAtATime() {
+		List<AxisRetentionPolicy.IdleNode> idle = new ArrayList<AxisRetentionPolicy.IdleNode>();
+		for (int i = 0; i < AxisRetentionPolicy.TERMINATION_BATCH_SIZE * 2; i++)
+			idle.add(idleFor("node-" + i, HOUR));
+
+		assertEquals(AxisRetentionPolicy.TERMINATION_BATCH_SIZE, AxisRetentionPolicy.selectForTermination(idle, 0, NOW).size());
+	}
+
+	@Test
+	public void nothingIsSelectedBelowTheKeptCount() {
+		assertTrue(AxisRetentionPolicy.selectForTermination(Arrays.asList(idleFor("a", HOUR)), 2, NOW).isEmpty());
+	}
+
+	@Test
+	public void retentionGrowsWithRecentRequests() {
+		subject.recordAllocation("linux", 1, 3, NOW - 2 * AxisRetentionPolicy.RATE_WINDOW_MILLIS);
+		subject.recordAllocation("linux", 2, 4, NOW - AxisRetentionPolicy.RATE_WINDOW_MILLIS / 2);
+		subject.recordAllocation("linux", 0, 2, NOW);
+
+		int recentlyRequested = subject.recentlyRequested("linux", NOW);
+		assertEquals(8, recentlyRequested);
+		assertEquals(8, AxisRetentionPolicy.warmNodesToKeep(2, recentlyRequested));
+		assertEquals(2, AxisRetentionPolicy.warmNodesToKeep(2, subject.recentlyRequested("windows", NOW)));
+	}
+
+	@Test
+	public void hitRateIsTheShareOfReusedSlaves() {
+		subject.recordAllocation("linux", 3, 1, NOW);
+		subject.recordAllocation("linux", 3, 3, NOW);
+
+		AxisRetentionPolicy.LabelEntry entry = subject.getEntries().get(0);
+		assertEquals(6, entry.getReused());
+		assertEquals(4, entry.getProvisioned());
+		assertEquals(0.6, entry.getHitRate(), 0.001);
+	}
+
+	@Test
+	public void slavesNoLongerKeptWarmFallBackToTheIdleTerminationOfTheirTemplate() {
+		assertEquals(TimeUnit.MINUTES.toMillis(45), AxisRetentionPolicy.unmanagedIdleMillis("45"));
+		assertEquals(0, AxisRetentionPolicy.unmanagedIdleMillis("0"));
+	}
+
+	@Test
+	public void slavesWithoutUsableIdleTerminationGetTheBackstop() {
+		assertEquals(AxisRetentionPolicy.UNMANAGED_IDLE_MILLIS, AxisRetentionPolicy.unmanagedIdleMillis(null));
+		assertEquals(AxisRetentionPolicy.UNMANAGED_IDLE_MILLIS, AxisRetentionPolicy.unmanagedIdleMillis("-5"));
+		assertEquals(AxisRetentionPolicy.UNMANAGED_IDLE_MILLIS, AxisRetentionPolicy.unmanagedIdleMillis(""));
+	}
+
+	private static AxisRetentionPolicy.IdleNode idleFor(String nodeName, long millis) {
+		return new AxisRetentionPolicy.IdleNode(nodeName, NOW - millis);
+	}
+}
@@ -0,0 +1,177 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+
+
+public class CapacityFanOutTest {
+
+	private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+	private final EC2Logger logger = mock(EC2Logger.class);
+	private final CapacityFanOut<Instance> subject = new CapacityFanOut<Instance>(logger);
+	private final Map<String, Integer> capacityBySubnet = new HashMap<String, Integer>();
+	private final List<String> requestedSubnets = new ArrayList<String>();
+	private final Set<String> subnetsOverInstanceLimit = new HashSet<String>();
+
+	@Before
+	public void setUp() {
+		when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(new FakeRunInstances());
+	}
+
+	@Test
+	public void splitsRequestAcrossAllPlacements() {
+		capacityBySubnet.put("subnet-a", 10);
+		capacityBySubnet.put("subnet-b", 10);
+		capacityBySubnet.put("subnet-c", 10);
+
+		CapacityFanOut.Result<Instance> result = subject.launch(targets("subnet-a", "subnet-b", "subnet-c"), 9);
+
+		assertEquals(9, result.getLaunched().size());
+		assertEquals(0, result.getShortfall());
+		assertEquals(3, requestedSubnets.size());
+		assertEquals(7, (int) capacityBySubnet.get("subnet-a"));
+		assertEquals(7, (int) capacityBySubnet.get("subnet-b"));
+		assertEquals(7, (int) capacityBySubnet.get("subnet-c"));
+	}
+
+	@Test
+	public void movesShareOfExhaustedPlacementToOthers() {
+		capacityBySubnet.put("subnet-a", 0);
+		capacityBySubnet.put("subnet-b", 10);
+		capacityBySubnet.put("subnet-c", 10);
+
+		CapacityFanOut.Result<Instance> result = subject.launch(targets("subnet-a", "subnet-b", "subnet-c"), 12);
+
+		assertEquals(12, result.getLaunched().size());
+		assertEquals(0, result.getShortfall());
+		assertEquals(0, (int) capacityBySubnet.get("subnet-a"));
+		assertEquals(20 - 12, capacityBySubnet.get("subnet-b") + capacityBySubnet.get("subnet-c"));
+	}
+
+	@Test
+	public void movesRemainderOfPartiallyFulfilledPlacementToOthers() {
+		capacityBySubnet.put("subnet-a", 1);
+		capacityBySubnet.put("subnet-b", 10);
+
+		CapacityFanOut.Result<Instance> result = subject.launch(targets("subnet-a", "subnet-b"), 6);
+
+		assertEquals(6, result.getLaunched().size());
+		assertEquals(0, (int) capacityBySubnet.get("subnet-a"));
+		assertEquals(5, (int) capacityBySubnet.get("subnet-b"));
+	}
+
+	@Test
+	public void reportsShortfallWhenEveryPlacementIsExhausted() {
+		capacityBySubnet.put("subnet-a", 2);
+		capacityBySubnet.put("subnet-b", 3);
+
+		CapacityFanOut.Result<Instance> result = subject.launch(targets("subnet-a", "subnet-b"), 10);
+
+		assertEquals(5, result.getLaunched().size());
+		assertEquals(5, result.getShortfall());
+		assertNull(result.getFailure());
+	}
+
+	@Test
+	public void instanceLimitOfTheRegionIsNotRetriedOnOtherPlacements() {
+		capacityBySubnet.put("subnet-a", 10);
+		capacityBySubnet.put("subnet-b", 1);
+		capacityBySubnet.put("subnet-c", 10);
+		subnetsOverInstanceLimit.add("subnet-a");
+
+		CapacityFanOut.Result<Instance> result = subject.launch(targets("subnet-a", "subnet-b", "subnet-c"), 9);
+
+		assertEquals(4, result.getLaunched().size());
+		assertEquals(5, result.getShortfall());
+		assertEquals("InstanceLimitExceeded", ((AmazonServiceException) result.getFailure()).getErrorCode());
+		assertEquals(3, requestedSubnets.size());
+	}
+
+	@Test
+	public void stopsOnErrorsUnrelatedToCapacity() {
+		capacityBySubnet.put("subnet-a", 10);
+		AmazonServiceException unauthorized = new AmazonServiceException("Not authorized");
+		unauthorized.setErrorCode("UnauthorizedOperation");
+		when(ec2.runInstances(any(RunInstancesRequest.class))).thenThrow(unauthorized);
+
+		CapacityFanOut.Result<Instance> result = subject.launch(targets("subnet-a"), 4);
+
+		assertEquals(4, result.getShortfall());
+		assertSame(unauthorized, result.getFailure());
+	}
+
+	private List<RunInstancesTarget> targets(String... subnets) {
+		RunInstancesTarget.RequestFactory requestFactory = new RunInstancesTarget.RequestFactory() {
+			@Override
+			public RunInstancesRequest create(int count, InstancePlacement placement) {
+				RunInstancesRequest request = new RunInstancesRequest("ami-1234", 1, count);
+				placement.applyTo(request);
+				return request;
+			}
+		};
+		List<RunInstancesTarget> targets = new ArrayList<RunInstancesTarget>();
+		for (String subnet : Arrays.asList(subnets))
+			targets.add(new RunInstancesTarget(ec2, new InstancePlacement(null, subnet), requestFactory));
+		return targets;
+	}
+
+	/**
+	 * Grants as many instances as the subnet has capacity for, failing like EC2
+	 * when it can't satisfy the minimum count.
+	 */
+	private class FakeRunInstances implements Answer<RunInstancesResult> {
+		private int nextInstanceId = 0;
+
+		@Override
+		public RunInstancesResult answer(InvocationOnMock invocation) {
+			RunInstancesRequest request = invocation.getArgument(0);
+			synchronized (capacityBySubnet) {
+				String subnet = request.getSubnetId();
+				requestedSubnets.add(subnet);
+				if (subnetsOverInstanceLimit.contains(subnet)) {
+					AmazonServiceException ex = new AmazonServiceException("You have requested more instances than your current instance limit allows");
+					ex.setErrorCode("InstanceLimitExceeded");
+					throw ex;
+				}
+				int capacity = capacityBySubnet.get(subnet);
+				int granted = Math.min(capacity, request.getMaxCount());
+				if (granted < request.getMinCount()) {
+					AmazonServiceException ex = new AmazonServiceException("We currently do not have sufficient capacity in " + subnet);
+					ex.setErrorCode("InsufficientInstanceCapacity");
+					ex.setStatusCode(500);
+					throw ex;
+				}
+				capacityBySubnet.put(subnet, capacity - granted);
+
+				List<Instance> instances = new ArrayList<Instance>();
+				for (int i = 0; i < granted; i++)
+					instances.add(new Instance().withInstanceId("i-" + nextInstanceId++).withSubnetId(subnet));
+				return new RunInstancesResult().withReservation(new Reservation().withInstances(instances));
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+
+
+public class CloudSpilloverTest {
+
+	private final EC2Logger logger = mock(EC2Logger.class);
+	private final CloudSpillover<Instance> subject = new CloudSpillover<Instance>(logger);
+	private final Map<String, FakeRegion> regions = new LinkedHashMap<String, FakeRegion>();
+
+	@Test
+	public void firstCloudServesEverythingItHasCapacityFor() {
+		region("us-east-1", 10, "InsufficientInstanceCapacity");
+		region("eu-west-1", 10, "InsufficientInstanceCapacity");
+
+		CapacityFanOut.Result<Instance> result = subject.launch(targets(), 6);
+
+		assertEquals(6, result.getLaunched().size());
+		assertEquals(6, regions.get("us-east-1").launched);
+		assertEquals(0, regions.get("eu-west-1").requests);
+	}
+
+	@Test
+	public void shortfallSpillsOverToTheOtherCloudsInParallel() {
+		region("us-east-1", 2, "InsufficientInstanceCapacity");
+		region("eu-west-1", 10, "InsufficientInstanceCapacity");
+		region("ap-southeast-1", 10, "InsufficientInstanceCapacity");
+
+		CapacityFanOut.Result<Instance> result = subject.launch(targets(), 8);
+
+		assertEquals(8, result.getLaunched().size());
+		assertEquals(0, result.getShortfall());
+		assertEquals(2, regions.get("us-east-1").launched);
+		assertEquals(3, regions.get("eu-west-1").launched);
+		assertEquals(3, regions.get("ap-southeast-1").launched);
+	}
+
+	@Test
+	public void cloudOverItsInstanceLimitIsSkipped() {
+		region("us-east-1", 0, "InstanceLimitExceeded");
+		region("eu-west-1", 0, "InstanceLimitExceeded");
+		region("ap-southeast-1", 10, "InsufficientInstanceCapacity");
+
+		CapacityFanOut.Result<Instance> result = subject.launch(targets(), 5);
+
+		assertEquals(5, result.getLaunched().size());
+		assertEquals(5, regions.get("ap-southeast-1").launched);
+		assertNull(result.getFailure());
+	}
+
+	@Test
+	public void reportsShortfallWhenEveryCloudIsExhausted() {
+		region("us-east-1", 1, "InsufficientInstanceCapacity");
+		region("eu-west-1", 2, "InstanceLimitExceeded");
+
+		CapacityFanOut.Result<Instance> result = subject.launch(targets(), 7);
+
+		assertEquals(3, result.getLaunched().size());
+		assertEquals(4, result.getShortfall());
+	}
+
+	private void region(String name, int capacity, String exhaustedErrorCode) {
+		regions.put(name, new FakeRegion(name, capacity, exhaustedErrorCode));
+	}
+
+	private List<RunInstancesTarget> targets() {
+		RunInstancesTarget.RequestFactory requestFactory = new RunInstancesTarget.RequestFactory() {
+			@Override
+			public RunInstancesRequest create(int count, InstancePlacement placement) {
+				RunInstancesRequest request = new RunInstancesRequest("ami-1234", 1, count);
+				placement.applyTo(request);
+				return request;
+			}
+		};
+		List<RunInstancesTarget> targets = new ArrayList<RunInstancesTarget>();
+		for (FakeRegion region : regions.values())
+			targets.add(new RunInstancesTarget(region.ec2, new InstancePlacement(null, "subnet-" + region.name), requestFactory));
+		return targets;
+	}
+
+	/**
+	 * An EC2 endpoint granting as many instances as it has capacity left for,
+	 * failing with the given error code when it can't satisfy the minimum count.
+	 */
+	private static class FakeRegion implements Answer<RunInstancesResult> {
+		final String name;
+		final AmazonEC2 ec2 = mock(AmazonEC2.class);
+		private final String exhaustedErrorCode;
+		int capacity;
+		int requests;
+		int launched;
+
+		FakeRegion(String name, int capacity, String exhaustedErrorCode) {
+			this.name = name;
+			this.capacity = capacity;
+			this.exhaustedErrorCode = exhaustedErrorCode;
+			when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(this);
+		}
+
+		@Override
+		public synchronized RunInstancesResult answer(InvocationOnMock invocation) {
+			RunInstancesRequest request = invocation.getArgument(0);
+			requests++;
+			int granted = Math.min(capacity, request.getMaxCount());
+			if (granted < request.getMinCount()) {
+				AmazonServiceException ex = new AmazonServiceException("No capacity left in " + name);
+				ex.setErrorCode(exhaustedErrorCode);
+				throw ex;
+			}
+			capacity -= granted;
+			List<Instance> instances = new ArrayList<Instance>();
+			for (int i = 0; i < granted; i++)
+				instances.add(new Instance().withInstanceId("i-" + name + "-" + launched++));
+			return new RunInstancesResult().withReservation(new Reservation().withInstances(instances));
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.XmlFile;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class DemandHistoryTest {
+	/* a Monday midnight, counted in hours from the epoch */
+	private static final long MONDAY = 4 * 24;
+	private static final long WEEK = DemandHistory.HOURS_PER_WEEK;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final DemandHistory subject = new DemandHistory();
+
+	@Test
+	public void hoursOfTheWeekStartOnMonday() {
+		assertEquals(0, DemandHistory.hourOfWeek(MONDAY));
+		assertEquals(9, DemandHistory.hourOfWeek(MONDAY + 9));
+		assertEquals(0, DemandHistory.hourOfWeek(MONDAY + WEEK));
+	}
+
+	@Test
+	public void demandIsFoldedOnceItsHourIsOver() {
+		subject.record("linux", 4, MONDAY + 9);
+		subject.record("linux", 6, MONDAY + 9);
+
+		assertEquals(0, subject.forecast("linux", MONDAY + 9), 0.001);
+		assertEquals(DemandHistory.SMOOTHING * 10, subject.forecast("linux", MONDAY + 9 + WEEK), 0.001);
+	}
+
+	@Test
+	public void repeatedWeeksConvergeOnTheDemandOfTheHour() {
+		for (int week = 0; week < 30; week++)
+			subject.record("linux", 10, MONDAY + 9 + week * WEEK);
+
+		assertEquals(10, subject.forecast("linux", MONDAY + 9 + 30 * WEEK), 0.1);
+		assertEquals(0, subject.forecast("linux", MONDAY + 10 + 30 * WEEK), 0.001);
+	}
+
+	@Test
+	public void hoursWithoutDemandDecayTheForecast() {
+		for (int week = 0; week < 30; week++)
+			subject.record("linux", 10, MONDAY + 9 + week * WEEK);
+		subject.record("linux", 0, MONDAY + 9 + 40 * WEEK);
+
+		assertEquals(10 * Math.pow(1 - DemandHistory.SMOOTHING, 11), subject.forecast("linux", MONDAY + 9 + 41 * WEEK), 0.1);
+	}
+
+	@Test
+	public void labelsAreForecastSeparately() {
+		subject.record("linux", 8, MONDAY);
+
+		assertEquals(0, subject.forecast("windows", MONDAY + WEEK), 0.001);
+	}
+
+	@Test
+	public void forecastingPastTheCurrentHourMarksTheHistoryChanged() {
+		DemandHistory history = DemandHistory.load(new XmlFile(new File(folder.getRoot(), "ec2-axis-demand.xml")));
+		history.record("linux", 4, MONDAY + 9);
+		history.saveIfChanged();
+		history.forecast("linux", MONDAY + 9);
+		assertFalse(history.isDirty());
+
+		history.forecast("linux", MONDAY + 10);
+
+		assertTrue(history.isDirty());
+	}
+
+	@Test
+	public void predictiveSlavesAreCappedByTheTemplate() {
+		assertEquals(3, PredictiveProvisioner.missingSlaves(12, 5, 2));
+		assertEquals(-1, PredictiveProvisioner.missingSlaves(2, 5, 3));
+	}
+}
@@ -0,0 +1,156 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import hudson.model.labels.LabelAtom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+
+public class EC2AxisCloudTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private final EC2Logger logger = mock(EC2Logger.class);
+
+	@Test
+	public void partiallyFulfilledAllocationsGetPendingLabelsToppedUpInTheBackground() throws Exception {
+		final List<Integer> requests = new ArrayList<Integer>();
+		final CountDownLatch toppedUp = new CountDownLatch(1);
+		final List<EC2AbstractSlave> late = SlaveTopUpTest.slaves("late-1", "late-2", "late-3");
+		EC2AxisCloud cloud = new FakeEC2AxisCloud("us-east-1", mock(AmazonEC2.class), "linux") {
+			@Override
+			List<EC2AbstractSlave> provisionAcrossClouds(EC2Logger logger, String ec2Label, int count, int minimum) {
+				synchronized (requests) {
+					requests.add(count);
+					requests.add(minimum);
+				}
+				if (requests.size() == 2)
+					return SlaveTopUpTest.slaves("early-1", "early-2");
+				toppedUp.countDown();
+				return late;
+			}
+		};
+
+		List<String> labels = cloud.allocateSlavesLabels(logger, "linux", 5, 2, 10, true, false);
+
+		assertEquals(5, labels.size());
+		assertEquals("early-1", labels.get(0));
+		assertEquals("early-2", labels.get(1));
+		for (String pending : labels.subList(2, 5))
+			assertTrue(pending, pending.startsWith("linux-pending-"));
+
+		assertTrue(toppedUp.await(10, TimeUnit.SECONDS));
+		synchronized (requests) {
+			assertEquals(5, (int) requests.get(0));
+			assertEquals(2, (int) requests.get(1));
+			assertEquals(3, (int) requests.get(2));
+			assertEquals(1, (int) requests.get(3));
+		}
+		for (int i = 0; i < late.size(); i++) {
+			EC2AbstractSlave slave = late.get(i);
+			String pendingLabel = labels.get(2 + i);
+			verify(slave, timeout(10000)).setLabelString("linux" + AxisIdleNodeIndex.AXIS_LABEL_SUFFIX + " " + pendingLabel);
+		}
+	}
+
+	@Test
+	public void numberedLabelsAreNotProvisionedByJenkins() {
+		EC2AxisCloud cloud = new FakeEC2AxisCloud("us-east-1", mock(AmazonEC2.class), "linux");
+
+		assertTrue(cloud.canProvision(new LabelAtom("linux")));
+		assertFalse(cloud.canProvision(new LabelAtom("linux__3")));
+		assertNull(cloud.getTemplate(new LabelAtom("linux__3")));
+	}
+
+	@Test
+	public void shortfallOfTheFirstCloudSpillsOverToTheOthers() {
+		List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+		LimitedCloud east = new LimitedCloud("us-east-1", 2, requests);
+		LimitedCloud west = new LimitedCloud("eu-west-1", 10, requests);
+		addClouds(east, west);
+
+		List<EC2AbstractSlave> slaves = east.provisionAcrossClouds(logger, "linux", 6, 6);
+
+		assertEquals(6, slaves.size());
+		assertEquals(2, east.launched.size());
+		assertEquals(4, west.launched.size());
+		assertEquals(Arrays.asList("us-east-1:6", "eu-west-1:4"), requests);
+	}
+
+	@Test
+	public void failureOfTheLastCloudIsTheCauseOfTheShortfall() {
+		List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+		LimitedCloud east = new LimitedCloud("us-east-1", 2, requests);
+		LimitedCloud west = new LimitedCloud("eu-west-1", 0, requests);
+		addClouds(east, west);
+
+		try {
+			east.provisionAcrossClouds(logger, "linux", 6, 4);
+			fail("allocation below the minimum should fail");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Could only provision 2 of 6 slaves"));
+			assertEquals(west.failure, e.getCause());
+		}
+		for (EC2AbstractSlave slave : east.launched)
+			verify(slave).terminate();
+	}
+
+	private void addClouds(EC2AxisCloud... clouds) {
+		j.jenkins.clouds.addAll(Arrays.asList(clouds));
+		LabelResolutionCache.get().invalidateAll();
+	}
+
+	/**
+	 * A cloud provisioning slaves for linux until it runs out of capacity,
+	 * failing the way a template does when EC2 has none left.
+	 */
+	private static class LimitedCloud extends FakeEC2AxisCloud {
+		final List<EC2AbstractSlave> launched = new ArrayList<EC2AbstractSlave>();
+		final RuntimeException failure;
+		private final List<String> requests;
+		private int capacity;
+
+		LimitedCloud(String region, int capacity, List<String> requests) {
+			super(region, mock(AmazonEC2.class), "linux");
+			this.capacity = capacity;
+			this.requests = requests;
+			AmazonServiceException noCapacity = new AmazonServiceException("No capacity left in " + region);
+			noCapacity.setErrorCode("InsufficientInstanceCapacity");
+			this.failure = new RuntimeException(noCapacity);
+		}
+
+		@Override
+		synchronized List<EC2AbstractSlave> provisionFromTemplate(ProvisioningSpec spec, EC2Logger logger, int count, int minimum) {
+			requests.add(getRegion() + ":" + count);
+			int granted = Math.min(capacity, count);
+			if (granted == 0 || granted < minimum)
+				throw failure;
+			capacity -= granted;
+			List<EC2AbstractSlave> slaves = new ArrayList<EC2AbstractSlave>();
+			for (int i = 0; i < granted; i++)
+				slaves.add(SlaveTopUpTest.slave(getRegion() + "-" + (launched.size() + i)));
+			launched.addAll(slaves);
+			return slaves;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import jenkins.model.Jenkins;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+
+public class Ec2AxisSlaveTemplateTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void instanceTypeOfSlavesIsKeptWithTheNode() throws Exception {
+		FakeEC2AxisCloud cloud = new FakeEC2AxisCloud("us-east-1", mock(AmazonEC2.class), "linux");
+		j.jenkins.clouds.add(cloud);
+		EC2AbstractSlave slave = cloud.template("linux").newOndemandSlave(
+				new Instance().withInstanceId("i-1234").withInstanceType("c5.xlarge"),
+				"linux");
+
+		EC2AbstractSlave reloaded = (EC2AbstractSlave) Jenkins.XSTREAM2.fromXML(Jenkins.XSTREAM2.toXML(slave));
+
+		assertEquals("c5.xlarge", Ec2AxisSlaveTemplate.getInstanceTypeOf(reloaded));
+	}
+}
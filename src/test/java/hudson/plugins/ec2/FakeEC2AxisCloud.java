@@ -0,0 +1,46 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.InstanceType;
+
+/**
+ * An axis cloud talking to a fake EC2 endpoint instead of AWS. Needs a running
+ * Jenkins, as templates parse their labels.
+ */
+class FakeEC2AxisCloud extends EC2AxisCloud {
+	private final AmazonEC2 ec2;
+
+	FakeEC2AxisCloud(String region, AmazonEC2 ec2, String... ec2Labels) {
+		super("access", "secret", region, "key", "", templates(ec2Labels));
+		this.ec2 = ec2;
+	}
+
+	@Override
+	public synchronized AmazonEC2 connect() {
+		return ec2;
+	}
+
+	Ec2AxisSlaveTemplate template(String ec2Label) {
+		return getTemplateGivenLabel(new LabelAtom(ec2Label));
+	}
+
+	static SlaveTemplate slaveTemplate(String ec2Label) {
+		return new SlaveTemplate("ami-1234", "", null, "default", "/tmp", "22", InstanceType.M1Large, ec2Label,
+				Node.Mode.EXCLUSIVE, ec2Label, "", "", "1", "ec2-user", "", "", false, "",
+				Collections.<EC2Tag>emptyList(), "30", false, "", "", false, "");
+	}
+
+	private static List<SlaveTemplate> templates(String... ec2Labels) {
+		List<SlaveTemplate> templates = new ArrayList<SlaveTemplate>();
+		for (String ec2Label : ec2Labels)
+			templates.add(slaveTemplate(ec2Label));
+		return templates;
+	}
+}
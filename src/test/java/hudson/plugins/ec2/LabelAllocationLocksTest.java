@@ -0,0 +1,30 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+
+
+public class LabelAllocationLocksTest {
+
+	private final LabelAllocationLocks subject = new LabelAllocationLocks(16);
+
+	@Test
+	public void sameLabelAlwaysGetsTheSameLock() {
+		assertSame(subject.lockFor("linux"), subject.lockFor(new String("linux")));
+	}
+
+	@Test
+	public void labelsAreSpreadOverTheStripes() {
+		Set<ReentrantLock> used = Collections.newSetFromMap(new IdentityHashMap<ReentrantLock, Boolean>());
+		for (int i = 0; i < 200; i++)
+			used.add(subject.lockFor("label-" + i));
+		assertTrue("only " + used.size() + " stripes used", used.size() >= 12);
+	}
+}
@@ -0,0 +1,57 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.Cloud;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+
+public class LabelResolutionCacheTest {
+
+	@Test
+	public void firstCloudServingTheLabelWins() {
+		Ec2AxisSlaveTemplate first = mock(Ec2AxisSlaveTemplate.class);
+		Ec2AxisSlaveTemplate second = mock(Ec2AxisSlaveTemplate.class);
+
+		Ec2AxisSlaveTemplate resolved = LabelResolutionCache.findTemplate("linux", Arrays.<Cloud>asList(
+				cloudServing("windows", mock(Ec2AxisSlaveTemplate.class)),
+				cloudServing("linux", first),
+				cloudServing("linux", second)));
+
+		assertSame(first, resolved);
+	}
+
+	@Test
+	public void everyCloudServingTheLabelIsFoundInConfigurationOrder() {
+		Ec2AxisSlaveTemplate first = mock(Ec2AxisSlaveTemplate.class);
+		Ec2AxisSlaveTemplate second = mock(Ec2AxisSlaveTemplate.class);
+
+		assertEquals(Arrays.asList(first, second), LabelResolutionCache.findTemplates("linux", Arrays.<Cloud>asList(
+				cloudServing("linux", first),
+				cloudServing("windows", mock(Ec2AxisSlaveTemplate.class)),
+				cloudServing("linux", second))));
+	}
+
+	@Test
+	public void labelNoCloudServesResolvesToNull() {
+		assertNull(LabelResolutionCache.findTemplate("linux", Arrays.<Cloud>asList(
+				cloudServing("windows", mock(Ec2AxisSlaveTemplate.class)))));
+	}
+
+	private static EC2AxisCloud cloudServing(final String ec2Label, Ec2AxisSlaveTemplate template) {
+		EC2AxisCloud cloud = mock(EC2AxisCloud.class);
+		when(cloud.getTemplateGivenLabel(any(Label.class))).thenReturn(null);
+		when(cloud.getTemplateGivenLabel(new LabelAtom(ec2Label))).thenReturn(template);
+		return cloud;
+	}
+}
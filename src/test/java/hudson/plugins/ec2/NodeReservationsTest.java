@@ -0,0 +1,104 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.Action;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.labels.LabelAtom;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+
+public class NodeReservationsTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void slaveCanOnlyBeLeasedOnce() {
+		NodeReservations subject = new NodeReservations(TimeUnit.MINUTES.toMillis(10));
+
+		assertTrue(subject.tryReserve("linux@i-1", null));
+		assertFalse(subject.tryReserve("linux@i-1", null));
+		assertTrue(subject.isReserved("linux@i-1"));
+		assertTrue(subject.tryReserve("linux@i-2", null));
+	}
+
+	@Test
+	public void releasedSlaveCanBeLeasedAgain() {
+		NodeReservations subject = new NodeReservations(TimeUnit.MINUTES.toMillis(10));
+		subject.tryReserve("linux@i-1", null);
+
+		subject.release("linux@i-1");
+
+		assertFalse(subject.isReserved("linux@i-1"));
+		assertTrue(subject.tryReserve("linux@i-1", null));
+	}
+
+	@Test
+	public void expiredLeaseNoLongerHoldsTheSlave() {
+		NodeReservations subject = new NodeReservations(-1);
+		subject.tryReserve("linux@i-1", null);
+
+		assertFalse(subject.isReserved("linux@i-1"));
+		assertTrue(subject.tryReserve("linux@i-1", null));
+	}
+
+	@Test
+	public void leasedSlaveOnlyTakesTheCellBoundToIt() {
+		Node node = mock(Node.class);
+		when(node.getNodeName()).thenReturn("linux@i-dispatch");
+		NodeReservations.get().tryReserve("linux@i-dispatch", null);
+		try {
+			NodeReservations.Dispatcher dispatcher = new NodeReservations.Dispatcher();
+
+			assertNotNull(dispatcher.canTake(node, item(task("linux"))));
+			assertNull(dispatcher.canTake(node, item(cell("matrix", "linux@i-dispatch"))));
+		} finally {
+			NodeReservations.get().release("linux@i-dispatch");
+		}
+	}
+
+	@Test
+	public void leaseTakenByABuildOnlyAdmitsCellsOfItsProject() {
+		NodeReservations.Lease lease = new NodeReservations.Lease("linux@i-1", "matrix", "matrix#1", Long.MAX_VALUE);
+
+		assertTrue(lease.admits(item(cell("matrix", "linux@i-1"))));
+		assertFalse(lease.admits(item(cell("other", "linux@i-1"))));
+		assertFalse(lease.admits(item(cell("matrix", "linux@i-2"))));
+		assertFalse(lease.admits(item(task("linux@i-1"))));
+	}
+
+	private static Queue.BuildableItem item(Queue.Task task) {
+		return new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), task, Collections.<Action>emptyList()));
+	}
+
+	private static Queue.Task task(String label) {
+		Queue.Task task = mock(Queue.Task.class);
+		when(task.getAssignedLabel()).thenReturn(new LabelAtom(label));
+		return task;
+	}
+
+	private static MatrixConfiguration cell(String projectFullName, String label) {
+		MatrixProject project = mock(MatrixProject.class);
+		when(project.getFullName()).thenReturn(projectFullName);
+		MatrixConfiguration cell = mock(MatrixConfiguration.class);
+		when(cell.getParent()).thenReturn(project);
+		when(cell.getAssignedLabel()).thenReturn(new LabelAtom(label));
+		return cell;
+	}
+}
@@ -0,0 +1,184 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesResult;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusRequest;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStatus;
+import com.amazonaws.services.ec2.model.InstanceStatusSummary;
+import com.amazonaws.services.ec2.model.KeyPair;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+
+public class OnDemandInstanceProviderTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+	private final EC2Logger logger = mock(EC2Logger.class);
+
+	@Test
+	public void warmInstancesLeaveThePoolBeforeTheyAreStarted() {
+		OnDemandInstanceProvider.startStoppedInstances(ec2, Arrays.asList(warm("i-warm"), stopped("i-cold")), "linux", logger);
+
+		InOrder order = inOrder(ec2);
+		ArgumentCaptor<DeleteTagsRequest> untag = ArgumentCaptor.forClass(DeleteTagsRequest.class);
+		order.verify(ec2).deleteTags(untag.capture());
+		order.verify(ec2).startInstances(any(StartInstancesRequest.class));
+		assertEquals(Arrays.asList("i-warm"), untag.getValue().getResources());
+		verify(ec2, never()).createTags(any(CreateTagsRequest.class));
+	}
+
+	@Test
+	public void warmInstancesThatFailToStartGoBackToThePool() {
+		AmazonServiceException failure = new AmazonServiceException("Instance is not in a state to be started");
+		when(ec2.startInstances(any(StartInstancesRequest.class))).thenThrow(failure);
+
+		try {
+			OnDemandInstanceProvider.startStoppedInstances(ec2, Arrays.asList(warm("i-warm"), stopped("i-cold")), "linux", logger);
+			fail("start failure should be rethrown");
+		} catch (AmazonServiceException e) {
+			assertEquals(failure, e);
+		}
+
+		ArgumentCaptor<CreateTagsRequest> retag = ArgumentCaptor.forClass(CreateTagsRequest.class);
+		verify(ec2).createTags(retag.capture());
+		assertEquals(Arrays.asList("i-warm"), retag.getValue().getResources());
+		assertEquals(OnDemandInstanceProvider.WARM_POOL_TAG, retag.getValue().getTags().get(0).getKey());
+	}
+
+	@Test
+	public void replenishingStopsBootedInstancesAndLaunchesTheMissingOnes() {
+		Ec2AxisSlaveTemplate template = warmPool(Arrays.asList(stopped("i-stopped")), Arrays.asList(
+				running("i-booted", TimeUnit.MINUTES.toMillis(10)),
+				running("i-booting", TimeUnit.MINUTES.toMillis(1))));
+		when(ec2.describeInstanceStatus(any(DescribeInstanceStatusRequest.class))).thenReturn(new DescribeInstanceStatusResult()
+				.withInstanceStatuses(status("i-booted", "ok"), status("i-booting", "initializing")));
+
+		new OnDemandInstanceProvider(new KeyPair().withKeyName("key"), Collections.<String>emptyList(),
+				template.newProvisioningSpec("linux"), logger).replenishWarmPool(5);
+
+		ArgumentCaptor<StopInstancesRequest> stop = ArgumentCaptor.forClass(StopInstancesRequest.class);
+		verify(ec2).stopInstances(stop.capture());
+		assertEquals(Arrays.asList("i-booted"), stop.getValue().getInstanceIds());
+
+		ArgumentCaptor<RunInstancesRequest> run = ArgumentCaptor.forClass(RunInstancesRequest.class);
+		verify(ec2).runInstances(run.capture());
+		assertEquals(2, (int) run.getValue().getMaxCount());
+
+		ArgumentCaptor<CreateTagsRequest> tag = ArgumentCaptor.forClass(CreateTagsRequest.class);
+		verify(ec2).createTags(tag.capture());
+		assertEquals(Arrays.asList("i-new0", "i-new1"), tag.getValue().getResources());
+		assertTrue(tag.getValue().getTags().contains(new Tag(OnDemandInstanceProvider.WARM_POOL_TAG, template.description)));
+	}
+
+	@Test
+	public void warmInstancesThatCannotBeTaggedAreTerminated() {
+		Ec2AxisSlaveTemplate template = warmPool(Collections.<Instance>emptyList(), Collections.<Instance>emptyList());
+		when(ec2.createTags(any(CreateTagsRequest.class))).thenThrow(new AmazonServiceException("Throttled"));
+
+		try {
+			new OnDemandInstanceProvider(new KeyPair().withKeyName("key"), Collections.<String>emptyList(),
+					template.newProvisioningSpec("linux"), logger).replenishWarmPool(2);
+			fail("tagging failure should be rethrown");
+		} catch (RuntimeException expected) {
+		}
+
+		ArgumentCaptor<TerminateInstancesRequest> terminate = ArgumentCaptor.forClass(TerminateInstancesRequest.class);
+		verify(ec2).terminateInstances(terminate.capture());
+		assertEquals(Arrays.asList("i-new0", "i-new1"), terminate.getValue().getInstanceIds());
+	}
+
+	/**
+	 * An endpoint with the given stopped and warm pool instances, launching 
+	 * whatever it is asked for.
+	 */
+	private Ec2AxisSlaveTemplate warmPool(final List<Instance> stopped, final List<Instance> booting) {
+		when(ec2.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(new Answer<DescribeInstancesResult>() {
+			@Override
+			public DescribeInstancesResult answer(InvocationOnMock invocation) {
+				DescribeInstancesRequest request = invocation.getArgument(0);
+				boolean warmPoolOnly = false;
+				for (Filter filter : request.getFilters())
+					warmPoolOnly |= filter.getName().equals("tag-key");
+				return new DescribeInstancesResult().withReservations(new Reservation().withInstances(warmPoolOnly ? booting : stopped));
+			}
+		});
+		when(ec2.describeImages(any(DescribeImagesRequest.class)))
+			.thenReturn(new DescribeImagesResult().withImages(new Image().withImageId("ami-1234")));
+		when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(new Answer<RunInstancesResult>() {
+			@Override
+			public RunInstancesResult answer(InvocationOnMock invocation) {
+				RunInstancesRequest request = invocation.getArgument(0);
+				List<Instance> launched = new ArrayList<Instance>();
+				for (int i = 0; i < request.getMaxCount(); i++)
+					launched.add(new Instance().withInstanceId("i-new" + i));
+				return new RunInstancesResult().withReservation(new Reservation().withInstances(launched));
+			}
+		});
+		return new FakeEC2AxisCloud("us-east-1", ec2, "linux").template("linux");
+	}
+
+	private static InstanceStatus status(String instanceId, String status) {
+		return new InstanceStatus().withInstanceId(instanceId)
+				.withSystemStatus(new InstanceStatusSummary().withStatus(status))
+				.withInstanceStatus(new InstanceStatusSummary().withStatus(status));
+	}
+
+	private static Instance stopped(String instanceId) {
+		return new Instance().withInstanceId(instanceId).withState(new InstanceState().withName("stopped"));
+	}
+
+	private static Instance warm(String instanceId) {
+		return stopped(instanceId).withTags(new Tag(OnDemandInstanceProvider.WARM_POOL_TAG, "linux"));
+	}
+
+	private static Instance running(String instanceId, long launchedMillisAgo) {
+		return new Instance().withInstanceId(instanceId)
+				.withState(new InstanceState().withName("running"))
+				.withLaunchTime(new Date(System.currentTimeMillis() - launchedMillisAgo))
+				.withTags(new Tag(OnDemandInstanceProvider.WARM_POOL_TAG, "linux"));
+	}
+}
@@ -0,0 +1,85 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+import hudson.model.labels.LabelAtom;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.ArgumentMatchers;
+
+public class SlaveTopUpTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private final EC2AxisCloud cloud = mock(EC2AxisCloud.class);
+	private final EC2Logger logger = mock(EC2Logger.class);
+
+	@Test
+	public void slavesAreBoundToThePendingLabelsInOrderAcrossFailedAttempts() throws Exception {
+		EC2AbstractSlave first = slave("first");
+		EC2AbstractSlave second = slave("second");
+		when(cloud.provisionTopUpSlaves(logger, "linux", 2)).thenReturn(Arrays.asList(first));
+		when(cloud.provisionTopUpSlaves(logger, "linux", 1))
+			.thenThrow(new RuntimeException("InsufficientInstanceCapacity"))
+			.thenReturn(Arrays.asList(second));
+
+		new SlaveTopUp(cloud, logger, "linux", Arrays.asList("linux-pending-a", "linux-pending-b"), 3, 1, 60000).run();
+
+		verify(cloud).bindToPendingLabel(first, "linux", "linux-pending-a", 3);
+		verify(cloud).bindToPendingLabel(second, "linux", "linux-pending-b", 4);
+	}
+
+	@Test
+	public void cellsStillWaitingAtTheTimeoutAreCancelled() throws Exception {
+		when(cloud.provisionTopUpSlaves(eq(logger), eq("linux"), anyInt())).thenReturn(Collections.<EC2AbstractSlave>emptyList());
+		FreeStyleProject cell = j.createFreeStyleProject();
+		cell.setAssignedLabel(new LabelAtom("linux-pending-a"));
+		cell.scheduleBuild2(0);
+		assertEquals(1, j.jenkins.getQueue().getItems().length);
+
+		new SlaveTopUp(cloud, logger, "linux", Arrays.asList("linux-pending-a"), 0, 10, 100).run();
+
+		assertEquals(0, j.jenkins.getQueue().getItems().length);
+		verify(cloud, never()).bindToPendingLabel(ArgumentMatchers.<EC2AbstractSlave>any(), eq("linux"), eq("linux-pending-a"), anyInt());
+	}
+
+	@Test
+	public void provisioningStopsOnceTheOwningBuildIsOver() throws Exception {
+		Run<?, ?> owner = mock(Run.class);
+		when(owner.isBuilding()).thenReturn(false);
+		doReturn(owner).when(logger).getBuild();
+
+		new SlaveTopUp(cloud, logger, "linux", Arrays.asList("linux-pending-a"), 0, 10, 60000).run();
+
+		verify(cloud, never()).provisionTopUpSlaves(eq(logger), eq("linux"), anyInt());
+	}
+
+	static EC2AbstractSlave slave(String nodeName) {
+		EC2AbstractSlave slave = mock(EC2AbstractSlave.class);
+		when(slave.getNodeName()).thenReturn(nodeName);
+		return slave;
+	}
+
+	static List<EC2AbstractSlave> slaves(String... nodeNames) {
+		EC2AbstractSlave[] slaves = new EC2AbstractSlave[nodeNames.length];
+		for (int i = 0; i < nodeNames.length; i++)
+			slaves[i] = slave(nodeNames[i]);
+		return Arrays.asList(slaves);
+	}
+}
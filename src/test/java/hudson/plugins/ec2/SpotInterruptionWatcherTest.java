@@ -0,0 +1,216 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.OfflineCause;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.SpotInstanceStatus;
+
+
+public class SpotInterruptionWatcherTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+	private final Map<String, String> statusCodes = new HashMap<String, String>();
+	private final Map<String, String> instanceStates = new HashMap<String, String>();
+	private final Map<String, String> instanceIdsByRequestId = new LinkedHashMap<String, String>();
+	private final SpotInterruptionWatcher watcher = new SpotInterruptionWatcher(3, 10);
+
+	@Before
+	public void setUp() {
+		when(ec2.describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class))).thenAnswer(new Answer<DescribeSpotInstanceRequestsResult>() {
+			@Override
+			public DescribeSpotInstanceRequestsResult answer(InvocationOnMock invocation) {
+				DescribeSpotInstanceRequestsRequest request = invocation.getArgument(0);
+				List<SpotInstanceRequest> described = new ArrayList<SpotInstanceRequest>();
+				for (String id : request.getSpotInstanceRequestIds()) {
+					described.add(new SpotInstanceRequest()
+							.withSpotInstanceRequestId(id)
+							.withState("active")
+							.withStatus(new SpotInstanceStatus().withCode(statusCodes.get(id))));
+				}
+				return new DescribeSpotInstanceRequestsResult().withSpotInstanceRequests(described);
+			}
+		});
+		when(ec2.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(new Answer<DescribeInstancesResult>() {
+			@Override
+			public DescribeInstancesResult answer(InvocationOnMock invocation) {
+				DescribeInstancesRequest request = invocation.getArgument(0);
+				Set<String> wantedIds = new HashSet<String>(filterValues(request, "instance-id"));
+				Set<String> wantedStates = new HashSet<String>(filterValues(request, "instance-state-name"));
+				Reservation reservation = new Reservation();
+				for (Map.Entry<String, String> state : instanceStates.entrySet()) {
+					if (wantedIds.contains(state.getKey()) && wantedStates.contains(state.getValue()))
+						reservation.withInstances(new Instance().withInstanceId(state.getKey()).withState(new InstanceState().withName(state.getValue())));
+				}
+				return new DescribeInstancesResult().withReservations(reservation);
+			}
+		});
+	}
+
+	@Test
+	public void detectsRequestsMarkedForTermination() {
+		running("sir-1", "i-1");
+		running("sir-2", "i-2");
+		statusCodes.put("sir-2", "marked-for-termination");
+
+		assertEquals(new HashSet<String>(Arrays.asList("sir-2")), SpotInterruptionWatcher.findInterrupted(ec2, instanceIdsByRequestId));
+	}
+
+	@Test
+	public void detectsInstancesGoneUnderAFulfilledRequest() {
+		running("sir-1", "i-1");
+		running("sir-2", "i-2");
+		instanceStates.put("i-1", "shutting-down");
+
+		assertEquals(new HashSet<String>(Arrays.asList("sir-1")), SpotInterruptionWatcher.findInterrupted(ec2, instanceIdsByRequestId));
+	}
+
+	@Test
+	public void ignoresHealthyRequestsAndUserTerminations() {
+		running("sir-1", "i-1");
+		running("sir-2", "i-2");
+		statusCodes.put("sir-2", "instance-terminated-by-user");
+
+		assertTrue(SpotInterruptionWatcher.findInterrupted(ec2, instanceIdsByRequestId).isEmpty());
+	}
+
+	@Test
+	public void describesInBatches() {
+		for (int i = 0; i < 250; i++)
+			running("sir-" + i, "i-" + i);
+		statusCodes.put("sir-7", "instance-terminated-no-capacity");
+		instanceStates.put("i-240", "terminated");
+
+		Set<String> interrupted = SpotInterruptionWatcher.findInterrupted(ec2, instanceIdsByRequestId);
+
+		assertEquals(new HashSet<String>(Arrays.asList("sir-7", "sir-240")), interrupted);
+		verify(ec2, times(2)).describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class));
+		verify(ec2, times(2)).describeInstances(any(DescribeInstancesRequest.class));
+	}
+
+	@Test
+	public void reclaimedSlavesAreReplacedThroughTheCloudOnceProvisioningSucceeds() throws Exception {
+		EC2AxisCloud cloud = mock(EC2AxisCloud.class);
+		EC2SpotSlave slave = watchedSlave(cloud);
+		EC2AbstractSlave replacement = SlaveTopUpTest.slave("on-demand-1");
+		when(cloud.provisionAcrossClouds(any(EC2Logger.class), eq("linux"), eq(1), eq(1)))
+			.thenThrow(new RuntimeException("InsufficientInstanceCapacity"))
+			.thenReturn(Arrays.asList(replacement));
+
+		statusCodes.put("sir-1", "marked-for-termination");
+		watcher.check(ec2, instanceIdsByRequestId);
+
+		verify(slave, timeout(5000)).terminate();
+		InOrder order = inOrder(cloud, slave);
+		order.verify(cloud, times(2)).provisionAcrossClouds(any(EC2Logger.class), eq("linux"), eq(1), eq(1));
+		order.verify(cloud).bindToReplacedLabel(replacement, slave);
+		order.verify(slave).terminate();
+		assertEquals(0, watcher.getWatchedCount());
+	}
+
+	@Test
+	public void cellsWaitingOnAnIrreplaceableSlaveAreCancelled() throws Exception {
+		EC2AxisCloud cloud = mock(EC2AxisCloud.class);
+		EC2SpotSlave slave = watchedSlave(cloud);
+		when(cloud.provisionAcrossClouds(any(EC2Logger.class), eq("linux"), eq(1), eq(1)))
+			.thenThrow(new RuntimeException("InsufficientInstanceCapacity"));
+		FreeStyleProject cell = j.createFreeStyleProject();
+		cell.setAssignedLabel(new LabelAtom("spot-1"));
+		cell.scheduleBuild2(0);
+
+		statusCodes.put("sir-1", "instance-terminated-no-capacity");
+		watcher.check(ec2, instanceIdsByRequestId);
+
+		verify(slave, timeout(5000)).terminate();
+		verify(cloud, times(3)).provisionAcrossClouds(any(EC2Logger.class), eq("linux"), eq(1), eq(1));
+		verify(cloud, never()).bindToReplacedLabel(any(EC2AbstractSlave.class), eq(slave));
+		assertEquals(0, j.jenkins.getQueue().getItems().length);
+	}
+
+	@Test
+	public void reclaimedSlavesGoOfflineAndAbortTheirRunningCells() {
+		Computer computer = mock(Computer.class);
+		Executor busy = mock(Executor.class);
+		Executor idle = mock(Executor.class);
+		when(busy.isBusy()).thenReturn(true);
+		when(computer.getExecutors()).thenReturn(Arrays.asList(busy, idle));
+
+		SpotInterruptionWatcher.takeOffline(computer, "spot-1", "i-1");
+
+		verify(computer).setTemporarilyOffline(eq(true), any(OfflineCause.class));
+		verify(busy).interrupt(eq(Result.ABORTED), any(SpotInterruptionWatcher.SpotInterruption.class));
+		verify(idle, never()).interrupt(any(Result.class), any(SpotInterruptionWatcher.SpotInterruption.class));
+	}
+
+	private EC2SpotSlave watchedSlave(EC2AxisCloud cloud) {
+		Ec2AxisSlaveTemplate template = mock(Ec2AxisSlaveTemplate.class);
+		when(template.getParent()).thenReturn(cloud);
+		when(template.getLabelString()).thenReturn("linux");
+		EC2SpotSlave slave = mock(EC2SpotSlave.class);
+		when(slave.getSpotInstanceRequestId()).thenReturn("sir-1");
+		when(slave.getNodeName()).thenReturn("spot-1");
+		when(slave.getDisplayName()).thenReturn("spot-1");
+		running("sir-1", "i-1");
+		watcher.watch(template, slave, "i-1");
+		return slave;
+	}
+
+	private void running(String requestId, String instanceId) {
+		instanceIdsByRequestId.put(requestId, instanceId);
+		statusCodes.put(requestId, "fulfilled");
+		instanceStates.put(instanceId, "running");
+	}
+
+	private static List<String> filterValues(DescribeInstancesRequest request, String name) {
+		for (Filter filter : request.getFilters()) {
+			if (filter.getName().equals(name))
+				return filter.getValues();
+		}
+		return new ArrayList<String>();
+	}
+}
@@ -0,0 +1,59 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotPriceHistoryResult;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.ec2.model.SpotPrice;
+
+
+public class SpotPriceCacheTest {
+	private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+	private final SpotPriceCache.Entry entry = new SpotPriceCache.Entry("ec2-us-east-1", "us-east-1", InstanceType.M1Large, "us-east-1a");
+
+	@Test
+	public void entryHasNoPriceUntilLoaded() {
+		assertNull(entry.getPrice());
+		assertEquals(-1, entry.getAgeSeconds());
+	}
+
+	@Test
+	public void filtersOnTypeZoneAndLinuxProduct() {
+		when(ec2.describeSpotPriceHistory(any(DescribeSpotPriceHistoryRequest.class)))
+			.thenReturn(new DescribeSpotPriceHistoryResult().withSpotPriceHistory(new SpotPrice().withSpotPrice("0.0310")));
+
+		new SpotPriceCache().refresh(entry, ec2);
+
+		ArgumentCaptor<DescribeSpotPriceHistoryRequest> request = ArgumentCaptor.forClass(DescribeSpotPriceHistoryRequest.class);
+		Mockito.verify(ec2).describeSpotPriceHistory(request.capture());
+		assertEquals("m1.large", request.getValue().getInstanceTypes().get(0));
+		assertEquals("us-east-1a", request.getValue().getAvailabilityZone());
+		assertEquals(SpotPriceCache.PRODUCT_DESCRIPTION, request.getValue().getProductDescriptions().get(0));
+		assertEquals("0.0310", entry.getPrice());
+		assertEquals(0, entry.getAgeSeconds());
+	}
+
+	@Test
+	public void keepsLowestPriceAcrossZones() {
+		SpotPriceCache.Entry anyZone = new SpotPriceCache.Entry("ec2-us-east-1", "us-east-1", InstanceType.M1Large, "");
+		when(ec2.describeSpotPriceHistory(any(DescribeSpotPriceHistoryRequest.class)))
+			.thenReturn(new DescribeSpotPriceHistoryResult().withSpotPriceHistory(
+					new SpotPrice().withSpotPrice("0.0400").withAvailabilityZone("us-east-1a"),
+					new SpotPrice().withSpotPrice("0.0350").withAvailabilityZone("us-east-1b"),
+					new SpotPrice().withSpotPrice("0.0500").withAvailabilityZone("us-east-1c")));
+
+		new SpotPriceCache().refresh(anyZone, ec2);
+
+		assertEquals("0.0350", anyZone.getPrice());
+	}
+}
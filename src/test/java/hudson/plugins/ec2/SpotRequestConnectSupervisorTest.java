@@ -0,0 +1,90 @@
+package hudson.plugins.ec2;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+
+public class SpotRequestConnectSupervisorTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+	private final EC2Logger logger = mock(EC2Logger.class);
+	private final EC2AxisCloud cloud = mock(EC2AxisCloud.class);
+	private final Ec2AxisSlaveTemplate template = mock(Ec2AxisSlaveTemplate.class);
+	private final EC2SpotSlave first = spotSlave("sir-1");
+	private final EC2SpotSlave second = spotSlave("sir-2");
+	private ProvisioningSpec spec;
+	private SpotRequestConnectSupervisor supervisor;
+
+	@Before
+	public void setUp() {
+		when(template.getParent()).thenReturn(cloud);
+		when(template.getPlacements()).thenReturn(Collections.<InstancePlacement>emptyList());
+		when(template.getSecurityGroupSet()).thenReturn(Collections.<String>emptySet());
+		when(template.getWeightedSpotInstanceTypes()).thenReturn(Collections.<WeightedInstanceType>emptyList());
+		spec = new ProvisioningSpec(template, "linux");
+		supervisor = new SpotRequestConnectSupervisor(logger, spec, Arrays.<EC2AbstractSlave>asList(first, second), ec2, new char[0], "ec2-user");
+	}
+
+	@Test
+	public void expiredRequestsAreReplacedByOnDemandSlaves() throws Exception {
+		when(ec2.describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class))).thenReturn(
+				new DescribeSpotInstanceRequestsResult().withSpotInstanceRequests(cancelled("sir-1"), cancelled("sir-2")));
+		List<EC2AbstractSlave> replacements = SlaveTopUpTest.slaves("on-demand-1", "on-demand-2");
+		when(template.provisionOnDemandSlaves(spec, logger, 2, 1)).thenReturn(replacements);
+
+		supervisor.requestsExpired(Arrays.asList("sir-1", "sir-2"));
+
+		verify(ec2).cancelSpotInstanceRequests(any(CancelSpotInstanceRequestsRequest.class));
+		verify(cloud).bindToReplacedLabel(replacements.get(0), first);
+		verify(cloud).bindToReplacedLabel(replacements.get(1), second);
+		verify(first).terminate();
+		verify(second).terminate();
+	}
+
+	@Test
+	public void slavesAreReplacedEvenWhenTheRequestsCannotBeCancelled() throws Exception {
+		when(ec2.cancelSpotInstanceRequests(any(CancelSpotInstanceRequestsRequest.class)))
+			.thenThrow(new AmazonServiceException("Request limit exceeded"));
+		List<EC2AbstractSlave> replacements = SlaveTopUpTest.slaves("on-demand-1");
+		when(template.provisionOnDemandSlaves(spec, logger, 2, 1)).thenReturn(replacements);
+
+		supervisor.requestsExpired(Arrays.asList("sir-1", "sir-2"));
+
+		verify(ec2, never()).describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class));
+		verify(cloud).bindToReplacedLabel(replacements.get(0), first);
+		verify(cloud, never()).bindToReplacedLabel(any(EC2AbstractSlave.class), eq(second));
+		verify(second).terminate();
+	}
+
+	private static EC2SpotSlave spotSlave(String spotInstanceRequestId) {
+		EC2SpotSlave slave = mock(EC2SpotSlave.class);
+		when(slave.getSpotInstanceRequestId()).thenReturn(spotInstanceRequestId);
+		return slave;
+	}
+
+	private static SpotInstanceRequest cancelled(String spotInstanceRequestId) {
+		return new SpotInstanceRequest().withSpotInstanceRequestId(spotInstanceRequestId).withState("cancelled");
+	}
+}
@@ -0,0 +1,129 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+
+
+public class SpotRequestPollerTest {
+
+	@Test
+	public void pollsYoungRequestsOften() {
+		assertEquals(TimeUnit.SECONDS.toMillis(5), SpotRequestPoller.pollIntervalFor(0));
+		assertEquals(TimeUnit.SECONDS.toMillis(5), SpotRequestPoller.pollIntervalFor(TimeUnit.SECONDS.toMillis(59)));
+	}
+
+	@Test
+	public void backsOffAsRequestsAge() {
+		assertEquals(TimeUnit.SECONDS.toMillis(10), SpotRequestPoller.pollIntervalFor(TimeUnit.SECONDS.toMillis(90)));
+		assertEquals(TimeUnit.SECONDS.toMillis(20), SpotRequestPoller.pollIntervalFor(TimeUnit.MINUTES.toMillis(3)));
+		assertEquals(TimeUnit.SECONDS.toMillis(40), SpotRequestPoller.pollIntervalFor(TimeUnit.MINUTES.toMillis(5)));
+	}
+
+	@Test
+	public void neverPollsLessThanOnceAMinute() {
+		assertEquals(TimeUnit.SECONDS.toMillis(60), SpotRequestPoller.pollIntervalFor(TimeUnit.MINUTES.toMillis(9)));
+		assertEquals(TimeUnit.SECONDS.toMillis(60), SpotRequestPoller.pollIntervalFor(TimeUnit.HOURS.toMillis(5)));
+	}
+
+	@Test
+	public void checksOpenRequestsAtTheirFulfillmentDeadline() {
+		SpotRequestPoller.PendingRequest request = new SpotRequestPoller.PendingRequest(null, 0, TimeUnit.MINUTES.toMillis(10));
+		long now = TimeUnit.SECONDS.toMillis(570);
+		request.scheduleNextCheck(now);
+		assertEquals(TimeUnit.MINUTES.toMillis(10), request.dueAt);
+		assertFalse(request.isPastDeadline(now));
+		assertTrue(request.isPastDeadline(request.dueAt));
+	}
+
+	@Test
+	public void requestsWithoutTimeoutNeverExpire() {
+		SpotRequestPoller.PendingRequest request = new SpotRequestPoller.PendingRequest(null, 0, 0);
+		request.scheduleNextCheck(TimeUnit.MINUTES.toMillis(9));
+		assertEquals(TimeUnit.MINUTES.toMillis(10), request.dueAt);
+		assertFalse(request.isPastDeadline(TimeUnit.DAYS.toMillis(1)));
+	}
+
+	@Test
+	public void unknownRequestsDoNotHoldUpTheRestOfTheirBatch() {
+		AmazonEC2 ec2 = mock(AmazonEC2.class);
+		when(ec2.describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class))).thenAnswer(new Answer<DescribeSpotInstanceRequestsResult>() {
+			@Override
+			public DescribeSpotInstanceRequestsResult answer(InvocationOnMock invocation) {
+				DescribeSpotInstanceRequestsRequest request = invocation.getArgument(0);
+				if (request.getSpotInstanceRequestIds().contains("sir-gone")) {
+					AmazonServiceException notFound = new AmazonServiceException("The spot instance request ID 'sir-gone' does not exist");
+					notFound.setErrorCode(SpotRequestPoller.REQUEST_NOT_FOUND_ERROR_CODE);
+					throw notFound;
+				}
+				List<SpotInstanceRequest> described = new ArrayList<SpotInstanceRequest>();
+				for (String id : request.getSpotInstanceRequestIds())
+					described.add(new SpotInstanceRequest().withSpotInstanceRequestId(id).withState("active").withInstanceId("i-" + id));
+				return new DescribeSpotInstanceRequestsResult().withSpotInstanceRequests(described);
+			}
+		});
+		SpotRequestPoller.Listener listener = listener();
+		SpotRequestPoller poller = new SpotRequestPoller("cloud");
+		poller.watch(ec2, Arrays.asList(request("sir-1"), request("sir-2"), request("sir-gone"), request("sir-3")), listener, 0);
+
+		poller.poll(System.currentTimeMillis() + SpotRequestPoller.NOT_FOUND_GRACE_MILLIS);
+
+		@SuppressWarnings("unchecked")
+		ArgumentCaptor<List<SpotInstanceRequest>> finished = ArgumentCaptor.forClass(List.class);
+		verify(listener, timeout(5000)).requestsFinished(finished.capture());
+		assertEquals(3, finished.getValue().size());
+		verify(listener, timeout(5000)).requestsExpired(Collections.singletonList("sir-gone"));
+		assertEquals(0, poller.getPendingCount());
+	}
+
+	@Test
+	public void requestsNotVisibleYetAreKeptWatched() {
+		AmazonEC2 ec2 = mock(AmazonEC2.class);
+		AmazonServiceException notFound = new AmazonServiceException("The spot instance request ID 'sir-new' does not exist");
+		notFound.setErrorCode(SpotRequestPoller.REQUEST_NOT_FOUND_ERROR_CODE);
+		when(ec2.describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class))).thenThrow(notFound);
+		SpotRequestPoller.Listener listener = listener();
+		SpotRequestPoller poller = new SpotRequestPoller("cloud");
+		poller.watch(ec2, Arrays.asList(request("sir-new")), listener, 0);
+
+		poller.poll(System.currentTimeMillis() + SpotRequestPoller.MIN_POLL_INTERVAL_MILLIS);
+
+		assertEquals(1, poller.getPendingCount());
+		verify(listener, never()).requestsExpired(anyList());
+	}
+
+	private static SpotRequestPoller.Listener listener() {
+		SpotRequestPoller.Listener listener = mock(SpotRequestPoller.Listener.class);
+		when(listener.getLogger()).thenReturn(mock(EC2Logger.class));
+		return listener;
+	}
+
+	private static SpotInstanceRequest request(String id) {
+		return new SpotInstanceRequest().withSpotInstanceRequestId(id).withState("open");
+	}
+}
@@ -0,0 +1,339 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.cipher.BuiltinCiphers;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.common.mac.BuiltinMacs;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.common.signature.BuiltinSignatures;
+import org.apache.sshd.scp.server.ScpCommandFactory;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.ServerBuilder;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.PublickeyAuthenticator;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.command.CommandFactory;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class SshAgentBootstrapTest {
+	private static final byte[] AGENT_JAR = "agent jar contents".getBytes(StandardCharsets.UTF_8);
+	private static final SshAgentBootstrap.Timeouts TIMEOUTS = new SshAgentBootstrap.Timeouts(5000, 1000, 5000, 1000);
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private final EC2Logger logger = mock(EC2Logger.class);
+	private final List<String> commands = new CopyOnWriteArrayList<String>();
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger hangingCommands = new AtomicInteger();
+	private SshServer sshd;
+	private Path home;
+	private char[] privateKey;
+	private volatile String hangingCommand;
+	private volatile int preflightExitStatus = 0;
+
+	@Before
+	public void startServer() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		final KeyPair clientKey = generator.generateKeyPair();
+		privateKey = toPem(clientKey);
+		home = temp.newFolder("home").toPath();
+
+		SimpleGeneratorHostKeyProvider hostKeyProvider = new SimpleGeneratorHostKeyProvider();
+		hostKeyProvider.setAlgorithm(KeyUtils.RSA_ALGORITHM);
+
+		sshd = SshServer.setUpDefaultServer();
+		sshd.setHost("127.0.0.1");
+		sshd.setPort(0);
+		sshd.setKeyPairProvider(hostKeyProvider);
+		sshd.setKeyExchangeFactories(NamedFactory.setUpTransformedFactories(false, BuiltinDHFactories.VALUES, ServerBuilder.DH2KEX));
+		sshd.setSignatureFactories(NamedFactory.setUpBuiltinFactories(false, BuiltinSignatures.VALUES));
+		sshd.setCipherFactories(NamedFactory.setUpBuiltinFactories(false, BuiltinCiphers.VALUES));
+		sshd.setMacFactories(NamedFactory.setUpBuiltinFactories(false, BuiltinMacs.VALUES));
+		sshd.setPublickeyAuthenticator(new PublickeyAuthenticator() {
+			@Override
+			public boolean authenticate(String username, PublicKey key, ServerSession session) {
+				return "ec2-user".equals(username) && KeyUtils.compareKeys(clientKey.getPublic(), key);
+			}
+		});
+		sshd.setFileSystemFactory(new VirtualFileSystemFactory(home));
+		sshd.setCommandFactory(new ScpCommandFactory.Builder().withDelegate(new ScriptedCommands()).build());
+		sshd.addSessionListener(new SessionListener() {
+			@Override
+			public void sessionCreated(Session session) {
+				connections.incrementAndGet();
+				openConnections.incrementAndGet();
+			}
+
+			@Override
+			public void sessionClosed(Session session) {
+				openConnections.decrementAndGet();
+			}
+		});
+		sshd.start();
+	}
+
+	@After
+	public void stopServer() throws IOException {
+		sshd.stop(true);
+	}
+
+	@Test
+	public void installsAndLaunchesAgentOverOneConnection() throws Exception {
+		subject().bootstrap("my slave", "http://jenkins/");
+
+		assertArrayEquals(AGENT_JAR, Files.readAllBytes(home.resolve("slave.jar")));
+		assertTrue(commands.contains("java -version"));
+		assertTrue(commands.contains(SshAgentBootstrap.launchCommand("my slave", "http://jenkins/")));
+		assertEquals(1, connections.get());
+		assertConnectionsClosed();
+	}
+
+	@Test
+	public void skipsTransferWhenInstalledJarMatches() throws Exception {
+		Files.write(home.resolve("slave.jar"), AGENT_JAR);
+
+		subject().bootstrap("slave", "http://jenkins/");
+
+		verify(logger).println("slave.jar on 127.0.0.1 is up to date");
+		assertTrue(commands.contains(SshAgentBootstrap.launchCommand("slave", "http://jenkins/")));
+		assertConnectionsClosed();
+	}
+
+	@Test
+	public void replacesOutdatedJar() throws Exception {
+		Files.write(home.resolve("slave.jar"), "older agent".getBytes(StandardCharsets.UTF_8));
+
+		subject().bootstrap("slave", "http://jenkins/");
+
+		assertArrayEquals(AGENT_JAR, Files.readAllBytes(home.resolve("slave.jar")));
+	}
+
+	@Test
+	public void failsWithoutLaunchingWhenPreflightFails() throws Exception {
+		preflightExitStatus = 127;
+		SshAgentBootstrap bootstrap = subject();
+		try {
+			bootstrap.bootstrap("slave", "http://jenkins/");
+			fail("preflight failure should abort the bootstrap");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("preflight"));
+		}
+		assertFalse(commands.contains(SshAgentBootstrap.launchCommand("slave", "http://jenkins/")));
+		bootstrap.close();
+		assertConnectionsClosed();
+	}
+
+	@Test
+	public void closesThePendingProbeWhenPreflightFails() throws Exception {
+		preflightExitStatus = 127;
+		hangingCommand = "sha256sum " + SshAgentBootstrap.AGENT_JAR + " 2>/dev/null";
+		SshAgentBootstrap bootstrap = subject();
+		try {
+			bootstrap.bootstrap("slave", "http://jenkins/");
+			fail("preflight failure should abort the bootstrap");
+		} catch (SshAgentBootstrap.StepFailedException e) {
+			assertEquals(1, openConnections.get());
+		}
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+		while (hangingCommands.get() > 0 && System.currentTimeMillis() < deadline)
+			ThreadUtils.sleepWithoutInterruptions(20);
+		assertEquals(0, hangingCommands.get());
+		bootstrap.close();
+		assertConnectionsClosed();
+	}
+
+	@Test
+	public void retriesOverTheConnectionOfTheFailedAttempt() throws Exception {
+		preflightExitStatus = 127;
+		SshAgentBootstrap bootstrap = subject();
+		try {
+			bootstrap.bootstrap("slave", "http://jenkins/");
+			fail("preflight failure should abort the bootstrap");
+		} catch (IOException e) {
+			assertEquals(1, openConnections.get());
+		}
+
+		preflightExitStatus = 0;
+		bootstrap.bootstrap("slave", "http://jenkins/");
+
+		assertTrue(commands.contains(SshAgentBootstrap.launchCommand("slave", "http://jenkins/")));
+		assertEquals(1, connections.get());
+		assertConnectionsClosed();
+	}
+
+	@Test
+	public void reconnectsAfterTheConnectionFailed() throws Exception {
+		hangingCommand = "java -version";
+		SshAgentBootstrap bootstrap = subject();
+		try {
+			bootstrap.bootstrap("slave", "http://jenkins/");
+			fail("hanging preflight should time out");
+		} catch (IOException e) {
+			assertConnectionsClosed();
+		}
+
+		hangingCommand = null;
+		bootstrap.bootstrap("slave", "http://jenkins/");
+
+		assertEquals(2, connections.get());
+		assertConnectionsClosed();
+	}
+
+	@Test
+	public void abortsStepThatExceedsItsTimeout() throws Exception {
+		hangingCommand = "java -version";
+		long start = System.currentTimeMillis();
+		try {
+			subject().bootstrap("slave", "http://jenkins/");
+			fail("hanging preflight should time out");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("timed out"));
+		}
+		assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(5));
+		assertConnectionsClosed();
+	}
+
+	@Test
+	public void failsWhenKeyIsRejected() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		char[] otherKey = toPem(generator.generateKeyPair());
+		try {
+			new SshAgentBootstrap("127.0.0.1", sshd.getPort(), "ec2-user", otherKey, logger, TIMEOUTS, new AgentJarCache(AGENT_JAR))
+				.bootstrap("slave", "http://jenkins/");
+			fail("authentication should fail");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("authenticate"));
+		}
+		assertTrue(commands.isEmpty());
+		assertConnectionsClosed();
+	}
+
+	private SshAgentBootstrap subject() {
+		return new SshAgentBootstrap("127.0.0.1", sshd.getPort(), "ec2-user", privateKey, logger, TIMEOUTS, new AgentJarCache(AGENT_JAR));
+	}
+
+	private void assertConnectionsClosed() {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+		while (openConnections.get() > 0 && System.currentTimeMillis() < deadline)
+			ThreadUtils.sleepWithoutInterruptions(20);
+		assertEquals(0, openConnections.get());
+	}
+
+	private static char[] toPem(KeyPair keyPair) throws IOException {
+		StringWriter pem = new StringWriter();
+		JcaPEMWriter writer = new JcaPEMWriter(pem);
+		writer.writeObject(keyPair.getPrivate());
+		writer.close();
+		return pem.toString().toCharArray();
+	}
+
+	/**
+	 * Answers the commands the bootstrap runs the way an instance would.
+	 */
+	private class ScriptedCommands implements CommandFactory {
+		@Override
+		public Command createCommand(ChannelSession channel, String command) {
+			commands.add(command);
+			return new ScriptedCommand(command);
+		}
+	}
+
+	private class ScriptedCommand implements Command {
+		private final String command;
+		private OutputStream out;
+		private ExitCallback exitCallback;
+
+		ScriptedCommand(String command) {
+			this.command = command;
+		}
+
+		@Override
+		public void setInputStream(InputStream in) {
+		}
+
+		@Override
+		public void setOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void setErrorStream(OutputStream err) {
+		}
+
+		@Override
+		public void setExitCallback(ExitCallback callback) {
+			this.exitCallback = callback;
+		}
+
+		@Override
+		public void start(ChannelSession channel, Environment env) throws IOException {
+			if (command.equals(hangingCommand)) {
+				hangingCommands.incrementAndGet();
+				return;
+			}
+			if (command.equals("java -version")) {
+				exitCallback.onExit(preflightExitStatus);
+			} else if (command.startsWith("sha256sum ")) {
+				Path jar = home.resolve("slave.jar");
+				if (!Files.exists(jar)) {
+					exitCallback.onExit(1);
+					return;
+				}
+				String checksum = new AgentJarCache(Files.readAllBytes(jar)).getSha256();
+				out.write((checksum + "  slave.jar\n").getBytes(StandardCharsets.UTF_8));
+				out.flush();
+				exitCallback.onExit(0);
+			} else if (command.startsWith("nohup ")) {
+				exitCallback.onExit(0);
+			} else {
+				exitCallback.onExit(127);
+			}
+		}
+
+		@Override
+		public void destroy(ChannelSession channel) {
+			if (command.equals(hangingCommand))
+				hangingCommands.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class SshPortReadinessProberTest {
+	private static final int INSTANCES = 20;
+
+	private final List<ServerSocket> servers = new ArrayList<ServerSocket>();
+	private final Map<Integer, Long> openedAt = new ConcurrentHashMap<Integer, Long>();
+	private final Map<Integer, Long> readyAt = new ConcurrentHashMap<Integer, Long>();
+	private final List<Integer> timedOut = new ArrayList<Integer>();
+
+	@After
+	public void closeServers() throws IOException {
+		synchronized (servers) {
+			for (ServerSocket server : servers)
+				server.close();
+		}
+	}
+
+	@Test
+	public void reportsEachInstanceOnceItsPortAcceptsConnections() throws Exception {
+		SshPortReadinessProber subject = new SshPortReadinessProber(50, 500);
+		CountDownLatch done = new CountDownLatch(INSTANCES);
+		Random random = new Random();
+		for (int i = 0; i < INSTANCES; i++) {
+			int port = freePort();
+			openLater(port, random.nextInt(1500));
+			subject.probe(localAddress(port), TimeUnit.SECONDS.toMillis(20), new RecordingListener(done));
+		}
+
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(INSTANCES, readyAt.size());
+		assertTrue(timedOut.isEmpty());
+		for (Map.Entry<Integer, Long> ready : readyAt.entrySet())
+			assertTrue(ready.getValue() >= openedAt.get(ready.getKey()));
+	}
+
+	@Test
+	public void reportsTimeoutWhenPortNeverOpens() throws Exception {
+		SshPortReadinessProber subject = new SshPortReadinessProber(50, 500);
+		CountDownLatch done = new CountDownLatch(1);
+		int port = freePort();
+
+		subject.probe(localAddress(port), 700, new RecordingListener(done));
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(readyAt.isEmpty());
+		assertEquals(1, timedOut.size());
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	private static InetSocketAddress localAddress(int port) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+	}
+
+	private void openLater(final int port, final long delayMillis) {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ThreadUtils.sleepWithoutInterruptions(delayMillis);
+				try {
+					openedAt.put(port, System.currentTimeMillis());
+					ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+					synchronized (servers) {
+						servers.add(server);
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}).start();
+	}
+
+	private class RecordingListener implements SshPortReadinessProber.Listener {
+		private final CountDownLatch done;
+
+		RecordingListener(CountDownLatch done) {
+			this.done = done;
+		}
+
+		@Override
+		public void ready(InetSocketAddress address) {
+			readyAt.put(address.getPort(), System.currentTimeMillis());
+			done.countDown();
+		}
+
+		@Override
+		public void timedOut(InetSocketAddress address) {
+			synchronized (timedOut) {
+				timedOut.add(address.getPort());
+			}
+			done.countDown();
+		}
+	}
+}
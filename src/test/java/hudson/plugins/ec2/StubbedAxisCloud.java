@@ -0,0 +1,42 @@
+package hudson.plugins.ec2;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * An axis cloud whose provisioning burns a fixed amount of CPU and hands out
+ * mocked slaves instead of calling EC2, so allocations can be benchmarked
+ * end to end. Needs a running Jenkins, as templates parse their labels.
+ */
+public class StubbedAxisCloud extends EC2AxisCloud {
+	private final long provisionTokens;
+	private final List<EC2AbstractSlave> slaves = new ArrayList<EC2AbstractSlave>();
+
+	public StubbedAxisCloud(long provisionTokens, int maxSlavesPerAllocation, List<String> ec2Labels) {
+		super("access", "secret", "us-east-1", "key", "", templates(ec2Labels));
+		this.provisionTokens = provisionTokens;
+		for (int i = 0; i < maxSlavesPerAllocation; i++) {
+			EC2AbstractSlave slave = mock(EC2AbstractSlave.class);
+			when(slave.getNodeName()).thenReturn("stubbed-" + i);
+			slaves.add(slave);
+		}
+	}
+
+	@Override
+	List<EC2AbstractSlave> provisionAcrossClouds(EC2Logger logger, String ec2Label, int count, int minimum) {
+		Blackhole.consumeCPU(provisionTokens);
+		return new ArrayList<EC2AbstractSlave>(slaves.subList(0, count));
+	}
+
+	private static List<SlaveTemplate> templates(List<String> ec2Labels) {
+		List<SlaveTemplate> templates = new ArrayList<SlaveTemplate>();
+		for (String ec2Label : ec2Labels)
+			templates.add(FakeEC2AxisCloud.slaveTemplate(ec2Label));
+		return templates;
+	}
+}
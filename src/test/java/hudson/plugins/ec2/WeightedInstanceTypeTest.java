@@ -0,0 +1,67 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.InstanceType;
+
+
+public class WeightedInstanceTypeTest {
+
+	@Test
+	public void parsesTypesWithOptionalWeights() {
+		List<WeightedInstanceType> types = WeightedInstanceType.parse("m1.large:4, m1.xlarge  c1.xlarge:8");
+
+		assertEquals(3, types.size());
+		assertEquals(InstanceType.M1Large, types.get(0).getType());
+		assertEquals(4, types.get(0).getWeight());
+		assertEquals(InstanceType.M1Xlarge, types.get(1).getType());
+		assertEquals(1, types.get(1).getWeight());
+		assertEquals(8, types.get(2).getWeight());
+	}
+
+	@Test
+	public void blankMeansNoAdditionalTypes() {
+		assertTrue(WeightedInstanceType.parse(null).isEmpty());
+		assertTrue(WeightedInstanceType.parse("  ").isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownType() {
+		WeightedInstanceType.parse("m1.large:4 not-a-type:2");
+	}
+
+	@Test
+	public void splitsCountInProportionToWeights() {
+		Map<InstanceType, Integer> shares = WeightedInstanceType.split(
+				WeightedInstanceType.parse("m1.large:4 m1.xlarge:4 c1.xlarge:8"), 20);
+
+		assertEquals(5, (int) shares.get(InstanceType.M1Large));
+		assertEquals(5, (int) shares.get(InstanceType.M1Xlarge));
+		assertEquals(10, (int) shares.get(InstanceType.C1Xlarge));
+	}
+
+	@Test
+	public void givesRemainderToLargestFractions() {
+		Map<InstanceType, Integer> shares = WeightedInstanceType.split(
+				WeightedInstanceType.parse("m1.large:1 m1.xlarge:1 c1.xlarge:2"), 3);
+
+		assertEquals(1, (int) shares.get(InstanceType.M1Large));
+		assertEquals(1, (int) shares.get(InstanceType.M1Xlarge));
+		assertEquals(1, (int) shares.get(InstanceType.C1Xlarge));
+	}
+
+	@Test
+	public void leavesOutTypesWithoutShare() {
+		Map<InstanceType, Integer> shares = WeightedInstanceType.split(
+				WeightedInstanceType.parse("m1.large:1 c1.xlarge:8"), 2);
+
+		assertEquals(1, shares.size());
+		assertEquals(2, (int) shares.get(InstanceType.C1Xlarge));
+	}
+}
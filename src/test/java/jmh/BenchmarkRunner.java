@@ -0,0 +1,37 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import jenkins.benchmark.jmh.BenchmarkFinder;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the {@link jenkins.benchmark.jmh.JmhBenchmark}s of the plugin.
+ * 
+ * Not picked up by the regular test run; use <code>mvn test -Dbenchmark</code>.
+ */
+public final class BenchmarkRunner {
+	@Test
+	public void runJmhBenchmarks() throws Exception {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.mode(Mode.AverageTime)
+				.warmupIterations(2)
+				.measurementIterations(5)
+				.timeUnit(TimeUnit.MILLISECONDS)
+				.forks(1)
+				.shouldFailOnError(true)
+				.shouldDoGC(true)
+				.resultFormat(ResultFormatType.JSON)
+				.result("jmh-report.json");
+
+		BenchmarkFinder finder = new BenchmarkFinder(getClass());
+		finder.findBenchmarks(options);
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,93 @@
+package jmh.benchmarks;
+
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import hudson.plugins.ec2.EC2AxisCloud;
+import hudson.plugins.ec2.EC2Tag;
+import hudson.plugins.ec2.LabelResolutionCache;
+import hudson.plugins.ec2.SlaveTemplate;
+import hudson.slaves.Cloud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.amazonaws.services.ec2.model.InstanceType;
+
+/**
+ * Resolving the cloud of an ec2 label with 20 axis clouds of 50 templates
+ * each: walking every cloud on each call, as getCloudToUse did before the
+ * resolution cache, versus the cache.
+ */
+@JmhBenchmark
+public class CloudResolutionBenchmark {
+	private static final int CLOUDS = 20;
+	private static final int TEMPLATES_PER_CLOUD = 50;
+
+	public static class CloudsState extends JmhBenchmarkState {
+		@Param({"first", "middle", "last"})
+		public String position;
+
+		String ec2Label;
+
+		@Override
+		public void setup() throws Exception {
+			Jenkins jenkins = Jenkins.get();
+			for (int c = 0; c < CLOUDS; c++) {
+				List<SlaveTemplate> templates = new ArrayList<SlaveTemplate>();
+				for (int t = 0; t < TEMPLATES_PER_CLOUD; t++)
+					templates.add(template("cloud" + c + "-label" + t));
+				jenkins.clouds.add(new EC2AxisCloud("access", "secret", "us-east-1", "key", "", templates));
+			}
+			if (position.equals("first"))
+				ec2Label = "cloud0-label0";
+			else if (position.equals("middle"))
+				ec2Label = "cloud" + CLOUDS / 2 + "-label" + TEMPLATES_PER_CLOUD / 2;
+			else
+				ec2Label = "cloud" + (CLOUDS - 1) + "-label" + (TEMPLATES_PER_CLOUD - 1);
+			LabelResolutionCache.get().invalidateAll();
+		}
+
+		private static SlaveTemplate template(String label) {
+			return new SlaveTemplate("ami-12345678", "", null, "default", "/tmp", "22", InstanceType.M1Large, label,
+					Node.Mode.EXCLUSIVE, label, "", "", "1", "ec2-user", "", "", false, "",
+					Collections.<EC2Tag>emptyList(), "30", false, "", "", false, "");
+		}
+	}
+
+	@Benchmark
+	public void walkClouds(CloudsState state, Blackhole blackhole) {
+		blackhole.consume(walkClouds(state.ec2Label));
+	}
+
+	@Benchmark
+	public void cachedResolution(CloudsState state, Blackhole blackhole) {
+		blackhole.consume(EC2AxisCloud.getCloudToUse(state.ec2Label));
+	}
+
+	/**
+	 * The lookup getCloudToUse did before the cache: every cloud is asked,
+	 * and the last one serving the label wins.
+	 */
+	private static EC2AxisCloud walkClouds(String ec2label) {
+		Iterator<Cloud> iterator = Jenkins.getInstance().clouds.iterator();
+		EC2AxisCloud cloudToUse = null;
+		while(iterator.hasNext()) {
+			Cloud next = iterator.next();
+			if (next instanceof EC2AxisCloud) {
+				if (((EC2AxisCloud)next).acceptsLabel(new LabelAtom(ec2label)))
+					cloudToUse = (EC2AxisCloud) next;
+			}
+		}
+		return cloudToUse;
+	}
+}
@@ -0,0 +1,87 @@
+package jmh.benchmarks;
+
+import hudson.plugins.ec2.EC2AxisCloud;
+import hudson.plugins.ec2.EC2Logger;
+import hudson.plugins.ec2.StubbedAxisCloud;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Many concurrent rebuilds going through allocateSlavesLabels, with a stubbed 
+ * provider standing in for EC2: one global lock held across the whole 
+ * allocation, as before, versus the per-label locks the allocation now takes
+ * only while picking idle slaves.
+ */
+@JmhBenchmark
+@Threads(16)
+public class LabelAllocationLockBenchmark {
+	private static final long PROVISION_TOKENS = 50000;
+	private static final int SLAVES_PER_ALLOCATION = 4;
+
+	private static final ReentrantLock globalLock = new ReentrantLock();
+
+	public static class Cloud extends JmhBenchmarkState {
+		@Param({"1", "4", "16"})
+		public int labelCount;
+
+		final AtomicInteger nextThread = new AtomicInteger();
+		EC2AxisCloud cloud;
+
+		@Override
+		public void setup() throws Exception {
+			List<String> ec2Labels = new ArrayList<String>();
+			for (int i = 0; i < labelCount; i++)
+				ec2Labels.add("axis-label-" + i);
+			cloud = new StubbedAxisCloud(PROVISION_TOKENS, SLAVES_PER_ALLOCATION, ec2Labels);
+			Jenkins.get().clouds.add(cloud);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Rebuild {
+		String ec2Label;
+		EC2Logger logger;
+
+		@Setup
+		public void pickLabel(Cloud cloud) {
+			ec2Label = "axis-label-" + cloud.nextThread.getAndIncrement() % cloud.labelCount;
+			logger = new EC2Logger(new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM));
+		}
+	}
+
+	@Benchmark
+	public void globalLockAroundAllocation(Cloud cloud, Rebuild rebuild, Blackhole blackhole) {
+		globalLock.lock();
+		try {
+			blackhole.consume(allocate(cloud, rebuild));
+		} finally {
+			globalLock.unlock();
+		}
+	}
+
+	@Benchmark
+	public void labelLockAroundPicking(Cloud cloud, Rebuild rebuild, Blackhole blackhole) {
+		blackhole.consume(allocate(cloud, rebuild));
+	}
+
+	private static List<String> allocate(Cloud cloud, Rebuild rebuild) {
+		return cloud.cloud.allocateSlavesLabels(rebuild.logger, rebuild.ec2Label, SLAVES_PER_ALLOCATION, null, 10, false, false);
+	}
+}
@@ -0,0 +1,76 @@
+package jmh.benchmarks;
+
+import hudson.model.Node;
+import hudson.plugins.ec2.Utils;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Registration time of the nodes of one allocation on a Jenkins that already 
+ * has other nodes: one addNode at a time, as the providers used to, versus the
+ * single node list update of {@link Utils#addNodes}.
+ */
+@JmhBenchmark
+public class NodeRegistrationBenchmark {
+
+	public static class NodesState extends JmhBenchmarkState {
+		@Param({"10", "60", "200"})
+		public int nodeCount;
+
+		@Param({"0", "500"})
+		public int existingNodeCount;
+
+		List<Node> nodes;
+		private int allocation = 0;
+
+		@Override
+		public void setup() throws Exception {
+			List<Node> existing = new ArrayList<Node>();
+			for (int i = 0; i < existingNodeCount; i++)
+				existing.add(node("existing-" + i));
+			Jenkins.get().setNodes(existing);
+		}
+
+		@Setup(Level.Invocation)
+		public void createNodes() throws Exception {
+			nodes = new ArrayList<Node>();
+			allocation++;
+			for (int i = 0; i < nodeCount; i++)
+				nodes.add(node("axis-" + allocation + "-" + i));
+		}
+
+		@TearDown(Level.Invocation)
+		public void removeNodes() throws Exception {
+			for (Node node : nodes)
+				Jenkins.get().removeNode(node);
+		}
+
+		private static Node node(String name) throws Exception {
+			return new DumbSlave(name, "/tmp", new JNLPLauncher(true));
+		}
+	}
+
+	@Benchmark
+	public void addNodeOneByOne(NodesState state) throws Exception {
+		for (Node node : state.nodes)
+			Jenkins.get().addNode(node);
+	}
+
+	@Benchmark
+	public void addNodesInOneUpdate(NodesState state) {
+		Utils.addNodes(state.nodes);
+	}
+}
@@ -0,0 +1,106 @@
+package org.jenkinsci.plugins.ec2axis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class Ec2SafeNodeTaskWorkerTest {
+	private final Logger logger = Logger.getLogger(Ec2SafeNodeTaskWorker.class.getName());
+	private final List<LogRecord> records = Collections.synchronizedList(new ArrayList<LogRecord>());
+	private final Handler handler = new Handler() {
+		@Override
+		public void publish(LogRecord record) {
+			records.add(record);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	@Before
+	public void captureLogs() {
+		logger.addHandler(handler);
+	}
+
+	@After
+	public void releaseLogs() {
+		logger.removeHandler(handler);
+	}
+
+	@Test
+	public void tasksRunInSubmissionOrder() {
+		final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Integer> submitted = new ArrayList<Integer>();
+		for (int i = 0; i < 100; i++) {
+			final int task = i;
+			submitted.add(task);
+			Ec2SafeNodeTaskWorker.invoke(new Runnable() {
+				@Override
+				public void run() {
+					ran.add(task);
+				}
+			});
+		}
+		Ec2SafeNodeTaskWorker.invokeAndWait(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+
+		assertEquals(submitted, ran);
+	}
+
+	@Test
+	public void failuresOfTasksNobodyWaitsForAreLogged() {
+		final IllegalStateException failure = new IllegalStateException("node list is broken");
+		Ec2SafeNodeTaskWorker.invoke(new Runnable() {
+			@Override
+			public void run() {
+				throw failure;
+			}
+		});
+		Ec2SafeNodeTaskWorker.invokeAndWait(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+
+		boolean logged = false;
+		synchronized (records) {
+			for (LogRecord record : records)
+				logged |= record.getLevel() == Level.WARNING && record.getThrown() == failure;
+		}
+		assertTrue("the failure should be logged", logged);
+	}
+
+	@Test
+	public void completedTasksAreCounted() {
+		long before = Ec2SafeNodeTaskWorker.getStats().getCompletedTasks();
+		/* a task is counted right after its waiter is released, the fourth one makes sure the third is */
+		for (int i = 0; i < 4; i++) {
+			Ec2SafeNodeTaskWorker.invokeAndWait(new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+		}
+
+		assertTrue(Ec2SafeNodeTaskWorker.getStats().getCompletedTasks() >= before + 3);
+	}
+}